@@ -0,0 +1,130 @@
+package com.example.podovs;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Un único listener de "mis versus activos" por uid, compartido por todos los que lo piden.
+ * Cuenta referencias: se registra con el primer suscriptor y se quita con el último.
+ * Guarda el último snapshot para entregarlo al instante a los que llegan después.
+ */
+final class ActiveVersusHub {
+
+    private static final class Entry {
+        ListenerRegistration registration;
+        final List<EventListener<QuerySnapshot>> subscribers = new ArrayList<>();
+        QuerySnapshot last;
+
+        // Métricas
+        long snapshots = 0L;
+        long firstAtMs = 0L;
+        long lastAtMs = 0L;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final FirebaseFirestore db;
+
+    ActiveVersusHub(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    synchronized ListenerRegistration subscribe(String uid, EventListener<QuerySnapshot> listener) {
+        Entry e = entries.get(uid);
+        if (e == null) {
+            e = new Entry();
+            entries.put(uid, e);
+        }
+        e.subscribers.add(listener);
+        if (e.registration == null) register(uid, e);
+
+        // El último resultado llega por el main thread, igual que un snapshot real
+        final QuerySnapshot cached = e.last;
+        if (cached != null) {
+            handler.post(() -> {
+                if (isSubscribed(uid, listener)) listener.onEvent(cached, null);
+            });
+        }
+        return () -> unsubscribe(uid, listener);
+    }
+
+    private void register(String uid, Entry e) {
+        e.registration = db.collection("versus")
+                .whereArrayContains("ver_players", uid)
+                .whereEqualTo("ver_finished", false)
+                .addSnapshotListener((qs, err) -> dispatch(uid, qs, err));
+    }
+
+    private void dispatch(String uid, QuerySnapshot qs, FirebaseFirestoreException err) {
+        List<EventListener<QuerySnapshot>> targets;
+        synchronized (this) {
+            Entry e = entries.get(uid);
+            if (e == null) return;
+            if (err != null) {
+                // Firestore ya dio de baja el listener: el próximo subscribe lo vuelve a registrar
+                e.registration = null;
+            } else if (qs != null) {
+                long now = System.currentTimeMillis();
+                if (e.snapshots == 0L) e.firstAtMs = now;
+                e.snapshots++;
+                e.lastAtMs = now;
+                e.last = qs;
+            }
+            targets = new ArrayList<>(e.subscribers);
+        }
+        for (EventListener<QuerySnapshot> l : targets) l.onEvent(qs, err);
+    }
+
+    private synchronized void unsubscribe(String uid, EventListener<QuerySnapshot> listener) {
+        Entry e = entries.get(uid);
+        if (e == null) return;
+        e.subscribers.remove(listener);
+        if (!e.subscribers.isEmpty()) return;
+        if (e.registration != null) e.registration.remove();
+        entries.remove(uid);
+    }
+
+    private synchronized boolean isSubscribed(String uid, EventListener<QuerySnapshot> listener) {
+        Entry e = entries.get(uid);
+        return e != null && e.subscribers.contains(listener);
+    }
+
+    /**
+     * Último snapshot recibido para el uid, o null si el listener no está activo.
+     */
+    synchronized QuerySnapshot peek(String uid) {
+        Entry e = entries.get(uid);
+        return (e == null || e.registration == null) ? null : e.last;
+    }
+
+    // ================== MÉTRICAS ==================
+
+    synchronized int getSubscribers(String uid) {
+        Entry e = entries.get(uid);
+        return e == null ? 0 : e.subscribers.size();
+    }
+
+    synchronized long getSnapshots(String uid) {
+        Entry e = entries.get(uid);
+        return e == null ? 0L : e.snapshots;
+    }
+
+    synchronized double getSnapshotsPerMinute(String uid) {
+        Entry e = entries.get(uid);
+        if (e == null || e.snapshots < 2L) return 0.0;
+        long span = e.lastAtMs - e.firstAtMs;
+        if (span <= 0L) return 0.0;
+        return (e.snapshots - 1L) * 60_000.0 / span;
+    }
+}
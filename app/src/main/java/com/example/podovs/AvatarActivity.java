@@ -242,7 +242,10 @@ public class AvatarActivity extends AppCompatActivity {
         }
 
         batch.commit()
-                .addOnSuccessListener(v -> finish())
+                .addOnSuccessListener(v -> {
+                    new FirestoreRepo().forgetUserSummary(uid);
+                    finish();
+                })
                 .addOnFailureListener(e -> finish());
     }
 
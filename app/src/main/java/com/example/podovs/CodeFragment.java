@@ -18,7 +18,10 @@ public class CodeFragment extends AppCompatDialogFragment {
 
     private static final String ARG_ROOM_ID = "room_id";
 
-    public static CodeFragment newInstance(@NonNull String roomId, String uid) {
+    /**
+     * roomId null = unirse solo con el código (se busca la sala en room_codes).
+     */
+    public static CodeFragment newInstance(@Nullable String roomId, String uid) {
         CodeFragment f = new CodeFragment();
         Bundle b = new Bundle();
         b.putString(ARG_ROOM_ID, roomId);
@@ -41,8 +44,6 @@ public class CodeFragment extends AppCompatDialogFragment {
                     String roomId = getArguments() != null ? getArguments().getString(ARG_ROOM_ID) : null;
                     String code = etCode.getText().toString().trim();
 
-                    if (roomId == null) return;
-
                     if (TextUtils.isEmpty(code)) {
                         Toast.makeText(ctx, "Ingresá el código de 4 letras.", Toast.LENGTH_SHORT).show();
                         return;
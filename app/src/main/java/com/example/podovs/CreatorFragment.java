@@ -4,6 +4,8 @@ import android.app.Dialog;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,6 +21,7 @@ import androidx.fragment.app.DialogFragment;
 
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
+import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.Locale;
 import java.util.Random;
@@ -26,6 +29,7 @@ import java.util.Random;
 public class CreatorFragment extends DialogFragment {
 
     private static final String ARG_UID = "uid";
+    private static final int CODE_ATTEMPTS = 3;
 
     public static CreatorFragment newInstance(@NonNull String uid) {
         CreatorFragment f = new CreatorFragment();
@@ -38,6 +42,13 @@ public class CreatorFragment extends DialogFragment {
     private String uid;
     private FirestoreRepo repo;
 
+    // Entrada propia en la cola de matchmaking
+    private ListenerRegistration ticketListener;
+    private boolean searching = false;
+    // Pasado MATCH_TICKET_TTL_MS nadie más ve la entrada: salimos de la cola y avisamos
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable ticketExpired = this::onTicketExpired;
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater,
@@ -61,6 +72,8 @@ public class CreatorFragment extends DialogFragment {
         TextView tvCodeLabel = view.findViewById(R.id.tvCodeLabel);
         TextView tvCodeValue = view.findViewById(R.id.tvCodeValue);
         MaterialButton btnCreate = view.findViewById(R.id.btnCreateRoomConfirm);
+        SwitchCompat swSameLevel = view.findViewById(R.id.swSameLevel);
+        MaterialButton btnQuickMatch = view.findViewById(R.id.btnQuickMatch);
         View btnClose = view.findViewById(R.id.btnCloseDialog);
 
         if (rootOverlay != null) {
@@ -118,21 +131,88 @@ public class CreatorFragment extends DialogFragment {
                     return;
                 }
 
-                repo.createRoomFromOptions(
-                        uid,
-                        isPublic,
-                        isRace,
-                        finalCode,
-                        aVoid -> {
-                            Toast.makeText(getContext(), "Sala creada", Toast.LENGTH_SHORT).show();
-                            dismiss();
+                createRoom(isPublic, isRace, finalCode, tvCodeValue, CODE_ATTEMPTS);
+            });
+        }
+
+        if (btnQuickMatch != null && uid != null) {
+            ticketListener = repo.listenMatchTicket(uid, (snap, e) -> {
+                if (e != null || snap == null || !isAdded()) return;
+                String status = snap.exists() ? snap.getString("mq_status") : null;
+                if (FirestoreRepo.MQ_MATCHED.equals(status)) {
+                    // Otro jugador nos tomó de la cola: el versus ya existe
+                    repo.leaveMatchQueue(uid, v -> {
+                    }, err -> {
+                    });
+                    Toast.makeText(getContext(), "¡Rival encontrado!", Toast.LENGTH_SHORT).show();
+                    dismiss();
+                    return;
+                }
+                searching = FirestoreRepo.MQ_WAITING.equals(status);
+                btnQuickMatch.setText(searching ? "Cancelar búsqueda" : "Buscar rival");
+                handler.removeCallbacks(ticketExpired);
+                if (searching) {
+                    Long at = snap.getLong("mq_enqueuedAt");
+                    long age = at == null ? 0L : System.currentTimeMillis() - at;
+                    handler.postDelayed(ticketExpired,
+                            Math.max(0L, FirestoreRepo.MATCH_TICKET_TTL_MS - age));
+                }
+            });
+
+            btnQuickMatch.setOnClickListener(v -> {
+                if (searching) {
+                    repo.leaveMatchQueue(uid, x -> {
+                    }, e -> Toast.makeText(getContext(), "Error al salir de la cola",
+                            Toast.LENGTH_SHORT).show());
+                    return;
+                }
+                boolean isRace = rgMode == null || rgMode.getCheckedRadioButtonId() != R.id.rbMarathon;
+                boolean sameLevel = swSameLevel != null && swSameLevel.isChecked();
+                btnQuickMatch.setEnabled(false);
+
+                repo.enqueueForMatch(uid, isRace, sameLevel,
+                        vsId -> {
+                            if (!isAdded()) return;
+                            btnQuickMatch.setEnabled(true);
+                            if (vsId != null) {
+                                Toast.makeText(getContext(), "¡Rival encontrado!", Toast.LENGTH_SHORT).show();
+                                dismiss();
+                            } else {
+                                Toast.makeText(getContext(), "Buscando rival...", Toast.LENGTH_SHORT).show();
+                            }
                         },
-                        e -> Toast.makeText(getContext(),
-                                e.getMessage() == null ? "Error al crear sala" : e.getMessage(),
-                                Toast.LENGTH_SHORT).show()
-                );
+                        e -> {
+                            if (!isAdded()) return;
+                            btnQuickMatch.setEnabled(true);
+                            Toast.makeText(getContext(),
+                                    e.getMessage() == null ? "Error al buscar rival" : e.getMessage(),
+                                    Toast.LENGTH_SHORT).show();
+                        });
+            });
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        handler.removeCallbacks(ticketExpired);
+        if (ticketListener != null) ticketListener.remove();
+        ticketListener = null;
+        // Sin el diálogo nadie espera el resultado: la entrada no debe quedar para otro
+        if (searching && uid != null) {
+            repo.leaveMatchQueue(uid, v -> {
+            }, e -> {
             });
         }
+        searching = false;
+    }
+
+    private void onTicketExpired() {
+        if (!searching || uid == null || !isAdded()) return;
+        repo.leaveMatchQueue(uid, v -> {
+        }, e -> {
+        });
+        Toast.makeText(getContext(), "No apareció rival, probá de nuevo", Toast.LENGTH_SHORT).show();
     }
 
     private void updateCodeVisibility(boolean isPublic,
@@ -151,6 +231,36 @@ public class CreatorFragment extends DialogFragment {
         }
     }
 
+    // Si el código choca con el de otra sala abierta se genera otro y se reintenta
+    private void createRoom(boolean isPublic,
+                            boolean isRace,
+                            @Nullable String code,
+                            @Nullable TextView tvCodeValue,
+                            int attemptsLeft) {
+        repo.createRoomFromOptions(
+                uid,
+                isPublic,
+                isRace,
+                code,
+                aVoid -> {
+                    Toast.makeText(getContext(), "Sala creada", Toast.LENGTH_SHORT).show();
+                    dismiss();
+                },
+                e -> {
+                    if (!isAdded()) return;
+                    if (e instanceof FirestoreRepo.CodeTakenException && attemptsLeft > 1) {
+                        String next = generateCode();
+                        if (tvCodeValue != null) tvCodeValue.setText(next);
+                        createRoom(isPublic, isRace, next, tvCodeValue, attemptsLeft - 1);
+                        return;
+                    }
+                    Toast.makeText(getContext(),
+                            e.getMessage() == null ? "Error al crear sala" : e.getMessage(),
+                            Toast.LENGTH_SHORT).show();
+                }
+        );
+    }
+
     private String generateCode() {
         String chars = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789";
         Random r = new Random();
@@ -2,8 +2,11 @@ package com.example.podovs;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.InputType;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -26,19 +29,24 @@ import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 public class EventActivity extends AppCompatActivity {
 
+    private static final String TAG = "EventActivity";
+
     private FirebaseFirestore db;
+    private FirestoreRepo repo;
     private String uid;
 
     // Evento activo
@@ -49,6 +57,7 @@ public class EventActivity extends AppCompatActivity {
     private TextView tvEventGoal;
     private TextView tvEventReward;
     private TextView tvEventCountdown;
+    private TextView tvEventGlobal;
     private ImageView ivEventBoss;
 
     // UI salas
@@ -59,8 +68,14 @@ public class EventActivity extends AppCompatActivity {
 
     // Listeners
     private ListenerRegistration eventListener;
+    // Vuelve a resolver el evento cuando termina el actual o empieza el próximo
+    private final Handler eventHandler = new Handler(Looper.getMainLooper());
+    private final Runnable eventChange = this::startActiveEventListener;
+    // Intentos programados de crear el versus cooperativo, por sala
+    private final Map<String, Runnable> coopTurns = new HashMap<>();
     private ListenerRegistration roomsListener;
     private ListenerRegistration coopVsListener;
+    private ListenerRegistration coopProgressListener;
 
     // Estado de salas
     private EventRoom myRoom = null;
@@ -68,6 +83,8 @@ public class EventActivity extends AppCompatActivity {
 
     // Versus cooperativo (evento)
     private CoopVersusInfo myCoopVersus = null;
+    private String coopProgressVsId = null;
+    private QuerySnapshot coopProgress = null;
 
     // -------- Salas de evento --------
     static class EventRoom {
@@ -95,6 +112,7 @@ public class EventActivity extends AppCompatActivity {
         setContentView(R.layout.activity_event);
 
         db = FirebaseFirestore.getInstance();
+        repo = new FirestoreRepo();
 
         uid = getSharedPreferences("session", MODE_PRIVATE).getString("uid", null);
         if (uid == null || uid.isEmpty()) {
@@ -108,6 +126,7 @@ public class EventActivity extends AppCompatActivity {
         tvEventGoal = findViewById(R.id.tvEventGoal);
         tvEventReward = findViewById(R.id.tvEventReward);
         tvEventCountdown = findViewById(R.id.tvEventCountdown);
+        tvEventGlobal = findViewById(R.id.tvEventGlobal);
         ivEventBoss = findViewById(R.id.ivEventBoss);
 
         containerMyEventRoom = findViewById(R.id.containerMyEventRoom);
@@ -151,8 +170,11 @@ public class EventActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         if (eventListener != null) eventListener.remove();
+        eventHandler.removeCallbacks(eventChange);
+        cancelCoopTurns(Collections.emptySet());
         if (roomsListener != null) roomsListener.remove();
         if (coopVsListener != null) coopVsListener.remove();
+        stopCoopProgressListener();
     }
 
     // =========================================================
@@ -160,42 +182,33 @@ public class EventActivity extends AppCompatActivity {
     // =========================================================
     private void startActiveEventListener() {
         if (eventListener != null) eventListener.remove();
+        eventHandler.removeCallbacks(eventChange);
+
+        // Lo último conocido se muestra enseguida; la consulta lo confirma o lo reemplaza
+        DocumentSnapshot cached = FirestoreRepo.peekCurrentEvent();
+        if (cached != null) {
+            handleEventDoc(cached);
+        } else if (currentEventId != null) {
+            showNoEvent();
+        }
 
-        eventListener = db.collection("events")
-                .orderBy("ev_startAt", Query.Direction.DESCENDING)
-                .addSnapshotListener((qs, err) -> {
-                    if (err != null || qs == null) return;
-
-                    if (qs.isEmpty()) {
-                        showNoEvent();
-                        return;
-                    }
-
-                    long now = System.currentTimeMillis();
-                    DocumentSnapshot active = null;
-
-                    for (DocumentSnapshot d : qs.getDocuments()) {
-                        Timestamp tsStart = d.getTimestamp("ev_startAt");
-                        Timestamp tsEnd = d.getTimestamp("ev_endAt");
-
-                        long startMs = tsStart != null ? tsStart.toDate().getTime() : Long.MIN_VALUE;
-                        long endMs = tsEnd != null ? tsEnd.toDate().getTime() : Long.MAX_VALUE;
-
-                        if (now >= startMs && now <= endMs) {
-                            active = d;
-                            break;
-                        }
-                    }
+        eventListener = repo.listenActiveEvent(active -> {
+            if (active.event == null) {
+                showNoEvent();
+            } else {
+                handleEventDoc(active.event);
+            }
 
-                    if (active == null) {
-                        showNoEvent();
-                    } else {
-                        handleEventDoc(active);
-                    }
-                });
+            eventHandler.removeCallbacks(eventChange);
+            if (active.nextChangeMs > 0L) {
+                long delay = Math.max(0L, active.nextChangeMs - System.currentTimeMillis()) + 1_000L;
+                eventHandler.postDelayed(eventChange, delay);
+            }
+        });
     }
 
     private void handleEventDoc(@NonNull DocumentSnapshot evt) {
+        boolean sameEvent = evt.getId().equals(currentEventId) && roomsListener != null;
         currentEventId = evt.getId();
 
         String name = evt.getString("ev_title");
@@ -253,17 +266,39 @@ public class EventActivity extends AppCompatActivity {
             ivEventBoss.setImageResource(R.drawable.default_avatar);
         }
 
-        startRoomsListenerForEvent(currentEventId);
-        startCoopVersusListenerForEvent(currentEventId);
+        bindEventTotal(currentEventId);
+
+        // Mismo evento (caché y después servidor): los listeners de salas ya están andando
+        if (!sameEvent) {
+            startRoomsListenerForEvent(currentEventId);
+            startCoopVersusListenerForEvent(currentEventId);
+        }
         updateCreateButtonState();
     }
 
+    // Total de todos los equipos: primero lo que haya en memoria, después los shards
+    private void bindEventTotal(@NonNull String eventId) {
+        long cached = FirestoreRepo.peekEventTotalSteps(eventId);
+        if (cached >= 0L) setEventTotal(cached);
+        repo.loadEventTotalSteps(eventId,
+                total -> {
+                    if (eventId.equals(currentEventId)) setEventTotal(total);
+                },
+                e -> Log.w(TAG, "total evento: " + e.getMessage()));
+    }
+
+    private void setEventTotal(long total) {
+        tvEventGlobal.setText(String.format(Locale.getDefault(),
+                "Entre todos: %,d pasos", total));
+    }
+
     private void showNoEvent() {
         currentEventId = null;
         tvEventTitle.setText("Sin evento activo");
         tvEventGoal.setText("Meta del evento: -");
         tvEventReward.setText("Recompensa: -");
         tvEventCountdown.setText("Tiempo restante: -");
+        tvEventGlobal.setText("Entre todos: -");
         ivEventBoss.setImageResource(R.drawable.default_avatar);
 
         if (roomsListener != null) {
@@ -274,6 +309,8 @@ public class EventActivity extends AppCompatActivity {
             coopVsListener.remove();
             coopVsListener = null;
         }
+        stopCoopProgressListener();
+        cancelCoopTurns(Collections.emptySet());
 
         myRoom = null;
         otherRooms.clear();
@@ -315,6 +352,7 @@ public class EventActivity extends AppCompatActivity {
     private void rebuildEventRoomsFromSnapshot(@NonNull QuerySnapshot qs) {
         myRoom = null;
         otherRooms.clear();
+        Set<String> fullRooms = new HashSet<>();
 
         for (DocumentSnapshot d : qs.getDocuments()) {
             EventRoom r = new EventRoom();
@@ -349,17 +387,23 @@ public class EventActivity extends AppCompatActivity {
                 otherRooms.add(r);
             }
 
-            // Si la sala llegó a 4 jugadores, intentamos crear el VS cooperativo
-            if (r.players.size() >= 4) {
+            // Si la sala llegó a 4 jugadores, se crea el VS cooperativo (un solo escritor)
+            if (r.players.size() >= FirestoreRepo.COOP_PLAYERS) {
+                fullRooms.add(r.id);
                 maybeCreateCoopVersus(r);
             }
         }
+        // Salas que se vaciaron o ya se convirtieron en versus: no queda nada por intentar
+        cancelCoopTurns(fullRooms);
     }
 
     private void rebuildCoopVersusFromSnapshot(@NonNull QuerySnapshot qs) {
         myCoopVersus = null;
 
-        if (qs.isEmpty()) return;
+        if (qs.isEmpty()) {
+            stopCoopProgressListener();
+            return;
+        }
 
         // Si por algún motivo hubiera más de uno, agarramos el más nuevo
         DocumentSnapshot chosen = qs.getDocuments().get(0);
@@ -392,23 +436,51 @@ public class EventActivity extends AppCompatActivity {
             }
         }
 
-        Object progObj = chosen.get("ver_progress");
-        if (progObj instanceof Map) {
-            Map<?, ?> m = (Map<?, ?>) progObj;
-            for (String pid : info.players) {
-                long steps = 0L;
-                Object v = m.get(pid);
-                if (v instanceof Map) {
-                    Object st = ((Map<?, ?>) v).get("steps");
-                    if (st instanceof Number) steps = ((Number) st).longValue();
-                }
-                info.stepsByPlayer.put(pid, steps);
-            }
+        // Con progress/{uid} el documento del versus no cambia en cada push:
+        // los pasos llegan por un listener aparte sobre la subcolección
+        QuerySnapshot progressDocs = null;
+        if (FirestoreRepo.usesProgressDocs(chosen)) {
+            startCoopProgressListener(info.id);
+            progressDocs = coopProgress;
+        } else {
+            stopCoopProgressListener();
         }
+        fillStepsByPlayer(info, FirestoreRepo.stepsByPlayer(chosen, progressDocs));
 
         myCoopVersus = info;
     }
 
+    private void fillStepsByPlayer(@NonNull CoopVersusInfo info, @NonNull Map<String, Long> steps) {
+        info.stepsByPlayer.clear();
+        for (String pid : info.players) {
+            Long v = steps.get(pid);
+            info.stepsByPlayer.put(pid, v == null ? 0L : v);
+        }
+    }
+
+    private void startCoopProgressListener(@NonNull String versusId) {
+        if (versusId.equals(coopProgressVsId) && coopProgressListener != null) return;
+        stopCoopProgressListener();
+        coopProgressVsId = versusId;
+        coopProgressListener = repo.listenVersusProgress(versusId, (qs, err) -> {
+            if (err != null || qs == null) return;
+            coopProgress = qs;
+            if (myCoopVersus != null && versusId.equals(myCoopVersus.id)) {
+                fillStepsByPlayer(myCoopVersus, FirestoreRepo.stepsByPlayer(qs));
+                renderRooms();
+            }
+            // El equipo avanzó: el total global se relee si el de memoria ya es viejo
+            if (currentEventId != null) bindEventTotal(currentEventId);
+        });
+    }
+
+    private void stopCoopProgressListener() {
+        if (coopProgressListener != null) coopProgressListener.remove();
+        coopProgressListener = null;
+        coopProgressVsId = null;
+        coopProgress = null;
+    }
+
     private long getCreatedAtMillis(@NonNull DocumentSnapshot d) {
         Object cObj = d.get("ver_createdAt");
         if (cObj instanceof Timestamp) {
@@ -420,90 +492,32 @@ public class EventActivity extends AppCompatActivity {
     }
 
     // Crea el versus cooperativo para una sala llena (4 jugadores) si aún no existe
+    // Un solo escritor por sala llena: primero el uid más chico y, si la sala sigue ahí,
+    // los demás de a uno cada COOP_FALLBACK_MS. El resto espera el versus en coopVsListener.
     private void maybeCreateCoopVersus(@NonNull EventRoom room) {
-        if (currentEventId == null) return;
+        if (currentEventId == null || coopTurns.containsKey(room.id)) return;
+        int rank = FirestoreRepo.coopCreatorRank(room.players, uid);
+        if (rank < 0) return;
 
         final String eventId = currentEventId;
         final String roomId = room.id;
+        Runnable turn = () -> repo.createCoopVersusFromRoom(eventId, roomId,
+                // Creado o no, el versus llega por coopVsListener; las cifras van a getCoopCreateStats
+                out -> { },
+                e -> {
+                    // Se libera el turno: el próximo snapshot lo vuelve a programar
+                    coopTurns.remove(roomId);
+                    Log.w(TAG, "coop " + roomId + ": turno=" + rank + " abortada: " + e.getMessage());
+                });
+        coopTurns.put(roomId, turn);
+        eventHandler.postDelayed(turn, rank * FirestoreRepo.COOP_FALLBACK_MS);
+    }
 
-        db.runTransaction(tr -> {
-            DocumentSnapshot roomSnap =
-                    tr.get(db.collection("rooms").document(roomId));
-
-            if (!roomSnap.exists()) return null;
-
-            Boolean finished = roomSnap.getBoolean("roo_finished");
-            Boolean vsCreated = roomSnap.getBoolean("roo_vsCreated");
-
-            // si la sala ya está terminada o ya tiene VS creado, no hacemos nada
-            if (finished != null && finished) return null;
-            if (vsCreated != null && vsCreated) return null;
-
-            // jugadores actuales de la sala
-            List<String> players = new ArrayList<>();
-            Object rawPlayers = roomSnap.get("roo_players");
-            if (rawPlayers instanceof List) {
-                for (Object o : (List<?>) rawPlayers) {
-                    if (o instanceof String) players.add((String) o);
-                }
-            }
-
-            // solo creamos el VS cuando hay 4 jugadores
-            if (players.size() < 4) return null;
-
-            // leemos el evento
-            DocumentSnapshot eventSnap =
-                    tr.get(db.collection("events").document(eventId));
-            if (!eventSnap.exists()) return null;
-
-            long targetSteps = 0L;
-            Object tObj = eventSnap.get("ev_targetSteps");
-            if (tObj instanceof Number) targetSteps = ((Number) tObj).longValue();
-
-            long rewardCoins = 0L;
-            Object rObj = eventSnap.get("ev_rewardCoins");
-            if (rObj instanceof Number) rewardCoins = ((Number) rObj).longValue();
-
-            String ownerUid = roomSnap.getString("roo_user");
-            if ((ownerUid == null || ownerUid.isEmpty()) && !players.isEmpty()) {
-                ownerUid = players.get(0);
-            }
-
-            Map<String, Object> vsData = new HashMap<>();
-            vsData.put("ver_owner", ownerUid);
-            vsData.put("ver_players", players);
-            vsData.put("ver_type", false); // no importa para coop
-            vsData.put("ver_targetSteps", targetSteps);
-            vsData.put("ver_days", 0L);
-            vsData.put("ver_createdAt", FieldValue.serverTimestamp());
-            vsData.put("ver_finished", false);
-            vsData.put("ver_isEvent", true);
-            vsData.put("ver_eventId", eventId);
-            vsData.put("ver_rewardCoins", rewardCoins);
-            vsData.put("ver_roomId", roomId);
-
-            String today = todayCode();
-            Map<String, Object> progress = new HashMap<>();
-            for (String pid : players) {
-                Map<String, Object> p = new HashMap<>();
-                p.put("steps", 0L);
-                p.put("deviceTotal", 0L);
-                p.put("joinedAt", FieldValue.serverTimestamp());
-                p.put("lastUpdate", FieldValue.serverTimestamp());
-                p.put("dayCode", today);
-                progress.put(pid, p);
-            }
-            vsData.put("ver_progress", progress);
-
-            com.google.firebase.firestore.DocumentReference vsRef =
-                    db.collection("versus").document();
-            tr.set(vsRef, vsData);
-
-            // BORRAMOS la room cuando se crea el versus
-            tr.delete(roomSnap.getReference());
-
-            return null;
-        });
+    private void cancelCoopTurns(@NonNull Set<String> keep) {
+        for (String roomId : new ArrayList<>(coopTurns.keySet())) {
+            if (keep.contains(roomId)) continue;
+            eventHandler.removeCallbacks(coopTurns.remove(roomId));
+        }
     }
 
     // =================== RENDER DE UI ===================
@@ -511,6 +525,7 @@ public class EventActivity extends AppCompatActivity {
     private void renderRooms() {
         containerMyEventRoom.removeAllViews();
         containerOtherEventRooms.removeAllViews();
+        fetchMissingNames();
 
         if (myCoopVersus != null) {
             containerMyEventRoom.addView(makeCoopVersusCard(myCoopVersus));
@@ -540,6 +555,26 @@ public class EventActivity extends AppCompatActivity {
         }
     }
 
+    // Nombres de los jugadores visibles que todavía no están en el cache compartido
+    private void fetchMissingNames() {
+        Set<String> missing = new HashSet<>();
+        if (myCoopVersus != null) {
+            for (String pid : myCoopVersus.players) {
+                if (repo.peekUserSummary(pid) == null) missing.add(pid);
+            }
+        } else {
+            for (EventRoom r : otherRooms) {
+                if (r.ownerId != null && repo.peekUserSummary(r.ownerId) == null) missing.add(r.ownerId);
+            }
+        }
+        if (missing.isEmpty()) return;
+        repo.loadUserSummaries(missing, summaries -> {
+            // Vacío = falló la consulta: no se vuelve a dibujar para no entrar en loop
+            if (summaries.isEmpty() || isFinishing() || isDestroyed()) return;
+            renderRooms();
+        });
+    }
+
     private void updateCreateButtonState() {
         boolean canCreate = currentEventId != null
                 && myRoom == null
@@ -575,6 +610,7 @@ public class EventActivity extends AppCompatActivity {
         Map<String, Object> data = new HashMap<>();
         data.put("roo_user", uid);
         data.put("roo_eventId", currentEventId);
+        data.put("roo_isEvent", true);
         data.put("roo_public", isPublic);
         data.put("roo_code", code);
         data.put("roo_createdAt", FieldValue.serverTimestamp());
@@ -845,7 +881,7 @@ public class EventActivity extends AppCompatActivity {
             TextView tvRow = new TextView(this);
             tvRow.setText(String.format(Locale.getDefault(),
                     "%s · %,d pasos",
-                    buildHandle(pid), steps));
+                    displayName(pid), steps));
             tvRow.setTextSize(13);
             tvRow.setTextColor(0xFF111827);
             tvRow.setPadding(0, dp(2), 0, dp(2));
@@ -875,7 +911,7 @@ public class EventActivity extends AppCompatActivity {
         TextView tvTitle = new TextView(this);
         String ownerHandle = (r.ownerId == null)
                 ? "Sala"
-                : "Sala de " + buildHandle(r.ownerId);
+                : "Sala de " + displayName(r.ownerId);
         tvTitle.setText(ownerHandle);
         tvTitle.setTextSize(15);
         tvTitle.setTextColor(0xFF111827);
@@ -946,16 +982,17 @@ public class EventActivity extends AppCompatActivity {
         return (int) (v * getResources().getDisplayMetrics().density);
     }
 
-    private String todayCode() {
-        return new java.text.SimpleDateFormat("yyyyMMdd", java.util.Locale.getDefault())
-                .format(new java.util.Date());
-    }
-
     @Nullable
     private static String asString(Object o) {
         return (o instanceof String && !((String) o).isEmpty()) ? (String) o : null;
     }
 
+    @NonNull
+    private String displayName(@NonNull String playerUid) {
+        FirestoreRepo.UserSummary s = repo.peekUserSummary(playerUid);
+        return s != null ? s.nombre : buildHandle(playerUid);
+    }
+
     @NonNull
     private String buildHandle(@NonNull String ownerId) {
         String shortId = ownerId;
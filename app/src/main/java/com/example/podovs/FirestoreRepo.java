@@ -1,5 +1,7 @@
 package com.example.podovs;
 
+import android.content.Context;
+
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -12,21 +14,30 @@ import com.google.firebase.Timestamp;
 import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.AggregateField;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.Blob;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
 import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Source;
 import com.google.firebase.firestore.Transaction;
 import com.google.firebase.firestore.WriteBatch;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -46,12 +57,40 @@ public class FirestoreRepo {
 
     private static final long VS_WIN_COINS_BASE = 0L;
 
+    // Metas posibles de un versus nuevo
+    private static final int[] RACE_TARGETS = {10000, 20000, 30000};
+    private static final int[] MARATHON_DAYS = {3, 4, 5};
+
+    // Progreso por jugador en versus/{id}/progress/{uid} en lugar de ver_progress.<uid>
+    static final String PROGRESS_COL = "progress";
+    static final String PROGRESS_MODE_DOCS = "docs";
+
     private static final String[] STARTER_IDS = {
             "cos_id_1", "cos_id_2", "cos_id_3", "cos_id_4", "cos_id_5", "cos_id_6", "cos_id_7",
             "cos_id_13", "cos_id_14", "cos_id_15"
     };
     private static final String DEFAULT_SKIN_ID = "cos_id_2";
 
+    // Cola write-behind compartida por todas las instancias del repo
+    private static WriteBehindQueue writeBehind;
+    // Scheduler único de pushes de pasos a versus
+    private static VersusPushScheduler versusPush;
+    // Listener compartido de "mis versus activos"
+    private static ActiveVersusHub activeVersusHub;
+    // Nombre / nivel / equipado de otros usuarios, para toda la app
+    private static UserSummaryCache userSummaries;
+    // Cierre de maratones al vencer
+    private static MarathonDeadlineScheduler marathonDeadlines;
+    // Último mayor_pasos_dia conocido por uid (para no leer en cada flush)
+    private static final Map<String, Long> knownMaxDaily = new HashMap<>();
+    // km_total conocido por uid; mismo lock que knownMaxDaily
+    private static final Map<String, Double> knownKmTotal = new HashMap<>();
+    // Bucket del histograma en el que está contado cada uid (-1 = todavía no contado,
+    // HIST_ASSIGNING = primer bucket asignándose en transacción)
+    private static final Map<String, Integer> knownHistBucket = new HashMap<>();
+    // Tabla semanal conocida por "weekKey_uid" ("" = buscada y sin tabla)
+    private static final Map<String, String> knownRankingId = new HashMap<>();
+
     public FirestoreRepo() {
         db = FirebaseFirestore.getInstance();
         auth = FirebaseAuth.getInstance();
@@ -74,6 +113,11 @@ public class FirestoreRepo {
         return db.collection("rooms");
     }
 
+    // room_codes/{CÓDIGO} -> sala privada que lo usa; mantiene el código único
+    private CollectionReference roomCodesCol() {
+        return db.collection("room_codes");
+    }
+
     private CollectionReference versusCol() {
         return db.collection("versus");
     }
@@ -86,6 +130,14 @@ public class FirestoreRepo {
         return versusCol().document(id);
     }
 
+    private CollectionReference timelineCol(@NonNull String versusId) {
+        return versusDoc(versusId).collection(TIMELINE_COL);
+    }
+
+    private CollectionReference progressCol(@NonNull String versusId) {
+        return versusDoc(versusId).collection(PROGRESS_COL);
+    }
+
     private long currentWeekKey() {
         Calendar cal = Calendar.getInstance();
         cal.setTimeInMillis(System.currentTimeMillis());
@@ -242,7 +294,29 @@ public class FirestoreRepo {
             up.put("usu_stats.km_total", nuevoTot);
             tr.update(ref, up);
             return null;
-        }).addOnSuccessListener(ok).addOnFailureListener(err);
+        }).addOnSuccessListener(v -> {
+            syncRankingScore(uid, Math.max(0.0, km));
+            ok.onSuccess(v);
+        }).addOnFailureListener(err);
+    }
+
+    // Un km_semana absoluto (reset de semana) pisa el puntaje de la tabla actual si ya existe
+    private void syncRankingScore(@NonNull String uid, double kmSemana) {
+        long weekKey = currentWeekKey();
+        rankingsCol()
+                .whereEqualTo("ran_weekKey", weekKey)
+                .whereArrayContains("ran_players", uid)
+                .limit(1)
+                .get()
+                .addOnSuccessListener(qs -> {
+                    if (qs.isEmpty()) {
+                        rememberRanking(weekKey, uid, "");
+                        return;
+                    }
+                    DocumentSnapshot d = qs.getDocuments().get(0);
+                    rememberRanking(weekKey, uid, d.getId());
+                    d.getReference().update("ran_scores." + uid + ".km", kmSemana);
+                });
     }
 
     private String todayCode() {
@@ -250,42 +324,197 @@ public class FirestoreRepo {
                 .format(new java.util.Date());
     }
 
-    public void addKmDelta(@NonNull String uid, double kmDelta,
-                           @NonNull OnSuccessListener<Void> ok,
-                           @NonNull OnFailureListener err) {
-        if (kmDelta <= 0) {
-            ok.onSuccess(null);
-            return;
+    // ---------- Write-behind de users/{uid} ----------
+
+    public static class WriteBehindStats {
+        public final long enqueued;
+        public final long flushes;
+        public final long coalesced;
+        public final long fieldsWritten;
+        public final long requeued;
+
+        public WriteBehindStats(long enqueued, long flushes, long coalesced, long fieldsWritten, long requeued) {
+            this.enqueued = enqueued;
+            this.flushes = flushes;
+            this.coalesced = coalesced;
+            this.fieldsWritten = fieldsWritten;
+            this.requeued = requeued;
         }
-        DocumentReference ref = userDoc(uid);
-        db.runTransaction((Transaction.Function<Void>) tr -> {
-            DocumentSnapshot s = tr.get(ref);
-            Double curSemD = s.getDouble("usu_stats.km_semana");
-            Double curTotD = s.getDouble("usu_stats.km_total");
-            double curSem = curSemD == null ? 0.0 : curSemD;
-            double curTot = curTotD == null ? 0.0 : curTotD;
-            double nuevoSem = Math.max(0.0, curSem + kmDelta);
-            double nuevoTot = Math.max(0.0, curTot + kmDelta);
-            if (nuevoTot < nuevoSem) nuevoTot = nuevoSem;
-            Map<String, Object> up = new HashMap<>();
-            up.put("usu_stats.km_semana", nuevoSem);
-            up.put("usu_stats.km_total", nuevoTot);
-            tr.update(ref, up);
-            return null;
-        }).addOnSuccessListener(ok).addOnFailureListener(err);
     }
 
-    public void updateMayorPasosDiaIfGreater(@NonNull String uid, long candidate) {
-        DocumentReference ref = userDoc(uid);
-        db.runTransaction((Transaction.Function<Void>) tr -> {
-            DocumentSnapshot s = tr.get(ref);
-            Object v = s.get("usu_stats.mayor_pasos_dia");
-            long cur = (v instanceof Number) ? ((Number) v).longValue() : 0L;
-            if (candidate > cur) tr.update(ref, "usu_stats.mayor_pasos_dia", candidate);
-            return null;
+    private WriteBehindQueue writeBehind() {
+        synchronized (FirestoreRepo.class) {
+            if (writeBehind == null) writeBehind = new WriteBehindQueue(this::commitPending);
+            return writeBehind;
+        }
+    }
+
+    /**
+     * Suma km a km_semana y km_total sin transacción; se escribe en el próximo flush.
+     */
+    public void queueKmDelta(@NonNull String uid, double kmDelta) {
+        writeBehind().addKm(uid, kmDelta);
+    }
+
+    public void queueMayorPasosDia(@NonNull String uid, long candidate) {
+        writeBehind().offerMaxDailySteps(uid, candidate);
+    }
+
+    public void flushPendingWrites() {
+        writeBehind().flushAll();
+    }
+
+    public WriteBehindStats getWriteBehindStats() {
+        WriteBehindQueue q = writeBehind();
+        return new WriteBehindStats(q.getEnqueued(), q.getFlushes(), q.getCoalesced(),
+                q.getFieldsWritten(), q.getRequeued());
+    }
+
+    private void commitPending(@NonNull String uid, @NonNull WriteBehindQueue.Pending p) {
+        Long known;
+        Double knownTotal;
+        synchronized (knownMaxDaily) {
+            known = knownMaxDaily.get(uid);
+            knownTotal = knownKmTotal.get(uid);
+        }
+        if ((p.maxDailySteps >= 0L && known == null) || (p.kmDelta > 0.0 && knownTotal == null)) {
+            // Única lectura por uid y proceso: a partir de acá el máximo y el km_total se llevan en memoria
+            userDoc(uid).get()
+                    .addOnSuccessListener(s -> {
+                        Object v = s.get("usu_stats.mayor_pasos_dia");
+                        long cur = (v instanceof Number) ? ((Number) v).longValue() : 0L;
+                        Object t = s.get("usu_stats.km_total");
+                        double tot = (t instanceof Number) ? ((Number) t).doubleValue() : 0.0;
+                        Object hb = s.get("usu_stats.hist_bucket");
+                        int bucket = (hb instanceof Number) ? ((Number) hb).intValue() : -1;
+                        // Si otro flush ya cargó (y adelantó) los valores en memoria, ganan esos
+                        synchronized (knownMaxDaily) {
+                            if (!knownMaxDaily.containsKey(uid)) knownMaxDaily.put(uid, cur);
+                            if (!knownKmTotal.containsKey(uid)) {
+                                knownKmTotal.put(uid, tot);
+                                knownHistBucket.put(uid, bucket);
+                            }
+                        }
+                        commitPending(uid, p);
+                    })
+                    // Igual que un commit fallido: sin valores en memoria, el próximo flush relee
+                    .addOnFailureListener(e -> writeBehind().requeue(uid, p));
+            return;
+        }
+
+        long weekKey = currentWeekKey();
+        String rankingId = null;
+        if (p.kmDelta > 0.0) {
+            synchronized (knownRankingId) {
+                rankingId = knownRankingId.get(weekKey + "_" + uid);
+            }
+            if (rankingId == null) {
+                // Única búsqueda por semana y proceso de la tabla donde sumar los km
+                rankingsCol()
+                        .whereEqualTo("ran_weekKey", weekKey)
+                        .whereArrayContains("ran_players", uid)
+                        .limit(1)
+                        .get()
+                        .addOnCompleteListener(t -> {
+                            String id = "";
+                            if (t.isSuccessful() && t.getResult() != null && !t.getResult().isEmpty()) {
+                                id = t.getResult().getDocuments().get(0).getId();
+                            }
+                            rememberRanking(weekKey, uid, id);
+                            commitPending(uid, p);
+                        });
+                return;
+            }
+        }
+
+        Map<String, Object> up = new HashMap<>();
+        if (p.kmDelta > 0.0) {
+            up.put("usu_stats.km_semana", FieldValue.increment(p.kmDelta));
+            up.put("usu_stats.km_total", FieldValue.increment(p.kmDelta));
+        }
+        if (p.maxDailySteps >= 0L && known != null && p.maxDailySteps > known) {
+            up.put("usu_stats.mayor_pasos_dia", p.maxDailySteps);
+            synchronized (knownMaxDaily) {
+                knownMaxDaily.put(uid, p.maxDailySteps);
+            }
+        }
+        if (up.isEmpty()) return;
+
+        WriteBatch batch = db.batch();
+
+        // Histograma de km_total: solo se escribe cuando el usuario cambia de bucket,
+        // en el mismo batch que usu_stats.hist_bucket para que el conteo no se desfase.
+        // El total y el bucket en memoria se adelantan al armar el batch: dos flushes
+        // superpuestos (o uno pendiente offline) no pueden mover el mismo -1/+1 dos veces
+        int oldBucket = -1;
+        int newBucket = -1;
+        boolean assignFirst = false;
+        double newTotal = -1.0;
+        if (p.kmDelta > 0.0) {
+            synchronized (knownMaxDaily) {
+                Double cur = knownKmTotal.get(uid);
+                if (cur != null) {
+                    newTotal = cur + p.kmDelta;
+                    knownKmTotal.put(uid, newTotal);
+                    Integer oldBucketI = knownHistBucket.get(uid);
+                    oldBucket = oldBucketI == null ? -1 : oldBucketI;
+                    if (oldBucket == -1) {
+                        // El primer +1 compite con HistogramBackfillJob: va en transacción después
+                        knownHistBucket.put(uid, HIST_ASSIGNING);
+                        assignFirst = true;
+                    } else if (oldBucket >= 0) {
+                        int bucket = histBucket(newTotal);
+                        if (bucket != oldBucket) {
+                            knownHistBucket.put(uid, bucket);
+                            newBucket = bucket;
+                        }
+                    }
+                }
+            }
+        }
+        if (newBucket >= 0) {
+            Map<String, Object> counts = new HashMap<>();
+            counts.put(String.valueOf(newBucket), FieldValue.increment(1));
+            counts.put(String.valueOf(oldBucket), FieldValue.increment(-1));
+            Map<String, Object> hist = new HashMap<>();
+            hist.put("hist_buckets", counts);
+            batch.set(histogramDoc(), hist, SetOptions.merge());
+            up.put("usu_stats.hist_bucket", newBucket);
+        }
+
+        batch.update(userDoc(uid), up);
+        final String scoreRankingId = rankingId;
+        final double committedTotal = newTotal;
+        final boolean assignBucket = assignFirst;
+        batch.commit().addOnSuccessListener(v -> {
+            if (assignBucket) assignHistBucket(uid);
+            // Mismo delta sobre el puntaje desnormalizado de la tabla semanal. Va aparte del
+            // batch: si la tabla ya se liquidó, el update falla sin perder los km del usuario
+            if (scoreRankingId != null && !scoreRankingId.isEmpty()) {
+                rankingsCol().document(scoreRankingId)
+                        .update("ran_scores." + uid + ".km", FieldValue.increment(p.kmDelta));
+            }
+            if (p.kmDelta > 0.0 && committedTotal >= 0.0) {
+                maybeUpdateGlobalLeaderboard(uid, committedTotal);
+            }
+        }).addOnFailureListener(e -> {
+            // Lo adelantado en memoria ya no vale: el próximo flush relee el usuario
+            synchronized (knownMaxDaily) {
+                knownMaxDaily.remove(uid);
+                knownKmTotal.remove(uid);
+                knownHistBucket.remove(uid);
+            }
+            // Los deltas vuelven a la cola y salen con el próximo flush
+            writeBehind().requeue(uid, p);
         });
     }
 
+    private static void rememberRanking(long weekKey, @NonNull String uid, @NonNull String rankingId) {
+        synchronized (knownRankingId) {
+            knownRankingId.put(weekKey + "_" + uid, rankingId);
+        }
+    }
+
     // ---------- Dificultad / Metas ----------
     private double difMultiplier(@NonNull String dif) {
         String d = dif.toLowerCase(Locale.ROOT);
@@ -657,24 +886,463 @@ public class FirestoreRepo {
         }).addOnSuccessListener(ok).addOnFailureListener(err);
     }
 
+    // ========= MIS VERSUS ACTIVOS (LISTENER COMPARTIDO) =========
+
+    public static class ActiveVersusStats {
+        public final int subscribers;
+        public final long snapshots;
+        public final double snapshotsPerMinute;
+
+        public ActiveVersusStats(int subscribers, long snapshots, double snapshotsPerMinute) {
+            this.subscribers = subscribers;
+            this.snapshots = snapshots;
+            this.snapshotsPerMinute = snapshotsPerMinute;
+        }
+    }
+
+    private ActiveVersusHub activeVersusHub() {
+        synchronized (FirestoreRepo.class) {
+            if (activeVersusHub == null) activeVersusHub = new ActiveVersusHub(db);
+            return activeVersusHub;
+        }
+    }
+
+    /**
+     * versus donde participa el uid y que no terminaron. Todos los suscriptores comparten
+     * un solo listener de Firestore; el que llega tarde recibe enseguida el último resultado.
+     */
+    public ListenerRegistration listenMyActiveVersus(@NonNull String uid,
+                                                     @NonNull EventListener<QuerySnapshot> listener) {
+        return activeVersusHub().subscribe(uid, listener);
+    }
+
+    @Nullable
+    public QuerySnapshot peekMyActiveVersus(@NonNull String uid) {
+        return activeVersusHub().peek(uid);
+    }
+
+    public ActiveVersusStats getActiveVersusStats(@NonNull String uid) {
+        ActiveVersusHub h = activeVersusHub();
+        return new ActiveVersusStats(h.getSubscribers(uid), h.getSnapshots(uid),
+                h.getSnapshotsPerMinute(uid));
+    }
+
+    // ========= RESÚMENES DE USUARIO =========
+
+    public static class UserSummary {
+        public final String uid;
+        public final String nombre;
+        public final int nivel;
+        @Nullable
+        public final Map<String, Object> equipped;
+        public final boolean exists;
+
+        public UserSummary(String uid, String nombre, int nivel,
+                           @Nullable Map<String, Object> equipped, boolean exists) {
+            this.uid = uid;
+            this.nombre = nombre;
+            this.nivel = nivel;
+            this.equipped = equipped;
+            this.exists = exists;
+        }
+
+        static UserSummary fromUser(@NonNull DocumentSnapshot s) {
+            Long lvl = s.getLong("usu_nivel");
+            Object eqRaw = s.get("usu_equipped");
+            Map<String, Object> eq = null;
+            if (eqRaw instanceof Map) {
+                //noinspection unchecked
+                eq = (Map<String, Object>) eqRaw;
+            }
+            return new UserSummary(s.getId(), displayName(s.getString("usu_nombre"), s.getId()),
+                    lvl == null ? 1 : lvl.intValue(), eq, true);
+        }
+
+        static UserSummary missing(@NonNull String uid) {
+            return new UserSummary(uid, displayName(null, uid), 1, null, false);
+        }
+    }
+
+    public static class UserSummaryStats {
+        public final long hits;
+        public final long misses;
+        public final long queries;
+        public final long docsRead;
+        public final int size;
+
+        public UserSummaryStats(long hits, long misses, long queries, long docsRead, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.queries = queries;
+            this.docsRead = docsRead;
+            this.size = size;
+        }
+    }
+
+    private UserSummaryCache userSummaries() {
+        synchronized (FirestoreRepo.class) {
+            if (userSummaries == null) userSummaries = new UserSummaryCache(db);
+            return userSummaries;
+        }
+    }
+
+    /**
+     * Resúmenes de varios usuarios: lo que no está en cache sale en consultas de hasta
+     * 30 ids. El mapa solo trae los uids que se pudieron resolver.
+     */
+    public void loadUserSummaries(@NonNull Collection<String> uids,
+                                  @NonNull OnSuccessListener<Map<String, UserSummary>> ok) {
+        userSummaries().load(uids, ok);
+    }
+
+    @Nullable
+    public UserSummary peekUserSummary(@NonNull String uid) {
+        return userSummaries().peek(uid);
+    }
+
+    // Llamar después de cambiar nombre o equipado del propio usuario
+    public void forgetUserSummary(@NonNull String uid) {
+        userSummaries().forget(uid);
+    }
+
+    public UserSummaryStats getUserSummaryStats() {
+        UserSummaryCache c = userSummaries();
+        return new UserSummaryStats(c.getHits(), c.getMisses(), c.getQueries(),
+                c.getDocsRead(), c.getSize());
+    }
+
+    // ========= EVENTO ACTIVO =========
+
+    // Solo eventos que todavía no terminaron (ev_endAt >= ahora), los que terminan antes
+    // primero; con pocos eventos superpuestos alcanza con los primeros ACTIVE_EVENT_SCAN.
+    // Índice simple sobre ev_endAt. Un evento sin ev_endAt no aparece.
+    public static final int ACTIVE_EVENT_SCAN = 5;
+
+    // Último evento vigente visto en este proceso; vale hasta su ev_endAt
+    private static DocumentSnapshot currentEvent;
+    private static long currentEventEndMs = 0L;
+
+    public static class ActiveEvent {
+        @Nullable public final DocumentSnapshot event;
+        // Cuándo hay que volver a resolver: fin del evento o inicio del próximo (0 = nunca)
+        public final long nextChangeMs;
+
+        public ActiveEvent(@Nullable DocumentSnapshot event, long nextChangeMs) {
+            this.event = event;
+            this.nextChangeMs = nextChangeMs;
+        }
+    }
+
+    /**
+     * Evento vigente desde la caché local, o null si no hay o ya terminó.
+     */
+    @Nullable
+    public static DocumentSnapshot peekCurrentEvent() {
+        synchronized (FirestoreRepo.class) {
+            if (currentEvent != null && System.currentTimeMillis() > currentEventEndMs) {
+                currentEvent = null;
+            }
+            return currentEvent;
+        }
+    }
+
+    /**
+     * Resuelve el evento vigente con una consulta acotada. La consulta fija "ahora" al
+     * suscribirse: al llegar nextChangeMs hay que volver a llamar.
+     */
+    public ListenerRegistration listenActiveEvent(@NonNull OnSuccessListener<ActiveEvent> listener) {
+        return db.collection("events")
+                .whereGreaterThanOrEqualTo("ev_endAt", new Timestamp(new Date()))
+                .orderBy("ev_endAt", Query.Direction.ASCENDING)
+                .limit(ACTIVE_EVENT_SCAN)
+                .addSnapshotListener((qs, e) -> {
+                    if (e != null || qs == null) return;
+                    ActiveEvent active = pickActiveEvent(qs, System.currentTimeMillis());
+                    synchronized (FirestoreRepo.class) {
+                        currentEvent = active.event;
+                        currentEventEndMs = active.event == null ? 0L : active.nextChangeMs;
+                    }
+                    listener.onSuccess(active);
+                });
+    }
+
+    @NonNull
+    static ActiveEvent pickActiveEvent(@NonNull QuerySnapshot qs, long now) {
+        List<DocumentSnapshot> docs = qs.getDocuments();
+        long[] starts = new long[docs.size()];
+        long[] ends = new long[docs.size()];
+        for (int i = 0; i < starts.length; i++) {
+            Timestamp tsStart = docs.get(i).getTimestamp("ev_startAt");
+            Timestamp tsEnd = docs.get(i).getTimestamp("ev_endAt");
+            starts[i] = tsStart != null ? tsStart.toDate().getTime() : Long.MIN_VALUE;
+            ends[i] = tsEnd != null ? tsEnd.toDate().getTime() : Long.MAX_VALUE;
+        }
+        EventPick pick = pickActiveEvent(starts, ends, now);
+        return new ActiveEvent(pick.index < 0 ? null : docs.get(pick.index), pick.nextChangeMs);
+    }
+
+    // Resultado de pickActiveEvent sobre las ventanas de los eventos
+    static final class EventPick {
+        final int index;          // -1 = ninguno vigente
+        final long nextChangeMs;  // igual que ActiveEvent.nextChangeMs
+
+        EventPick(int index, long nextChangeMs) {
+            this.index = index;
+            this.nextChangeMs = nextChangeMs;
+        }
+    }
+
+    /**
+     * Entre los que ya empezaron gana el de inicio más reciente, como antes; sin inicio/fin
+     * van Long.MIN_VALUE / Long.MAX_VALUE.
+     */
+    @NonNull
+    static EventPick pickActiveEvent(@NonNull long[] startMs, @NonNull long[] endMs, long now) {
+        int active = -1;
+        long nextStart = Long.MAX_VALUE;
+        for (int i = 0; i < startMs.length; i++) {
+            if (now > endMs[i]) continue;
+            if (now >= startMs[i]) {
+                if (active < 0 || startMs[i] > startMs[active]) active = i;
+            } else if (startMs[i] < nextStart) {
+                nextStart = startMs[i];
+            }
+        }
+        if (active >= 0) {
+            // Si arranca otro antes de que termine este, pasa a ser el vigente
+            return new EventPick(active, Math.min(endMs[active], nextStart));
+        }
+        return new EventPick(-1, nextStart == Long.MAX_VALUE ? 0L : nextStart);
+    }
+
+    // ========= VERSUS COOPERATIVO DE EVENTO =========
+
+    // Cuando una sala de evento llega a COOP_PLAYERS, un solo jugador crea el versus: el de
+    // uid más chico. Si a los COOP_FALLBACK_MS la sala sigue ahí, lo intenta el siguiente en
+    // orden, y así; los demás esperan el versus desde su listener.
+    public static final int COOP_PLAYERS = 4;
+    public static final long COOP_FALLBACK_MS = 20_000L;
+
+    // Métricas (de este proceso)
+    private static long coopCalls = 0L;
+    private static long coopCreated = 0L;
+    private static long coopNoop = 0L;
+    private static long coopRetries = 0L;
+    private static long coopFailures = 0L;
+
+    /**
+     * Turno del jugador para crear el versus (0 = primero), o -1 si no está en la sala.
+     */
+    public static int coopCreatorRank(@NonNull List<String> players, @NonNull String uid) {
+        List<String> sorted = new ArrayList<>(players);
+        Collections.sort(sorted);
+        return sorted.indexOf(uid);
+    }
+
+    public static class CoopCreateOutcome {
+        public final boolean created;
+        // Veces que corrió la transacción: más de 1 = contención con otro escritor
+        public final int runs;
+
+        public CoopCreateOutcome(boolean created, int runs) {
+            this.created = created;
+            this.runs = runs;
+        }
+    }
+
+    public static class CoopCreateStats {
+        public final long calls;
+        public final long created;
+        public final long noop;
+        public final long retries;
+        public final long failures;
+
+        public CoopCreateStats(long calls, long created, long noop, long retries, long failures) {
+            this.calls = calls;
+            this.created = created;
+            this.noop = noop;
+            this.retries = retries;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Crea el versus cooperativo de la sala y la borra, todo en una transacción. No hace nada
+     * si la sala ya no está, está cerrada, ya tiene versus o le faltan jugadores.
+     */
+    public void createCoopVersusFromRoom(@NonNull String eventId,
+                                         @NonNull String roomId,
+                                         @NonNull OnSuccessListener<CoopCreateOutcome> ok,
+                                         @NonNull OnFailureListener err) {
+        final int[] runs = {0};
+        final String today = todayCode();
+        synchronized (FirestoreRepo.class) {
+            coopCalls++;
+        }
+
+        db.runTransaction((Transaction.Function<Boolean>) tr -> {
+            runs[0]++;
+            DocumentSnapshot roomSnap = tr.get(roomsCol().document(roomId));
+            if (!roomSnap.exists()) return false;
+            if (Boolean.TRUE.equals(roomSnap.getBoolean("roo_finished"))) return false;
+            if (Boolean.TRUE.equals(roomSnap.getBoolean("roo_vsCreated"))) return false;
+
+            List<String> players = new ArrayList<>();
+            Object rawPlayers = roomSnap.get("roo_players");
+            if (rawPlayers instanceof List) {
+                for (Object o : (List<?>) rawPlayers) {
+                    if (o instanceof String) players.add((String) o);
+                }
+            }
+            if (players.size() < COOP_PLAYERS) return false;
+
+            DocumentSnapshot eventSnap = tr.get(db.collection("events").document(eventId));
+            if (!eventSnap.exists()) return false;
+
+            String ownerUid = roomSnap.getString("roo_user");
+            if (ownerUid == null || ownerUid.isEmpty()) ownerUid = players.get(0);
+
+            Map<String, Object> vsData = new HashMap<>();
+            vsData.put("ver_owner", ownerUid);
+            vsData.put("ver_players", players);
+            vsData.put("ver_type", false); // no importa para coop
+            vsData.put("ver_targetSteps", longOf(eventSnap.get("ev_targetSteps")));
+            vsData.put("ver_days", 0L);
+            vsData.put("ver_createdAt", FieldValue.serverTimestamp());
+            vsData.put("ver_finished", false);
+            vsData.put("ver_isEvent", true);
+            vsData.put("ver_eventId", eventId);
+            vsData.put("ver_rewardCoins", longOf(eventSnap.get("ev_rewardCoins")));
+            vsData.put("ver_roomId", roomId);
+            // Cada jugador escribe su propio progress/{uid}: 4 jugadores no compiten por un documento
+            vsData.put("ver_progressMode", PROGRESS_MODE_DOCS);
+
+            DocumentReference vsRef = versusCol().document();
+            tr.set(vsRef, vsData);
+            writeInitialProgress(tr, vsRef, players, today);
+
+            // La sala se borra al crear el versus
+            tr.delete(roomSnap.getReference());
+            return true;
+        }).addOnSuccessListener(created -> {
+            synchronized (FirestoreRepo.class) {
+                if (Boolean.TRUE.equals(created)) coopCreated++;
+                else coopNoop++;
+                coopRetries += Math.max(0, runs[0] - 1);
+            }
+            ok.onSuccess(new CoopCreateOutcome(Boolean.TRUE.equals(created), runs[0]));
+        }).addOnFailureListener(e -> {
+            synchronized (FirestoreRepo.class) {
+                coopFailures++;
+                coopRetries += Math.max(0, runs[0] - 1);
+            }
+            err.onFailure(e);
+        });
+    }
+
+    public CoopCreateStats getCoopCreateStats() {
+        synchronized (FirestoreRepo.class) {
+            return new CoopCreateStats(coopCalls, coopCreated, coopNoop, coopRetries, coopFailures);
+        }
+    }
+
+    // ========= PROGRESO GLOBAL DEL EVENTO (CONTADOR REPARTIDO) =========
+
+    // events/{id}/shards/{0..EVENT_SHARDS-1} con sh_steps. Cada push de un equipo suma sus
+    // pasos nuevos en un shard al azar, así el evento banca ~EVENT_SHARDS escrituras por
+    // segundo en vez de una; el total son EVENT_SHARDS lecturas.
+    public static final int EVENT_SHARDS = 10;
+    // El total del encabezado se vuelve a leer como mucho una vez por este intervalo
+    public static final long EVENT_TOTAL_MAX_AGE_MS = 60_000L;
+
+    private static final Map<String, long[]> eventTotals = new HashMap<>(); // id -> {total, leídoEn}
+    private static final Random shardRandom = new Random();
+
+    private CollectionReference eventShardsCol(@NonNull String eventId) {
+        return db.collection("events").document(eventId).collection("shards");
+    }
+
+    // Escritura ciega (sin lectura) para no sumar contención a la transacción del push
+    private void addEventShardSteps(@NonNull Transaction tr, @NonNull DocumentSnapshot vs, long inc) {
+        if (inc <= 0L || !Boolean.TRUE.equals(vs.getBoolean("ver_isEvent"))) return;
+        String eventId = vs.getString("ver_eventId");
+        if (eventId == null || eventId.isEmpty()) return;
+        int shard;
+        synchronized (shardRandom) {
+            shard = shardRandom.nextInt(EVENT_SHARDS);
+        }
+        Map<String, Object> up = new HashMap<>();
+        up.put("sh_steps", FieldValue.increment(inc));
+        tr.set(eventShardsCol(eventId).document(String.valueOf(shard)), up, SetOptions.merge());
+    }
+
+    /**
+     * Último total leído del evento, o -1 si no hay.
+     */
+    public static long peekEventTotalSteps(@NonNull String eventId) {
+        synchronized (FirestoreRepo.class) {
+            long[] t = eventTotals.get(eventId);
+            return t == null ? -1L : t[0];
+        }
+    }
+
+    /**
+     * Suma de los shards del evento. Si el valor en memoria es reciente responde con él
+     * sin leer nada.
+     */
+    public void loadEventTotalSteps(@NonNull String eventId,
+                                    @NonNull OnSuccessListener<Long> ok,
+                                    @NonNull OnFailureListener err) {
+        synchronized (FirestoreRepo.class) {
+            long[] t = eventTotals.get(eventId);
+            if (t != null && System.currentTimeMillis() - t[1] < EVENT_TOTAL_MAX_AGE_MS) {
+                ok.onSuccess(t[0]);
+                return;
+            }
+        }
+        eventShardsCol(eventId).get()
+                .addOnSuccessListener(qs -> {
+                    long total = 0L;
+                    for (DocumentSnapshot d : qs.getDocuments()) {
+                        total += Math.max(0L, longOf(d.get("sh_steps")));
+                    }
+                    synchronized (FirestoreRepo.class) {
+                        eventTotals.put(eventId, new long[]{total, System.currentTimeMillis()});
+                    }
+                    ok.onSuccess(total);
+                })
+                .addOnFailureListener(err);
+    }
+
     // ========= CONTADOR DE VERSUS / ROOMS ACTIVOS =========
     public Task<Integer> countActiveVsAndRooms(@NonNull String uid) {
-        Task<QuerySnapshot> tVs = versusCol()
-                .whereArrayContains("ver_players", uid)
-                .whereEqualTo("ver_finished", false)
-                .get();
+        // Si el listener compartido ya tiene datos confirmados por el servidor, no hace falta consultar
+        QuerySnapshot warm = peekMyActiveVersus(uid);
+        Task<Long> tVs;
+        if (warm != null && !warm.getMetadata().isFromCache()) {
+            tVs = Tasks.forResult((long) warm.size());
+        } else {
+            tVs = versusCol()
+                    .whereArrayContains("ver_players", uid)
+                    .whereEqualTo("ver_finished", false)
+                    .count()
+                    .get(AggregateSource.SERVER)
+                    .continueWith(task -> task.getResult().getCount());
+        }
 
-        Task<QuerySnapshot> tRooms = roomsCol()
+        Task<Long> tRooms = roomsCol()
                 .whereEqualTo("roo_user", uid)
                 .whereEqualTo("roo_finished", false)
-                .get();
+                .count()
+                .get(AggregateSource.SERVER)
+                .continueWith(task -> task.getResult().getCount());
 
         return Tasks.whenAllSuccess(tVs, tRooms)
                 .continueWith(task -> {
                     List<?> res = task.getResult();
-                    QuerySnapshot vsQs = (QuerySnapshot) res.get(0);
-                    QuerySnapshot rmQs = (QuerySnapshot) res.get(1);
-                    return vsQs.size() + rmQs.size();
+                    long vs = (Long) res.get(0);
+                    long rooms = (Long) res.get(1);
+                    return (int) (vs + rooms);
                 });
     }
 
@@ -693,12 +1361,10 @@ public class FirestoreRepo {
                         return;
                     }
 
-                    int[] raceTargets = {10000, 20000, 30000};
-                    int[] marathonDays = {3, 4, 5};
                     Random r = new Random();
 
-                    long targetSteps = isRace ? raceTargets[r.nextInt(raceTargets.length)] : 0;
-                    long days = isRace ? 0 : marathonDays[r.nextInt(marathonDays.length)];
+                    long targetSteps = isRace ? RACE_TARGETS[r.nextInt(RACE_TARGETS.length)] : 0;
+                    long days = isRace ? 0 : MARATHON_DAYS[r.nextInt(MARATHON_DAYS.length)];
 
                     Map<String, Object> data = new HashMap<>();
                     data.put("roo_user", ownerUid);
@@ -715,20 +1381,150 @@ public class FirestoreRepo {
                     data.put("roo_players", players);
 
                     data.put("roo_finished", false);
+                    data.put("roo_isEvent", false);
 
-                    roomsCol().add(data)
-                            .addOnSuccessListener(doc -> ok.onSuccess(null))
-                            .addOnFailureListener(err);
+                    String roomCode = (String) data.get("roo_code");
+                    if (roomCode.isEmpty()) {
+                        roomsCol().add(data)
+                                .addOnSuccessListener(doc -> ok.onSuccess(null))
+                                .addOnFailureListener(err);
+                        return;
+                    }
+
+                    // Sala y código se escriben juntos: si otro ya tomó el código, no se crea nada
+                    DocumentReference roomRef = roomsCol().document();
+                    DocumentReference codeRef = roomCodesCol().document(roomCode);
+                    db.runTransaction((Transaction.Function<Void>) tr -> {
+                        DocumentSnapshot prev = tr.get(codeRef);
+                        if (prev.exists()) {
+                            String prevRoomId = prev.getString("rc_roomId");
+                            DocumentSnapshot prevRoom = (prevRoomId == null || prevRoomId.isEmpty())
+                                    ? null : tr.get(roomsCol().document(prevRoomId));
+                            // Un código huérfano (sala borrada o cerrada) se puede reusar
+                            if (prevRoom != null && prevRoom.exists()
+                                    && !Boolean.TRUE.equals(prevRoom.getBoolean("roo_finished"))) {
+                                throw new CodeTakenException();
+                            }
+                        }
+                        tr.set(roomRef, data);
+                        Map<String, Object> idx = new HashMap<>();
+                        idx.put("rc_roomId", roomRef.getId());
+                        idx.put("rc_owner", ownerUid);
+                        idx.put("rc_createdAt", FieldValue.serverTimestamp());
+                        tr.set(codeRef, idx);
+                        return null;
+                    }).addOnSuccessListener(ok).addOnFailureListener(err);
                 })
                 .addOnFailureListener(err);
     }
 
-    public void joinRoomAndStartMatch(@NonNull String roomId,
-                                      @NonNull String joinerUid,
-                                      @Nullable String codeInput,
-                                      @NonNull OnSuccessListener<String> ok,
-                                      @NonNull OnFailureListener err) {
-
+    /**
+     * El código elegido ya lo usa otra sala abierta; hay que generar otro.
+     */
+    public static final class CodeTakenException extends IllegalStateException {
+        public CodeTakenException() {
+            super("Ese código ya está en uso.");
+        }
+    }
+
+    /**
+     * Borra la sala del dueño junto con su entrada en room_codes.
+     */
+    public void deleteRoom(@NonNull String roomId,
+                           @NonNull OnSuccessListener<Void> ok,
+                           @NonNull OnFailureListener err) {
+        DocumentReference roomRef = roomsCol().document(roomId);
+        db.runTransaction((Transaction.Function<Void>) tr -> {
+            DocumentSnapshot room = tr.get(roomRef);
+            if (!room.exists()) return null;
+            DocumentReference codeRef = readRoomCodeRef(tr, room);
+            if (codeRef != null) tr.delete(codeRef);
+            tr.delete(roomRef);
+            return null;
+        }).addOnSuccessListener(ok).addOnFailureListener(err);
+    }
+
+    /**
+     * Unirse a una sala privada conociendo solo el código: una lectura de room_codes y
+     * después la misma transacción de unión, que vuelve a validar el código.
+     */
+    public void joinRoomByCode(@NonNull String code,
+                               @NonNull String joinerUid,
+                               @NonNull OnSuccessListener<String> ok,
+                               @NonNull OnFailureListener err) {
+        String normalized = code.trim().toUpperCase(Locale.US);
+        if (normalized.isEmpty()) {
+            err.onFailure(new IllegalStateException("Código incorrecto."));
+            return;
+        }
+
+        countActiveVsAndRooms(joinerUid)
+                .addOnSuccessListener(count -> {
+                    if (count >= MAX_ACTIVE_VERSUS) {
+                        err.onFailure(new IllegalStateException("Ya tenés el máximo de versus activos."));
+                        return;
+                    }
+                    roomCodesCol().document(normalized).get()
+                            .addOnSuccessListener(idx -> {
+                                String roomId = idx.getString("rc_roomId");
+                                if (!idx.exists() || roomId == null || roomId.isEmpty()) {
+                                    err.onFailure(new IllegalStateException("No hay ninguna sala con ese código."));
+                                    return;
+                                }
+                                doJoinRoomAndStartMatch(roomId, joinerUid, normalized, ok, err);
+                            })
+                            .addOnFailureListener(err);
+                })
+                .addOnFailureListener(err);
+    }
+
+    // Entrada de room_codes que apunta a esta sala, o null. Es una lectura: va antes de escribir.
+    @Nullable
+    private DocumentReference readRoomCodeRef(@NonNull Transaction tr, @NonNull DocumentSnapshot room)
+            throws FirebaseFirestoreException {
+        if (Boolean.TRUE.equals(room.getBoolean("roo_isEvent"))) return null;
+        String code = room.getString("roo_code");
+        if (code == null || code.trim().isEmpty()) return null;
+        DocumentReference codeRef = roomCodesCol().document(code.trim().toUpperCase(Locale.US));
+        DocumentSnapshot idx = tr.get(codeRef);
+        return (idx.exists() && room.getId().equals(idx.getString("rc_roomId"))) ? codeRef : null;
+    }
+
+    // Lobby: solo salas de versus abiertas con la visibilidad y el modo pedidos, las más
+    // nuevas primero y de a páginas. Índice: roo_finished, roo_isEvent, roo_public,
+    // [roo_type], roo_createdAt desc. Las salas previas a roo_isEvent las completa
+    // RoomIsEventBackfillJob (:jobs).
+    public static final int LOBBY_PAGE = 10;
+
+    /**
+     * Una página del lobby con su propio listener; isRace null = ambos modos. after = último
+     * doc de la página anterior (null para la primera); endAt cierra la página en ese doc y
+     * limit <= 0 la deja sin tope.
+     */
+    public ListenerRegistration listenLobbyPage(boolean isPublic,
+                                                @Nullable Boolean isRace,
+                                                @Nullable DocumentSnapshot after,
+                                                @Nullable DocumentSnapshot endAt,
+                                                int limit,
+                                                @NonNull EventListener<QuerySnapshot> listener) {
+        Query q = roomsCol()
+                .whereEqualTo("roo_finished", false)
+                .whereEqualTo("roo_isEvent", false)
+                .whereEqualTo("roo_public", isPublic);
+        if (isRace != null) q = q.whereEqualTo("roo_type", isRace);
+        q = q.orderBy("roo_createdAt", Query.Direction.DESCENDING);
+        if (after != null) q = q.startAfter(after);
+        if (endAt != null) q = q.endAt(endAt);
+        if (limit > 0) q = q.limit(limit);
+        return q.addSnapshotListener(listener);
+    }
+
+    public void joinRoomAndStartMatch(@NonNull String roomId,
+                                      @NonNull String joinerUid,
+                                      @Nullable String codeInput,
+                                      @NonNull OnSuccessListener<String> ok,
+                                      @NonNull OnFailureListener err) {
+
         countActiveVsAndRooms(joinerUid)
                 .addOnSuccessListener(count -> {
                     if (count >= MAX_ACTIVE_VERSUS) {
@@ -796,40 +1592,405 @@ public class FirestoreRepo {
             List<String> vsPlayers = new ArrayList<>(players);
             vsPlayers.add(joinerUid);
 
-            Map<String, Object> vsData = new HashMap<>();
-            vsData.put("ver_owner", ownerUid);
-            vsData.put("ver_players", vsPlayers);
             Boolean typeB = room.getBoolean("roo_type");
-            vsData.put("ver_type", typeB != null && typeB);
-            vsData.put("ver_targetSteps", room.get("roo_targetSteps"));
-            vsData.put("ver_days", room.get("roo_days"));
-            vsData.put("ver_createdAt", FieldValue.serverTimestamp());
-            vsData.put("ver_finished", false);
-            String todayCode = todayCode();
-
-            Map<String, Object> progress = new HashMap<>();
-            for (String pUid : vsPlayers) {
-                Map<String, Object> p = new HashMap<>();
-                p.put("steps", 0L);
-                p.put("deviceTotal", 0L);
-                p.put("joinedAt", FieldValue.serverTimestamp());
-                p.put("lastUpdate", FieldValue.serverTimestamp());
-                p.put("dayCode", todayCode);
-                progress.put(pUid, p);
-            }
-            vsData.put("ver_progress", progress);
+            DocumentReference codeRef = readRoomCodeRef(tr, room);
 
-            DocumentReference vsRef = versusCol().document();
-            tr.set(vsRef, vsData);
+            DocumentReference vsRef = writeNewVersus(tr, ownerUid, vsPlayers,
+                    typeB != null && typeB, room.get("roo_targetSteps"), room.get("roo_days"));
 
             tr.delete(roomRef);
+            if (codeRef != null) tr.delete(codeRef);
 
             return vsRef.getId();
         }).addOnSuccessListener(ok).addOnFailureListener(err);
     }
 
+    // Crea versus/{id} con el progreso inicial de cada jugador (salas y matchmaking)
+    private DocumentReference writeNewVersus(@NonNull Transaction tr,
+                                             @NonNull String ownerUid,
+                                             @NonNull List<String> players,
+                                             boolean isRace,
+                                             @Nullable Object targetSteps,
+                                             @Nullable Object days) {
+        Map<String, Object> vsData = new HashMap<>();
+        vsData.put("ver_owner", ownerUid);
+        vsData.put("ver_players", players);
+        vsData.put("ver_type", isRace);
+        vsData.put("ver_targetSteps", targetSteps);
+        vsData.put("ver_days", days);
+        vsData.put("ver_createdAt", FieldValue.serverTimestamp());
+        vsData.put("ver_finished", false);
+        vsData.put("ver_progressMode", PROGRESS_MODE_DOCS);
+
+        DocumentReference vsRef = versusCol().document();
+        tr.set(vsRef, vsData);
+        writeInitialProgress(tr, vsRef, players, todayCode());
+        return vsRef;
+    }
+
+    // ========= MATCHMAKING =========
+
+    // Cola 1v1 en match_queue/{uid}. Cada jugador escribe su entrada y recién después busca
+    // la más antigua compatible: de dos que entran a la vez, el segundo siempre ve al primero.
+    // El par se toma en una transacción que exige que las dos entradas sigan esperando.
+    private static final int LEVEL_BAND_SIZE = 5;
+    private static final int MATCH_SCAN = 10;
+    // Entradas más viejas que esto son de apps que se cerraron sin salir de la cola
+    public static final long MATCH_TICKET_TTL_MS = 10L * 60L * 1000L;
+    static final String MQ_WAITING = "waiting";
+    static final String MQ_MATCHED = "matched";
+    // Límite superior (s) de cada bucket de espera; el último bucket es "más que eso"
+    private static final long[] MATCH_WAIT_BOUNDS_S = {5L, 15L, 30L, 60L, 120L, 300L, 600L, 1800L, 3600L};
+
+    private CollectionReference matchQueueCol() {
+        return db.collection("match_queue");
+    }
+
+    private DocumentReference matchStatsDoc(boolean isRace) {
+        return db.collection("matchmaking").document(isRace ? "race" : "marathon");
+    }
+
+    static int levelBand(long nivel) {
+        return (int) ((Math.max(1L, nivel) - 1L) / LEVEL_BAND_SIZE);
+    }
+
+    /**
+     * Anota al jugador en la cola y trata de emparejarlo enseguida. ok recibe el id del
+     * versus si encontró rival, o null si quedó esperando (ver listenMatchTicket).
+     * Con sameBandOnly solo se empareja con jugadores de su misma franja de nivel.
+     */
+    public void enqueueForMatch(@NonNull String uid,
+                                boolean isRace,
+                                boolean sameBandOnly,
+                                @NonNull OnSuccessListener<String> ok,
+                                @NonNull OnFailureListener err) {
+        countActiveVsAndRooms(uid)
+                .addOnSuccessListener(count -> {
+                    if (count >= MAX_ACTIVE_VERSUS) {
+                        err.onFailure(new IllegalStateException("Ya tenés el máximo de versus activos."));
+                        return;
+                    }
+                    userDoc(uid).get()
+                            .addOnSuccessListener(user -> {
+                                Long lvl = user.getLong("usu_nivel");
+                                int band = levelBand(lvl == null ? 1L : lvl);
+
+                                Map<String, Object> entry = new HashMap<>();
+                                entry.put("mq_uid", uid);
+                                entry.put("mq_race", isRace);
+                                entry.put("mq_band", band);
+                                entry.put("mq_bandOnly", sameBandOnly);
+                                entry.put("mq_status", MQ_WAITING);
+                                entry.put("mq_enqueuedAt", System.currentTimeMillis());
+
+                                matchQueueCol().document(uid).set(entry)
+                                        .addOnSuccessListener(v ->
+                                                findMatch(uid, isRace, band, sameBandOnly, ok, err))
+                                        .addOnFailureListener(err);
+                            })
+                            .addOnFailureListener(err);
+                })
+                .addOnFailureListener(err);
+    }
+
+    private void findMatch(@NonNull String uid,
+                           boolean isRace,
+                           int band,
+                           boolean sameBandOnly,
+                           @NonNull OnSuccessListener<String> ok,
+                           @NonNull OnFailureListener err) {
+        Query q = matchQueueCol()
+                .whereEqualTo("mq_status", MQ_WAITING)
+                .whereEqualTo("mq_race", isRace);
+        if (sameBandOnly) q = q.whereEqualTo("mq_band", band);
+
+        q.whereGreaterThan("mq_enqueuedAt", System.currentTimeMillis() - MATCH_TICKET_TTL_MS)
+                .orderBy("mq_enqueuedAt")
+                .limit(MATCH_SCAN)
+                .get()
+                .addOnSuccessListener(qs -> {
+                    List<String> candidates = new ArrayList<>();
+                    for (DocumentSnapshot d : qs.getDocuments()) {
+                        if (uid.equals(d.getId())) continue;
+                        // El otro también puede haber pedido su franja
+                        Long theirBand = d.getLong("mq_band");
+                        if (Boolean.TRUE.equals(d.getBoolean("mq_bandOnly"))
+                                && (theirBand == null || theirBand != band)) continue;
+                        candidates.add(d.getId());
+                    }
+                    if (candidates.isEmpty()) {
+                        ok.onSuccess(null);
+                        return;
+                    }
+                    // El conteo propio no cambia entre candidatos: uno solo antes de recorrerlos
+                    countActiveVsAndRooms(uid)
+                            .addOnSuccessListener(myActive -> {
+                                if (myActive >= MAX_ACTIVE_VERSUS) {
+                                    // Mientras esperaba armó otro versus: sale de la cola
+                                    matchQueueCol().document(uid).delete();
+                                    err.onFailure(new IllegalStateException("Ya tenés el máximo de versus activos."));
+                                    return;
+                                }
+                                pairWith(uid, isRace, candidates, 0, ok, err);
+                            })
+                            .addOnFailureListener(err);
+                })
+                .addOnFailureListener(err);
+    }
+
+    // Prueba los candidatos en orden de llegada hasta que uno sigue libre. El conteo de versus
+    // activos del rival es una agregación (no entra en una transacción): se toma justo antes
+    // y su tope se decide dentro, junto con la relectura de las dos entradas.
+    private void pairWith(@NonNull String uid,
+                          boolean isRace,
+                          @NonNull List<String> candidates,
+                          int index,
+                          @NonNull OnSuccessListener<String> ok,
+                          @NonNull OnFailureListener err) {
+        if (index >= candidates.size()) {
+            ok.onSuccess(null);
+            return;
+        }
+        countActiveVsAndRooms(candidates.get(index))
+                .addOnSuccessListener(rivalActive -> pairWith(uid, isRace, candidates, index,
+                        rivalActive, ok, err))
+                .addOnFailureListener(err);
+    }
+
+    private void pairWith(@NonNull String uid,
+                          boolean isRace,
+                          @NonNull List<String> candidates,
+                          int index,
+                          int rivalActive,
+                          @NonNull OnSuccessListener<String> ok,
+                          @NonNull OnFailureListener err) {
+        String rivalUid = candidates.get(index);
+        DocumentReference mine = matchQueueCol().document(uid);
+        DocumentReference theirs = matchQueueCol().document(rivalUid);
+
+        Random r = new Random();
+        long targetSteps = isRace ? RACE_TARGETS[r.nextInt(RACE_TARGETS.length)] : 0;
+        long days = isRace ? 0 : MARATHON_DAYS[r.nextInt(MARATHON_DAYS.length)];
+
+        db.runTransaction((Transaction.Function<String>) tr -> {
+            DocumentSnapshot me = tr.get(mine);
+            DocumentSnapshot rival = tr.get(theirs);
+
+            if (!me.exists()) throw new IllegalStateException("Saliste de la cola.");
+            if (!MQ_WAITING.equals(me.getString("mq_status"))) {
+                // Otro jugador nos emparejó mientras buscábamos
+                tr.delete(mine);
+                return me.getString("mq_versusId");
+            }
+            long now = System.currentTimeMillis();
+            if (!rival.exists() || !MQ_WAITING.equals(rival.getString("mq_status"))) {
+                return "";
+            }
+            // Entrada vencida o rival que ya llegó al tope mientras esperaba: se saltea
+            if (now - longOf(rival.get("mq_enqueuedAt")) > MATCH_TICKET_TTL_MS
+                    || rivalActive >= MAX_ACTIVE_VERSUS) {
+                return "";
+            }
+
+            List<String> players = new ArrayList<>();
+            players.add(rivalUid);
+            players.add(uid);
+            // El que esperaba queda como dueño del versus
+            DocumentReference vsRef = writeNewVersus(tr, rivalUid, players, isRace, targetSteps, days);
+
+            tr.update(theirs,
+                    "mq_status", MQ_MATCHED,
+                    "mq_versusId", vsRef.getId(),
+                    "mq_matchedAt", now);
+            tr.delete(mine);
+
+            Map<String, Object> buckets = new HashMap<>();
+            addWaitSample(buckets, now - longOf(rival.get("mq_enqueuedAt")));
+            addWaitSample(buckets, now - longOf(me.get("mq_enqueuedAt")));
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("mms_matches", FieldValue.increment(1));
+            stats.put("mms_waitBuckets", buckets);
+            tr.set(matchStatsDoc(isRace), stats, SetOptions.merge());
+
+            return vsRef.getId();
+        }).addOnSuccessListener(vsId -> {
+            if (vsId != null && vsId.isEmpty()) {
+                pairWith(uid, isRace, candidates, index + 1, ok, err);
+            } else {
+                ok.onSuccess(vsId);
+            }
+        }).addOnFailureListener(err);
+    }
+
+    private static void addWaitSample(@NonNull Map<String, Object> buckets, long waitMs) {
+        String key = String.valueOf(waitBucket(waitMs));
+        Object prev = buckets.get(key);
+        // Dos esperas en el mismo bucket: un solo increment de 2
+        buckets.put(key, FieldValue.increment(prev == null ? 1 : 2));
+    }
+
+    static int waitBucket(long waitMs) {
+        long s = Math.max(0L, waitMs) / 1000L;
+        for (int i = 0; i < MATCH_WAIT_BOUNDS_S.length; i++) {
+            if (s <= MATCH_WAIT_BOUNDS_S[i]) return i;
+        }
+        return MATCH_WAIT_BOUNDS_S.length;
+    }
+
+    /**
+     * Escucha la entrada propia en la cola: mq_status pasa a "matched" con mq_versusId
+     * cuando otro jugador nos toma. Quien la recibe debería llamar a leaveMatchQueue.
+     */
+    public ListenerRegistration listenMatchTicket(@NonNull String uid,
+                                                  @NonNull EventListener<DocumentSnapshot> listener) {
+        return matchQueueCol().document(uid).addSnapshotListener(listener);
+    }
+
+    public void leaveMatchQueue(@NonNull String uid,
+                                @NonNull OnSuccessListener<Void> ok,
+                                @NonNull OnFailureListener err) {
+        matchQueueCol().document(uid).delete()
+                .addOnSuccessListener(ok)
+                .addOnFailureListener(err);
+    }
+
+    public static class MatchmakingStats {
+        public final long queueDepth;
+        public final long matches;
+        // Límite superior del bucket que contiene la mediana; -1 sin datos
+        public final long medianWaitSec;
+
+        public MatchmakingStats(long queueDepth, long matches, long medianWaitSec) {
+            this.queueDepth = queueDepth;
+            this.matches = matches;
+            this.medianWaitSec = medianWaitSec;
+        }
+    }
+
+    public void loadMatchmakingStats(boolean isRace,
+                                     @NonNull OnSuccessListener<MatchmakingStats> ok,
+                                     @NonNull OnFailureListener err) {
+        Task<Long> tDepth = matchQueueCol()
+                .whereEqualTo("mq_status", MQ_WAITING)
+                .whereEqualTo("mq_race", isRace)
+                .whereGreaterThan("mq_enqueuedAt", System.currentTimeMillis() - MATCH_TICKET_TTL_MS)
+                .count()
+                .get(AggregateSource.SERVER)
+                .continueWith(task -> task.getResult().getCount());
+        Task<DocumentSnapshot> tStats = matchStatsDoc(isRace).get();
+
+        Tasks.whenAllSuccess(tDepth, tStats)
+                .addOnSuccessListener(res -> {
+                    long depth = (Long) res.get(0);
+                    DocumentSnapshot st = (DocumentSnapshot) res.get(1);
+                    long[] counts = new long[MATCH_WAIT_BOUNDS_S.length + 1];
+                    Object raw = st.get("mms_waitBuckets");
+                    if (raw instanceof Map) {
+                        for (Map.Entry<?, ?> e : ((Map<?, ?>) raw).entrySet()) {
+                            try {
+                                int i = Integer.parseInt(String.valueOf(e.getKey()));
+                                if (i >= 0 && i < counts.length) counts[i] = longOf(e.getValue());
+                            } catch (NumberFormatException ignored) {
+                            }
+                        }
+                    }
+                    ok.onSuccess(new MatchmakingStats(depth, longOf(st.get("mms_matches")),
+                            medianWaitSec(counts)));
+                })
+                .addOnFailureListener(err);
+    }
+
+    static long medianWaitSec(@NonNull long[] counts) {
+        long total = 0L;
+        for (long c : counts) total += c;
+        if (total == 0L) return -1L;
+        long half = (total + 1L) / 2L;
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= half) {
+                return MATCH_WAIT_BOUNDS_S[Math.min(i, MATCH_WAIT_BOUNDS_S.length - 1)];
+            }
+        }
+        return MATCH_WAIT_BOUNDS_S[MATCH_WAIT_BOUNDS_S.length - 1];
+    }
+
     // ---------- PROGRESO DE VERSUS / GANADOR + RECOMPENSAS ----------
 
+    // Qué chequeo agregado queda pendiente después del push de un jugador (modo docs)
+    private static final class ProgressPush {
+        static final int NONE = 0;
+        static final int SETTLE = 1;
+        static final int CHECK_GROUP = 2;
+
+        final int action;
+        final long targetSteps;
+
+        ProgressPush(int action, long targetSteps) {
+            this.action = action;
+            this.targetSteps = targetSteps;
+        }
+    }
+
+    /**
+     * Crea los progress/{uid} iniciales dentro de la misma transacción que crea el versus.
+     */
+    static void writeInitialProgress(@NonNull Transaction tr,
+                                     @NonNull DocumentReference vsRef,
+                                     @NonNull List<String> players,
+                                     @NonNull String todayCode) {
+        for (String pUid : players) {
+            Map<String, Object> p = new HashMap<>();
+            p.put("steps", 0L);
+            p.put("deviceTotal", 0L);
+            p.put("joinedAt", FieldValue.serverTimestamp());
+            p.put("lastUpdate", FieldValue.serverTimestamp());
+            p.put("dayCode", todayCode);
+            tr.set(vsRef.collection(PROGRESS_COL).document(pUid), p);
+        }
+    }
+
+    public static boolean usesProgressDocs(@NonNull DocumentSnapshot vs) {
+        return PROGRESS_MODE_DOCS.equals(vs.getString("ver_progressMode"));
+    }
+
+    public ListenerRegistration listenVersusProgress(@NonNull String versusId,
+                                                     @NonNull EventListener<QuerySnapshot> listener) {
+        return progressCol(versusId).addSnapshotListener(listener);
+    }
+
+    /**
+     * Pasos por jugador de un versus en cualquiera de los dos modos.
+     * progressDocs es null para los versus viejos con ver_progress embebido.
+     */
+    @NonNull
+    public static Map<String, Long> stepsByPlayer(@NonNull DocumentSnapshot vs,
+                                                  @Nullable QuerySnapshot progressDocs) {
+        if (progressDocs != null) return stepsByPlayer(progressDocs);
+        Map<String, Long> out = new HashMap<>();
+        Object progObj = vs.get("ver_progress");
+        if (progObj instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) progObj).entrySet()) {
+                if (!(e.getKey() instanceof String)) continue;
+                long st = 0L;
+                if (e.getValue() instanceof Map) {
+                    st = Math.max(0L, longOf(((Map<?, ?>) e.getValue()).get("steps")));
+                }
+                out.put((String) e.getKey(), st);
+            }
+        }
+        return out;
+    }
+
+    @NonNull
+    public static Map<String, Long> stepsByPlayer(@NonNull QuerySnapshot progressDocs) {
+        Map<String, Long> out = new HashMap<>();
+        for (DocumentSnapshot d : progressDocs.getDocuments()) {
+            out.put(d.getId(), Math.max(0L, longOf(d.get("steps"))));
+        }
+        return out;
+    }
+
     void updateVersusSteps(@NonNull String versusId,
                            @NonNull String uid,
                            long stepsToday,
@@ -839,10 +2000,14 @@ public class FirestoreRepo {
         final DocumentReference vsRef = versusDoc(versusId);
         final String todayCode = todayCode();
 
-        db.runTransaction((Transaction.Function<Void>) transaction -> {
+        db.runTransaction((Transaction.Function<ProgressPush>) transaction -> {
                     DocumentSnapshot snap = transaction.get(vsRef);
                     if (!snap.exists()) return null;
 
+                    if (usesProgressDocs(snap)) {
+                        return pushOwnProgress(transaction, snap, uid, stepsToday, todayCode);
+                    }
+
                     // ¿es un versus de evento cooperativo?
                     Boolean isEventB = snap.getBoolean("ver_isEvent");
                     boolean isEvent = isEventB != null && isEventB;
@@ -888,13 +2053,7 @@ public class FirestoreRepo {
                         return null;
                     }
 
-                    List<String> players = new ArrayList<>();
-                    Object rawPlayers = snap.get("ver_players");
-                    if (rawPlayers instanceof List) {
-                        for (Object o : (List<?>) rawPlayers) {
-                            if (o instanceof String) players.add((String) o);
-                        }
-                    }
+                    List<String> players = playersOf(snap);
 
                     Map<String, Object> progMap = null;
                     Object progObj = snap.get("ver_progress");
@@ -904,9 +2063,8 @@ public class FirestoreRepo {
                     }
 
                     if (isEvent) {
-                        long targetSteps = 0L;
-                        Object tObj = snap.get("ver_targetSteps");
-                        if (tObj instanceof Number) targetSteps = ((Number) tObj).longValue();
+                        addEventShardSteps(transaction, snap, inc);
+                        long targetSteps = longOf(snap.get("ver_targetSteps"));
 
                         long totalGroup = 0L;
                         if (progMap != null) {
@@ -930,27 +2088,8 @@ public class FirestoreRepo {
                             updates.put("ver_finishedAt", now);
                             updates.put("ver_totalSteps", totalGroup);
 
-                            Long rewardCoinsL = snap.getLong("ver_rewardCoins");
-                            long rewardCoins = rewardCoinsL == null ? 0L : rewardCoinsL;
-
-                            if (!players.isEmpty() && rewardCoins > 0L) {
-                                for (String pid : players) {
-                                    Map<String, Object> upUser = new HashMap<>();
-                                    upUser.put("usu_saldo", FieldValue.increment(rewardCoins));
-                                    upUser.put("usu_stats.eventos_participados", FieldValue.increment(1));
-                                    transaction.update(userDoc(pid), upUser);
-                                }
-                            }
-
-                            // La room puede haber sido borrada al crear el versus cooperativo
-                            String roomId = snap.getString("ver_roomId");
-                            if (roomId != null && !roomId.isEmpty()) {
-                                DocumentReference roomRef = roomsCol().document(roomId);
-                                DocumentSnapshot roomSnap = transaction.get(roomRef);
-                                if (roomSnap.exists()) {
-                                    transaction.update(roomRef, "roo_finished", true);
-                                }
-                            }
+                            DocumentSnapshot roomSnap = readEventRoom(transaction, snap);
+                            applyEventRewards(transaction, snap, players, roomSnap);
                         }
 
                         transaction.update(vsRef, updates);
@@ -958,22 +2097,7 @@ public class FirestoreRepo {
                     }
 
                     boolean isRace = Boolean.TRUE.equals(snap.getBoolean("ver_type"));
-
-                    long targetSteps = 0L;
-                    Object tObj2 = snap.get("ver_targetSteps");
-                    if (tObj2 instanceof Number) targetSteps = ((Number) tObj2).longValue();
-
-                    long days = 0L;
-                    Object dObj = snap.get("ver_days");
-                    if (dObj instanceof Number) days = ((Number) dObj).longValue();
-
-                    long createdAtMs = 0L;
-                    Object cObj = snap.get("ver_createdAt");
-                    if (cObj instanceof Timestamp) {
-                        createdAtMs = ((Timestamp) cObj).toDate().getTime();
-                    } else if (cObj instanceof Number) {
-                        createdAtMs = ((Number) cObj).longValue();
-                    }
+                    long targetSteps = longOf(snap.get("ver_targetSteps"));
 
                     boolean closeNow = false;
                     String winnerUid = null;
@@ -994,28 +2118,26 @@ public class FirestoreRepo {
                             }
                         }
                     } else {
-                        if (days > 0L && createdAtMs > 0L) {
-                            long limitMs = createdAtMs + days * 24L * 60L * 60L * 1000L;
-                            if (now >= limitMs) {
-                                if (players.size() == 1) {
-                                    winnerUid = players.get(0);
-                                    closeNow = true;
-                                } else if (players.size() >= 2) {
-                                    String p0 = players.get(0);
-                                    String p1 = players.get(1);
-
-                                    long s0 = p0.equals(uid) ? newSteps : stepsFromProg(progMap, p0);
-                                    long s1 = p1.equals(uid) ? newSteps : stepsFromProg(progMap, p1);
-
-                                    if (s0 >= s1) {
-                                        winnerUid = p0;
-                                        loserUid = p1;
-                                    } else {
-                                        winnerUid = p1;
-                                        loserUid = p0;
-                                    }
-                                    closeNow = true;
+                        long limitMs = marathonDeadlineMs(snap);
+                        if (limitMs > 0L && now >= limitMs) {
+                            if (players.size() == 1) {
+                                winnerUid = players.get(0);
+                                closeNow = true;
+                            } else if (players.size() >= 2) {
+                                String p0 = players.get(0);
+                                String p1 = players.get(1);
+
+                                long s0 = p0.equals(uid) ? newSteps : stepsFromProg(progMap, p0);
+                                long s1 = p1.equals(uid) ? newSteps : stepsFromProg(progMap, p1);
+
+                                if (s0 >= s1) {
+                                    winnerUid = p0;
+                                    loserUid = p1;
+                                } else {
+                                    winnerUid = p1;
+                                    loserUid = p0;
                                 }
+                                closeNow = true;
                             }
                         }
                     }
@@ -1026,207 +2148,1174 @@ public class FirestoreRepo {
                         updates.put("ver_winner", winnerUid);
 
                         long winnerSteps = winnerUid.equals(uid) ? newSteps : stepsFromProg(progMap, winnerUid);
-                        long winnerBase;
-                        if (isRace && targetSteps > 0L) {
-                            winnerBase = Math.max(winnerSteps, targetSteps);
-                        } else {
-                            winnerBase = winnerSteps;
-                        }
-                        long winnerCoins = winnerBase * 2L + VS_WIN_COINS_BASE;
-
-                        Map<String, Object> winUp = new HashMap<>();
-                        winUp.put("usu_saldo", FieldValue.increment(winnerCoins));
-                        winUp.put("usu_stats.carreras_ganadas", FieldValue.increment(1));
-                        transaction.update(userDoc(winnerUid), winUp);
-
-                        // Perdedor
-                        if (loserUid != null) {
-                            long loserSteps = loserUid.equals(uid) ? newSteps : stepsFromProg(progMap, loserUid);
-                            long loserCoins = loserSteps / 2L;
-                            if (loserCoins > 0L) {
-                                transaction.update(userDoc(loserUid),
-                                        "usu_saldo", FieldValue.increment(loserCoins));
-                            }
-                        }
+                        long loserSteps = loserUid == null ? 0L
+                                : loserUid.equals(uid) ? newSteps : stepsFromProg(progMap, loserUid);
+                        applyVersusRewards(transaction, winnerUid, winnerSteps,
+                                loserUid, loserSteps, isRace, targetSteps);
                     }
 
                     transaction.update(vsRef, updates);
                     return null;
                 })
-                .addOnSuccessListener(ok)
+                .addOnSuccessListener(push -> {
+                    if (push == null || push.action == ProgressPush.NONE) {
+                        ok.onSuccess(null);
+                    } else if (push.action == ProgressPush.CHECK_GROUP) {
+                        checkGroupAndSettle(versusId, push.targetSteps, ok, er);
+                    } else {
+                        settleVersus(versusId, ok, er);
+                    }
+                })
                 .addOnFailureListener(er);
     }
 
-    void updateVersusStepsQuiet(@NonNull String versusId,
-                                @NonNull String uid,
-                                long stepsToday) {
-
-        updateVersusSteps(
-                versusId,
-                uid,
-                stepsToday,
-                v -> {
-                },
-                e -> {
-                }
-        );
-    }
-
-    // ========= RANKINGS SEMANALES =========
-
-    public static class WeeklyRankingRow {
-        public final String uid;
-        public final String nombre;
-        public final double kmSemana;
-        public final long stepsWeek;
-        public final int position;
-        public final long coins;
+    // Modo docs: lee el versus (que ya no cambia con cada push) y escribe solo el
+    // progress/{uid} propio, así los jugadores no se pisan en el mismo documento.
+    private ProgressPush pushOwnProgress(@NonNull Transaction tr,
+                                         @NonNull DocumentSnapshot vs,
+                                         @NonNull String uid,
+                                         long stepsToday,
+                                         @NonNull String todayCode)
+            throws FirebaseFirestoreException {
+        DocumentReference myRef = vs.getReference().collection(PROGRESS_COL).document(uid);
+        DocumentSnapshot mine = tr.get(myRef);
+
+        long prevDevice = longOf(mine.get("deviceTotal"));
+        long prevSteps = longOf(mine.get("steps"));
+        String prevDay = mine.getString("dayCode");
+
+        long inc = (prevDay == null || !todayCode.equals(prevDay))
+                ? stepsToday
+                : stepsToday - prevDevice;
+        if (inc < 0L) inc = 0L;
+
+        long newSteps = prevSteps + inc;
+        long now = System.currentTimeMillis();
+
+        boolean finished = Boolean.TRUE.equals(vs.getBoolean("ver_finished"));
+        TimelineAppend tl = finished
+                ? null : readTimelineAppend(tr, vs, uid, mine, prevSteps, now);
+
+        long targetSteps = longOf(vs.get("ver_targetSteps"));
+        boolean race = Boolean.TRUE.equals(vs.getBoolean("ver_type"))
+                && !Boolean.TRUE.equals(vs.getBoolean("ver_isEvent"));
 
-        public WeeklyRankingRow(String uid,
-                                String nombre,
-                                double kmSemana,
-                                long stepsWeek,
-                                int position,
-                                long coins) {
-            this.uid = uid;
-            this.nombre = nombre;
-            this.kmSemana = kmSemana;
-            this.stepsWeek = stepsWeek;
-            this.position = position;
-            this.coins = coins;
+        Map<String, Object> up = new HashMap<>();
+        up.put("steps", newSteps);
+        up.put("deviceTotal", stepsToday);
+        up.put("lastUpdate", now);
+        up.put("dayCode", todayCode);
+        if (tl != null) {
+            writeTimelineAppend(tr, vs.getReference(), tl);
+            up.put("tlSlot", tl.to);
+            up.put("tlLast", tl.value);
         }
-    }
+        // Hora del servidor al cruzar la meta: settleVersus da la carrera al primero en llegar
+        if (!finished && race && targetSteps > 0L && newSteps >= targetSteps
+                && mine.get("crossedAt") == null) {
+            up.put("crossedAt", FieldValue.serverTimestamp());
+        }
+        tr.set(myRef, up, SetOptions.merge());
 
-    public static class WeeklyRankingResult {
-        public final List<WeeklyRankingRow> rows;
-        public final boolean rewardsApplied;
-        public final long weekKey;
+        // Cerrado: el equipo ya no suma al total del evento
+        if (finished) return new ProgressPush(ProgressPush.NONE, 0L);
+        addEventShardSteps(tr, vs, inc);
 
-        public WeeklyRankingResult(List<WeeklyRankingRow> rows,
-                                   boolean rewardsApplied,
-                                   long weekKey) {
-            this.rows = rows;
-            this.rewardsApplied = rewardsApplied;
-            this.weekKey = weekKey;
+        if (Boolean.TRUE.equals(vs.getBoolean("ver_isEvent"))) {
+            boolean check = inc > 0L && targetSteps > 0L;
+            return new ProgressPush(check ? ProgressPush.CHECK_GROUP : ProgressPush.NONE, targetSteps);
         }
+        if (race) {
+            boolean reached = targetSteps > 0L && newSteps >= targetSteps;
+            return new ProgressPush(reached ? ProgressPush.SETTLE : ProgressPush.NONE, targetSteps);
+        }
+        long limitMs = marathonDeadlineMs(vs);
+        boolean expired = limitMs > 0L && now >= limitMs;
+        return new ProgressPush(expired ? ProgressPush.SETTLE : ProgressPush.NONE, targetSteps);
     }
 
-    public void loadWeeklyRankingForUser(@NonNull String uid,
-                                         @NonNull OnSuccessListener<WeeklyRankingResult> ok,
-                                         @NonNull OnFailureListener err) {
-
-        long weekKey = currentWeekKey();
-
-        cleanupOldRankingsForUser(uid, weekKey);
-
-        rankingsCol()
-                .whereEqualTo("ran_weekKey", weekKey)
-                .whereArrayContains("ran_players", uid)
-                .limit(1)
-                .get()
-                .addOnSuccessListener(qs -> {
-                    if (!qs.isEmpty()) {
-                        DocumentSnapshot doc = qs.getDocuments().get(0);
-                        buildWeeklyRows(doc, weekKey, ok, err);
+    // Evento cooperativo: suma del equipo con una agregación en el servidor
+    private void checkGroupAndSettle(@NonNull String versusId,
+                                     long targetSteps,
+                                     @NonNull OnSuccessListener<Void> ok,
+                                     @NonNull OnFailureListener er) {
+        AggregateField.SumAggregateField sum = AggregateField.sum("steps");
+        progressCol(versusId).aggregate(sum)
+                .get(AggregateSource.SERVER)
+                .addOnSuccessListener(res -> {
+                    Long total = res.getLong(sum);
+                    if (total != null && total >= targetSteps) {
+                        settleVersus(versusId, ok, er);
                     } else {
-                        // Todavía no está en ninguna tabla: lo asignamos a una
-                        assignUserToWeeklyRanking(uid, weekKey,
-                                doc -> buildWeeklyRows(doc, weekKey, ok, err),
-                                err);
+                        ok.onSuccess(null);
                     }
                 })
-                .addOnFailureListener(err);
+                .addOnFailureListener(er);
     }
 
-    private void cleanupOldRankingsForUser(@NonNull String uid, long currentWeekKey) {
-        rankingsCol()
-                .whereArrayContains("ran_players", uid)
-                .whereLessThan("ran_weekKey", currentWeekKey)
-                .get()
-                .addOnSuccessListener(qs -> {
-                    for (DocumentSnapshot d : qs.getDocuments()) {
-                        applyWeeklyRewardsAndDelete(d);
+    /**
+     * Paso agregado del modo docs: lee el versus y todos los progress/{uid} y, si
+     * corresponde, lo cierra y reparte recompensas. Es lo único que escribe versus/{id}
+     * mientras el versus está en curso.
+     */
+    void settleVersus(@NonNull String versusId,
+                      @NonNull OnSuccessListener<Void> ok,
+                      @NonNull OnFailureListener er) {
+        final DocumentReference vsRef = versusDoc(versusId);
+
+        db.runTransaction((Transaction.Function<Void>) tr -> {
+            DocumentSnapshot snap = tr.get(vsRef);
+            if (!snap.exists()) return null;
+            if (Boolean.TRUE.equals(snap.getBoolean("ver_finished"))) return null;
+
+            List<String> players = playersOf(snap);
+            Map<String, Long> steps = new HashMap<>();
+            Map<String, Timestamp> crossed = new HashMap<>();
+            if (usesProgressDocs(snap)) {
+                for (String pid : players) {
+                    DocumentSnapshot p = tr.get(progressCol(versusId).document(pid));
+                    steps.put(pid, Math.max(0L, longOf(p.get("steps"))));
+                    Timestamp at = p.getTimestamp("crossedAt");
+                    if (at != null) crossed.put(pid, at);
+                }
+            } else {
+                // Versus viejos con ver_progress embebido (los cierra el scheduler de maratones)
+                steps.putAll(stepsByPlayer(snap, (QuerySnapshot) null));
+                for (String pid : players) {
+                    if (!steps.containsKey(pid)) steps.put(pid, 0L);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            long targetSteps = longOf(snap.get("ver_targetSteps"));
+
+            if (Boolean.TRUE.equals(snap.getBoolean("ver_isEvent"))) {
+                long total = 0L;
+                for (Long v : steps.values()) total += v;
+                if (targetSteps <= 0L || total < targetSteps) return null;
+
+                DocumentSnapshot roomSnap = readEventRoom(tr, snap);
+
+                Map<String, Object> up = new HashMap<>();
+                up.put("ver_finished", true);
+                up.put("ver_finishedAt", now);
+                up.put("ver_totalSteps", total);
+                applyEventRewards(tr, snap, players, roomSnap);
+                tr.update(vsRef, up);
+                return null;
+            }
+
+            boolean isRace = Boolean.TRUE.equals(snap.getBoolean("ver_type"));
+            String winnerUid = null;
+            long best = -1L;
+            if (isRace) {
+                if (targetSteps <= 0L) return null;
+                winnerUid = firstToCross(players, steps, crossed, targetSteps);
+                if (winnerUid != null) best = steps.get(winnerUid);
+            } else {
+                long limitMs = marathonDeadlineMs(snap);
+                if (limitMs <= 0L || now < limitMs) return null;
+                for (String pid : players) {
+                    long s = steps.get(pid);
+                    if (s > best) {
+                        best = s;
+                        winnerUid = pid;
                     }
-                });
+                }
+            }
+            if (winnerUid == null) return null;
+
+            String loserUid = null;
+            for (String pid : players) {
+                if (!pid.equals(winnerUid)) {
+                    loserUid = pid;
+                    break;
+                }
+            }
+
+            Map<String, Object> up = new HashMap<>();
+            up.put("ver_finished", true);
+            up.put("ver_finishedAt", now);
+            up.put("ver_winner", winnerUid);
+            applyVersusRewards(tr, winnerUid, best,
+                    loserUid, loserUid == null ? 0L : steps.get(loserUid), isRace, targetSteps);
+            tr.update(vsRef, up);
+            return null;
+        }).addOnSuccessListener(ok).addOnFailureListener(er);
     }
 
-    private void applyWeeklyRewardsAndDelete(@NonNull DocumentSnapshot rankingDoc) {
-        Object rawPlayers = rankingDoc.get("ran_players");
+    /**
+     * Ganador de una carrera: el primero que llegó a la meta según progress/{uid}.crossedAt.
+     * Los que llegaron sin crossedAt (pushes previos al campo) van detrás; entre ellos, o con
+     * la misma hora, gana el que más pasos tenga.
+     */
+    @Nullable
+    static String firstToCross(@NonNull List<String> players,
+                               @NonNull Map<String, Long> steps,
+                               @NonNull Map<String, Timestamp> crossed,
+                               long targetSteps) {
+        String winner = null;
+        for (String pid : players) {
+            Long s = steps.get(pid);
+            if (s == null || s < targetSteps) continue;
+            if (winner == null) {
+                winner = pid;
+                continue;
+            }
+            Timestamp a = crossed.get(pid);
+            Timestamp b = crossed.get(winner);
+            int cmp;
+            if (a == null && b == null) cmp = 0;
+            else if (a == null) cmp = 1;
+            else if (b == null) cmp = -1;
+            else cmp = a.compareTo(b);
+            if (cmp < 0 || (cmp == 0 && s > steps.get(winner))) winner = pid;
+        }
+        return winner;
+    }
+
+    // La room puede haber sido borrada al crear el versus cooperativo.
+    // Se lee antes de cualquier escritura de la transacción.
+    @Nullable
+    private DocumentSnapshot readEventRoom(@NonNull Transaction tr, @NonNull DocumentSnapshot vs)
+            throws FirebaseFirestoreException {
+        String roomId = vs.getString("ver_roomId");
+        if (roomId == null || roomId.isEmpty()) return null;
+        DocumentSnapshot roomSnap = tr.get(roomsCol().document(roomId));
+        return roomSnap.exists() ? roomSnap : null;
+    }
+
+    private void applyEventRewards(@NonNull Transaction tr,
+                                   @NonNull DocumentSnapshot vs,
+                                   @NonNull List<String> players,
+                                   @Nullable DocumentSnapshot roomSnap) {
+        long rewardCoins = Math.max(0L, longOf(vs.get("ver_rewardCoins")));
+        if (!players.isEmpty() && rewardCoins > 0L) {
+            for (String pid : players) {
+                Map<String, Object> upUser = new HashMap<>();
+                upUser.put("usu_saldo", FieldValue.increment(rewardCoins));
+                upUser.put("usu_stats.eventos_participados", FieldValue.increment(1));
+                tr.update(userDoc(pid), upUser);
+            }
+        }
+        if (roomSnap != null) {
+            tr.update(roomSnap.getReference(), "roo_finished", true);
+        }
+    }
+
+    private void applyVersusRewards(@NonNull Transaction tr,
+                                    @NonNull String winnerUid,
+                                    long winnerSteps,
+                                    @Nullable String loserUid,
+                                    long loserSteps,
+                                    boolean isRace,
+                                    long targetSteps) {
+        long winnerBase;
+        if (isRace && targetSteps > 0L) {
+            winnerBase = Math.max(winnerSteps, targetSteps);
+        } else {
+            winnerBase = winnerSteps;
+        }
+        long winnerCoins = winnerBase * 2L + VS_WIN_COINS_BASE;
+
+        Map<String, Object> winUp = new HashMap<>();
+        winUp.put("usu_saldo", FieldValue.increment(winnerCoins));
+        winUp.put("usu_stats.carreras_ganadas", FieldValue.increment(1));
+        tr.update(userDoc(winnerUid), winUp);
+
+        // Perdedor
+        if (loserUid != null) {
+            long loserCoins = loserSteps / 2L;
+            if (loserCoins > 0L) {
+                tr.update(userDoc(loserUid), "usu_saldo", FieldValue.increment(loserCoins));
+            }
+        }
+    }
+
+    public static class MarathonDeadlineStats {
+        public final int pending;
+        public final long nextDeadlineMs;
+        public final long fired;
+        public final long settled;
+        public final long failures;
+
+        public MarathonDeadlineStats(int pending, long nextDeadlineMs, long fired,
+                                     long settled, long failures) {
+            this.pending = pending;
+            this.nextDeadlineMs = nextDeadlineMs;
+            this.fired = fired;
+            this.settled = settled;
+            this.failures = failures;
+        }
+    }
+
+    private static MarathonDeadlineScheduler marathonDeadlines(@NonNull Context context) {
+        synchronized (FirestoreRepo.class) {
+            if (marathonDeadlines == null) {
+                marathonDeadlines = new MarathonDeadlineScheduler(context, new FirestoreRepo());
+            }
+            return marathonDeadlines;
+        }
+    }
+
+    /**
+     * Programa el cierre de cada maratón abierta del snapshot de versus activos para el
+     * momento exacto en que vence (ver MarathonDeadlineScheduler).
+     */
+    public void scheduleMarathonDeadlines(@NonNull Context context, @NonNull QuerySnapshot activeVersus) {
+        marathonDeadlines(context).sync(activeVersus);
+    }
+
+    /**
+     * Alarma de vencimiento. Con el scheduler vivo cierra todo lo vencido; si el proceso
+     * arrancó por la alarma, cierra solo versusId. done se llama al terminar.
+     */
+    static void onMarathonAlarm(@NonNull Context context, @Nullable String versusId, @NonNull Runnable done) {
+        MarathonDeadlineScheduler m;
+        synchronized (FirestoreRepo.class) {
+            m = marathonDeadlines;
+        }
+        if (m != null) {
+            m.fireDue();
+            done.run();
+            return;
+        }
+        if (versusId == null || versusId.isEmpty()) {
+            done.run();
+            return;
+        }
+        new FirestoreRepo().settleVersus(versusId, v -> done.run(), e -> done.run());
+    }
+
+    public MarathonDeadlineStats getMarathonDeadlineStats() {
+        MarathonDeadlineScheduler m;
+        synchronized (FirestoreRepo.class) {
+            m = marathonDeadlines;
+        }
+        if (m == null) return new MarathonDeadlineStats(0, -1L, 0L, 0L, 0L);
+        return new MarathonDeadlineStats(m.getPending(), m.getNextDeadlineMs(), m.getFired(),
+                m.getSettled(), m.getFailures());
+    }
+
+    // Fin de una maratón (ver_createdAt + ver_days), o 0 si no aplica
+    static long marathonDeadlineMs(@NonNull DocumentSnapshot vs) {
+        long days = longOf(vs.get("ver_days"));
+        long createdAtMs = createdAtMs(vs);
+        if (days <= 0L || createdAtMs <= 0L) return 0L;
+        return createdAtMs + days * 24L * 60L * 60L * 1000L;
+    }
+
+    // ver_createdAt en ms, o 0 si todavía no lo resolvió el servidor
+    private static long createdAtMs(@NonNull DocumentSnapshot vs) {
+        Object cObj = vs.get("ver_createdAt");
+        if (cObj instanceof Timestamp) return ((Timestamp) cObj).toDate().getTime();
+        if (cObj instanceof Number) return ((Number) cObj).longValue();
+        return 0L;
+    }
+
+    @NonNull
+    private static List<String> playersOf(@NonNull DocumentSnapshot vs) {
         List<String> players = new ArrayList<>();
+        Object rawPlayers = vs.get("ver_players");
         if (rawPlayers instanceof List) {
             for (Object o : (List<?>) rawPlayers) {
                 if (o instanceof String) players.add((String) o);
             }
         }
-        if (players.isEmpty()) {
-            rankingDoc.getReference().delete();
-            return;
+        return players;
+    }
+
+    private static long longOf(@Nullable Object o) {
+        return (o instanceof Number) ? ((Number) o).longValue() : 0L;
+    }
+
+    public static class VersusPushStats {
+        public final long submitted;
+        public final long pushed;
+        public final long skipped;
+        public final long coalesced;
+        public final long failures;
+
+        public VersusPushStats(long submitted, long pushed, long skipped, long coalesced, long failures) {
+            this.submitted = submitted;
+            this.pushed = pushed;
+            this.skipped = skipped;
+            this.coalesced = coalesced;
+            this.failures = failures;
         }
+    }
 
-        List<Task<DocumentSnapshot>> tasks = new ArrayList<>();
-        for (String pid : players) {
-            tasks.add(userDoc(pid).get());
+    private VersusPushScheduler versusPush() {
+        synchronized (FirestoreRepo.class) {
+            if (versusPush == null) versusPush = new VersusPushScheduler(new FirestoreRepo());
+            return versusPush;
         }
+    }
 
-        Tasks.whenAllSuccess(tasks)
-                .addOnSuccessListener(results -> {
-                    List<WeeklyRankingRow> tmp = new ArrayList<>();
+    /**
+     * Único punto de entrada para empujar pasos a un versus: con debounce por id y
+     * una sola transacción en vuelo por documento.
+     */
+    public void pushVersusSteps(@NonNull String versusId, @NonNull String uid, long stepsToday) {
+        versusPush().submit(versusId, uid, stepsToday);
+    }
 
-                    for (Object o : results) {
-                        DocumentSnapshot s = (DocumentSnapshot) o;
-                        String pid = s.getId();
-
-                        Double kmD = null;
-                        Object vKm = s.get("usu_stats.km_semana");
-                        if (vKm instanceof Number) kmD = ((Number) vKm).doubleValue();
-                        double km = kmD == null ? 0.0 : kmD;
-                        long stepsWeek = Math.round(km * 1000.0);
-
-                        String nombre = s.getString("usu_nombre");
-                        if (nombre == null || nombre.trim().isEmpty()) {
-                            String shortId = pid;
-                            if (shortId.length() > 6) shortId = shortId.substring(0, 6);
-                            nombre = "@" + shortId;
+    public void forgetVersusPush(@NonNull String versusId) {
+        versusPush().forget(versusId);
+    }
+
+    public VersusPushStats getVersusPushStats() {
+        VersusPushScheduler s = versusPush();
+        return new VersusPushStats(s.getSubmitted(), s.getPushed(), s.getSkipped(),
+                s.getCoalesced(), s.getFailures());
+    }
+
+    // ========= LÍNEA DE TIEMPO DE VERSUS =========
+
+    // versus/{id}/timeline/{uid}_{n}: pasos acumulados de un jugador al final de cada
+    // intervalo de TIMELINE_SAMPLE_MS desde ver_createdAt, TIMELINE_CHUNK intervalos por doc.
+    // Cada doc guarda tl_first (primer intervalo), tl_count, tl_base (valor anterior a la
+    // primera muestra) y tl_data (diferencias en varint, ver TimelineCodec), así que se
+    // decodifica solo. Lo escribe el push de progreso al entrar en un intervalo nuevo.
+    static final String TIMELINE_COL = "timeline";
+    public static final long TIMELINE_SAMPLE_MS = 15L * 60L * 1000L;
+    static final int TIMELINE_CHUNK = 96;
+
+    // Intervalos [from, to] que se cierran con value; chunk es el doc donde cae from, si existe
+    private static final class TimelineAppend {
+        final String uid;
+        final long from;
+        final long to;
+        final long value;
+        final long prevValue;
+        @Nullable final DocumentSnapshot chunk;
+
+        TimelineAppend(String uid, long from, long to, long value, long prevValue,
+                       @Nullable DocumentSnapshot chunk) {
+            this.uid = uid;
+            this.from = from;
+            this.to = to;
+            this.value = value;
+            this.prevValue = prevValue;
+            this.chunk = chunk;
+        }
+    }
+
+    private static DocumentReference timelineDoc(@NonNull DocumentReference vsRef,
+                                                 @NonNull String uid,
+                                                 long chunk) {
+        return vsRef.collection(TIMELINE_COL).document(uid + "_" + chunk);
+    }
+
+    /**
+     * Si el push cae en un intervalo posterior al último registrado, los intervalos del medio
+     * terminaron con prevSteps. Lee el doc a extender (antes de cualquier escritura).
+     */
+    @Nullable
+    private TimelineAppend readTimelineAppend(@NonNull Transaction tr,
+                                              @NonNull DocumentSnapshot vs,
+                                              @NonNull String uid,
+                                              @NonNull DocumentSnapshot mine,
+                                              long prevSteps,
+                                              long now) throws FirebaseFirestoreException {
+        long start = createdAtMs(vs);
+        if (start <= 0L || now < start) return null;
+        long slot = (now - start) / TIMELINE_SAMPLE_MS;
+        Long lastSlotL = mine.getLong("tlSlot");
+        long lastSlot = lastSlotL == null ? -1L : lastSlotL;
+        long from = lastSlot + 1L;
+        long to = slot - 1L;
+        if (to < from) return null;
+
+        DocumentSnapshot chunk = null;
+        if (lastSlot >= 0L && lastSlot / TIMELINE_CHUNK == from / TIMELINE_CHUNK) {
+            chunk = tr.get(timelineDoc(vs.getReference(), uid, from / TIMELINE_CHUNK));
+            if (!chunk.exists()) chunk = null;
+        }
+        return new TimelineAppend(uid, from, to, prevSteps, longOf(mine.get("tlLast")), chunk);
+    }
+
+    private static void writeTimelineAppend(@NonNull Transaction tr,
+                                            @NonNull DocumentReference vsRef,
+                                            @NonNull TimelineAppend a) {
+        long prev = a.prevValue;
+        long slot = a.from;
+        while (slot <= a.to) {
+            long n = slot / TIMELINE_CHUNK;
+            long end = Math.min(a.to, (n + 1L) * TIMELINE_CHUNK - 1L);
+            long[] values = new long[(int) (end - slot + 1L)];
+            Arrays.fill(values, a.value);
+
+            Map<String, Object> doc = new HashMap<>();
+            if (a.chunk != null && slot == a.from) {
+                Blob old = a.chunk.getBlob("tl_data");
+                byte[] data = TimelineCodec.append(old == null ? null : old.toBytes(), prev, values);
+                doc.put("tl_count", longOf(a.chunk.get("tl_count")) + values.length);
+                doc.put("tl_data", Blob.fromBytes(data));
+                tr.set(a.chunk.getReference(), doc, SetOptions.merge());
+            } else {
+                doc.put("tl_uid", a.uid);
+                doc.put("tl_chunk", n);
+                doc.put("tl_first", slot);
+                doc.put("tl_base", prev);
+                doc.put("tl_count", (long) values.length);
+                doc.put("tl_data", Blob.fromBytes(TimelineCodec.append(null, prev, values)));
+                tr.set(timelineDoc(vsRef, a.uid, n), doc);
+            }
+            prev = a.value;
+            slot = end + 1L;
+        }
+    }
+
+    public static class VersusTimeline {
+        public final long startMs;
+        public final long sampleMs;
+        // Intervalos cubiertos: stepsAt admite 0..slots-1
+        public final int slots;
+        public final Map<String, long[]> stepsByPlayer;
+
+        public VersusTimeline(long startMs, long sampleMs, int slots, Map<String, long[]> stepsByPlayer) {
+            this.startMs = startMs;
+            this.sampleMs = sampleMs;
+            this.slots = slots;
+            this.stepsByPlayer = stepsByPlayer;
+        }
+
+        public long stepsAt(@NonNull String uid, int slot) {
+            long[] s = stepsByPlayer.get(uid);
+            if (s == null || s.length == 0) return 0L;
+            return s[Math.max(0, Math.min(slot, s.length - 1))];
+        }
+    }
+
+    /**
+     * Baja la línea de tiempo completa de un versus (unos pocos KB) y la deja lista para
+     * recorrer: un valor por intervalo y jugador, repitiendo el anterior donde no hubo muestra.
+     */
+    public void loadVersusTimeline(@NonNull String versusId,
+                                   @NonNull OnSuccessListener<VersusTimeline> ok,
+                                   @NonNull OnFailureListener err) {
+        Task<DocumentSnapshot> tVs = versusDoc(versusId).get();
+        Task<QuerySnapshot> tChunks = timelineCol(versusId).get();
+        Tasks.whenAllSuccess(tVs, tChunks)
+                .addOnSuccessListener(res -> {
+                    DocumentSnapshot vs = (DocumentSnapshot) res.get(0);
+                    QuerySnapshot chunks = (QuerySnapshot) res.get(1);
+
+                    Map<String, long[]> sparse = new HashMap<>();
+                    Map<String, boolean[]> seen = new HashMap<>();
+                    int slots = 0;
+                    List<DocumentSnapshot> docs = chunks.getDocuments();
+                    for (DocumentSnapshot d : docs) {
+                        int last = (int) (longOf(d.get("tl_first")) + longOf(d.get("tl_count")));
+                        slots = Math.max(slots, last);
+                    }
+
+                    for (DocumentSnapshot d : docs) {
+                        String pid = d.getString("tl_uid");
+                        if (pid == null) continue;
+                        long[] arr = sparse.get(pid);
+                        if (arr == null) {
+                            arr = new long[slots];
+                            sparse.put(pid, arr);
+                            seen.put(pid, new boolean[slots]);
+                        }
+                        boolean[] mark = seen.get(pid);
+                        Blob blob = d.getBlob("tl_data");
+                        int first = (int) longOf(d.get("tl_first"));
+                        long[] values = TimelineCodec.decode(blob == null ? null : blob.toBytes(),
+                                longOf(d.get("tl_base")), (int) longOf(d.get("tl_count")));
+                        for (int i = 0; i < values.length && first + i < slots; i++) {
+                            arr[first + i] = values[i];
+                            mark[first + i] = true;
+                        }
+                    }
+
+                    // Huecos (doc faltante o jugador que se sumó tarde): se arrastra el último valor
+                    for (Map.Entry<String, long[]> e : sparse.entrySet()) {
+                        long[] arr = e.getValue();
+                        boolean[] mark = seen.get(e.getKey());
+                        long carry = 0L;
+                        for (int i = 0; i < arr.length; i++) {
+                            if (mark[i]) carry = arr[i];
+                            else arr[i] = carry;
                         }
+                    }
+                    for (String pid : playersOf(vs)) {
+                        if (!sparse.containsKey(pid)) sparse.put(pid, new long[slots]);
+                    }
+
+                    ok.onSuccess(new VersusTimeline(createdAtMs(vs), TIMELINE_SAMPLE_MS, slots, sparse));
+                })
+                .addOnFailureListener(err);
+    }
+
+    // ========= LEADERBOARD GLOBAL (MATERIALIZADO) =========
+
+    // leaderboards/global: top LEADERBOARD_SIZE por km_total, ordenado de mayor a menor
+    public static final int LEADERBOARD_SIZE = 50;
+    // Más viejo que esto se vuelve a pedir al servidor después de mostrar la caché
+    public static final long LEADERBOARD_MAX_AGE_MS = 5L * 60L * 1000L;
+    // Un miembro que no cambia de puesto ni mueve el corte reescribe su km a lo sumo así de seguido
+    public static final long LEADERBOARD_MIN_WRITE_MS = 10L * 60L * 1000L;
+
+    // Corte, miembros y filas del último leaderboard visto (null = todavía no se leyó)
+    private static Double lbCutoff;
+    private static boolean lbFull = false;
+    private static final HashSet<String> lbMembers = new HashSet<>();
+    private static final List<Map<String, Object>> lbEntries = new ArrayList<>();
+
+    public static class GlobalRankingRow {
+        public final String uid;
+        public final String nombre;
+        public final double kmTotal;
+        public final int position;
+
+        public GlobalRankingRow(String uid, String nombre, double kmTotal, int position) {
+            this.uid = uid;
+            this.nombre = nombre;
+            this.kmTotal = kmTotal;
+            this.position = position;
+        }
+    }
+
+    public static class GlobalLeaderboard {
+        public final List<GlobalRankingRow> rows;
+        public final long updatedAtMs;
+        public final boolean fromCache;
 
-                        tmp.add(new WeeklyRankingRow(pid, nombre, km, stepsWeek, 0, 0L));
+        public GlobalLeaderboard(List<GlobalRankingRow> rows, long updatedAtMs, boolean fromCache) {
+            this.rows = rows;
+            this.updatedAtMs = updatedAtMs;
+            this.fromCache = fromCache;
+        }
+    }
+
+    private DocumentReference globalLeaderboardDoc() {
+        return db.collection("leaderboards").document("global");
+    }
+
+    /**
+     * Primero entrega lo que haya en caché; si no hay o está vencido, vuelve a llamar a ok
+     * con la versión del servidor. Siempre es una sola lectura de documento.
+     */
+    public void loadGlobalLeaderboard(@NonNull OnSuccessListener<GlobalLeaderboard> ok,
+                                      @NonNull OnFailureListener err) {
+        DocumentReference ref = globalLeaderboardDoc();
+        ref.get(Source.CACHE)
+                .addOnSuccessListener(cached -> {
+                    if (!cached.exists()) {
+                        loadGlobalLeaderboardFromServer(ok, err);
+                        return;
+                    }
+                    GlobalLeaderboard lb = parseLeaderboard(cached, true);
+                    ok.onSuccess(lb);
+                    if (System.currentTimeMillis() - lb.updatedAtMs > LEADERBOARD_MAX_AGE_MS) {
+                        loadGlobalLeaderboardFromServer(ok, err);
+                    }
+                })
+                .addOnFailureListener(e -> loadGlobalLeaderboardFromServer(ok, err));
+    }
+
+    private void loadGlobalLeaderboardFromServer(@NonNull OnSuccessListener<GlobalLeaderboard> ok,
+                                                 @NonNull OnFailureListener err) {
+        globalLeaderboardDoc().get(Source.SERVER)
+                .addOnSuccessListener(snap -> {
+                    if (snap.exists()) {
+                        ok.onSuccess(parseLeaderboard(snap, false));
+                    } else {
+                        seedGlobalLeaderboard(ok, err);
+                    }
+                })
+                .addOnFailureListener(err);
+    }
+
+    // Primera vez (sin documento): se arma una sola vez con la consulta ordenada sobre users
+    private void seedGlobalLeaderboard(@NonNull OnSuccessListener<GlobalLeaderboard> ok,
+                                       @NonNull OnFailureListener err) {
+        db.collection("users")
+                .orderBy("usu_stats.km_total", Query.Direction.DESCENDING)
+                .limit(LEADERBOARD_SIZE)
+                .get()
+                .addOnSuccessListener(qs -> {
+                    List<Map<String, Object>> entries = new ArrayList<>();
+                    for (DocumentSnapshot u : qs.getDocuments()) {
+                        entries.add(leaderboardEntry(u));
                     }
+                    Map<String, Object> data = leaderboardData(entries);
+                    globalLeaderboardDoc().set(data)
+                            .addOnSuccessListener(v ->
+                                    globalLeaderboardDoc().get(Source.SERVER)
+                                            .addOnSuccessListener(snap ->
+                                                    ok.onSuccess(parseLeaderboard(snap, false)))
+                                            .addOnFailureListener(err))
+                            .addOnFailureListener(err);
+                })
+                .addOnFailureListener(err);
+    }
+
+    /**
+     * Solo toca el documento si el usuario entra al top, cambia de puesto o mueve el corte;
+     * si no, su km se refresca como mucho cada LEADERBOARD_MIN_WRITE_MS.
+     * kmTotal < 0 significa desconocido: se resuelve dentro de la transacción.
+     * El top leído se recuerda aunque no se escriba, así los que quedan debajo del corte
+     * no vuelven a leerlo hasta cruzarlo.
+     */
+    private void maybeUpdateGlobalLeaderboard(@NonNull String uid, double kmTotal) {
+        long now = System.currentTimeMillis();
+        synchronized (lbMembers) {
+            if (lbCutoff != null && lbFull && kmTotal >= 0.0
+                    && kmTotal < lbCutoff && !lbMembers.contains(uid)) {
+                return;
+            }
+            if (kmTotal >= 0.0 && lbMembers.contains(uid)
+                    && !leaderboardNeedsWrite(lbEntries, uid, kmTotal, now)) {
+                return;
+            }
+        }
+
+        DocumentReference ref = globalLeaderboardDoc();
+        db.runTransaction((Transaction.Function<Map<String, Object>>) tr -> {
+            DocumentSnapshot board = tr.get(ref);
+            DocumentSnapshot user = tr.get(userDoc(uid));
+            if (!board.exists()) return null;
+
+            List<Map<String, Object>> entries = leaderboardEntries(board);
+            // Lo que se devuelve sin escribir: el top tal como se leyó
+            Map<String, Object> read = leaderboardData(new ArrayList<>(entries));
+            if (!user.exists()) return read;
+
+            Object userKm = user.get("usu_stats.km_total");
+            double freshKm = userKm instanceof Number ? ((Number) userKm).doubleValue() : 0.0;
+            if (!leaderboardNeedsWrite(entries, uid, freshKm, System.currentTimeMillis())) return read;
+            boolean wasMember = false;
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (uid.equals(entries.get(i).get("uid"))) {
+                    entries.remove(i);
+                    wasMember = true;
+                }
+            }
+
+            Map<String, Object> mine = leaderboardEntry(user);
+            double myKm = ((Number) mine.get("km")).doubleValue();
+            double cutoff = entries.size() < LEADERBOARD_SIZE ? 0.0
+                    : ((Number) entries.get(entries.size() - 1).get("km")).doubleValue();
+            if (!wasMember && entries.size() >= LEADERBOARD_SIZE && myKm <= cutoff) return read;
+
+            entries.add(mine);
+            Map<String, Object> data = leaderboardData(entries);
+            tr.set(ref, data);
+            return data;
+        }).addOnSuccessListener(data -> {
+            if (data == null) return;
+            //noinspection unchecked
+            List<Map<String, Object>> top = (List<Map<String, Object>>) data.get("lb_entries");
+            rememberLeaderboard(top, ((Number) data.get("lb_cutoff")).doubleValue());
+        });
+    }
+
+    /**
+     * entries viene ordenado de mayor a menor. Hace falta escribir si uid no está, si con km
+     * cambia de puesto, si es el último de un top lleno (define el corte) o si su fila ya
+     * tiene más de LEADERBOARD_MIN_WRITE_MS.
+     */
+    static boolean leaderboardNeedsWrite(@NonNull List<Map<String, Object>> entries,
+                                         @NonNull String uid, double km, long nowMs) {
+        int idx = -1;
+        int newPos = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Map<String, Object> e = entries.get(i);
+            if (uid.equals(e.get("uid"))) {
+                idx = i;
+                continue;
+            }
+            Object k = e.get("km");
+            if (k instanceof Number && ((Number) k).doubleValue() > km) newPos++;
+        }
+        if (idx < 0 || newPos != idx) return true;
+        if (idx == entries.size() - 1 && entries.size() >= LEADERBOARD_SIZE) return true;
+        Object at = entries.get(idx).get("at");
+        long atMs = at instanceof Number ? ((Number) at).longValue() : 0L;
+        return nowMs - atMs >= LEADERBOARD_MIN_WRITE_MS;
+    }
+
+    private static void rememberLeaderboard(@NonNull List<Map<String, Object>> entries, double cutoff) {
+        synchronized (lbMembers) {
+            lbEntries.clear();
+            lbEntries.addAll(entries);
+            lbMembers.clear();
+            for (Map<String, Object> e : entries) lbMembers.add((String) e.get("uid"));
+            lbCutoff = cutoff;
+            lbFull = entries.size() >= LEADERBOARD_SIZE;
+        }
+    }
+
+    private static Map<String, Object> leaderboardEntry(@NonNull DocumentSnapshot user) {
+        Map<String, Object> e = new HashMap<>();
+        e.put("uid", user.getId());
+        e.put("nombre", displayName(user.getString("usu_nombre"), user.getId()));
+        Object vKm = user.get("usu_stats.km_total");
+        e.put("km", vKm instanceof Number ? ((Number) vKm).doubleValue() : 0.0);
+        // Última vez que se escribió esta fila (para el throttle de leaderboardNeedsWrite)
+        e.put("at", System.currentTimeMillis());
+        return e;
+    }
+
+    // Ordena, recorta a LEADERBOARD_SIZE y calcula el corte
+    private static Map<String, Object> leaderboardData(@NonNull List<Map<String, Object>> entries) {
+        Collections.sort(entries, (a, b) -> Double.compare(
+                ((Number) b.get("km")).doubleValue(),
+                ((Number) a.get("km")).doubleValue()));
+        List<Map<String, Object>> top = new ArrayList<>(
+                entries.subList(0, Math.min(LEADERBOARD_SIZE, entries.size())));
+
+        double cutoff = top.size() < LEADERBOARD_SIZE ? 0.0
+                : ((Number) top.get(top.size() - 1).get("km")).doubleValue();
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("lb_entries", top);
+        data.put("lb_cutoff", cutoff);
+        data.put("lb_size", top.size());
+        data.put("lb_updatedAt", System.currentTimeMillis());
+        return data;
+    }
+
+    @NonNull
+    private static List<Map<String, Object>> leaderboardEntries(@NonNull DocumentSnapshot board) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        Object raw = board.get("lb_entries");
+        if (!(raw instanceof List)) return out;
+        for (Object o : (List<?>) raw) {
+            if (!(o instanceof Map)) continue;
+            Map<?, ?> m = (Map<?, ?>) o;
+            if (!(m.get("uid") instanceof String)) continue;
+            Map<String, Object> e = new HashMap<>();
+            e.put("uid", m.get("uid"));
+            e.put("nombre", m.get("nombre") instanceof String ? m.get("nombre") : "");
+            e.put("km", m.get("km") instanceof Number ? ((Number) m.get("km")).doubleValue() : 0.0);
+            if (m.get("at") instanceof Number) e.put("at", ((Number) m.get("at")).longValue());
+            out.add(e);
+        }
+        return out;
+    }
+
+    // Parsea el documento y de paso actualiza el corte conocido
+    private static GlobalLeaderboard parseLeaderboard(@NonNull DocumentSnapshot snap, boolean fromCache) {
+        List<Map<String, Object>> entries = leaderboardEntries(snap);
+        List<GlobalRankingRow> rows = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Map<String, Object> e = entries.get(i);
+            String pid = (String) e.get("uid");
+            rows.add(new GlobalRankingRow(pid, displayName((String) e.get("nombre"), pid),
+                    ((Number) e.get("km")).doubleValue(), i + 1));
+        }
+
+        if (snap.exists()) {
+            Object c = snap.get("lb_cutoff");
+            rememberLeaderboard(entries, c instanceof Number ? ((Number) c).doubleValue() : 0.0);
+        }
+
+        Object u = snap.get("lb_updatedAt");
+        long updatedAt = u instanceof Number ? ((Number) u).longValue() : 0L;
+        return new GlobalLeaderboard(rows, updatedAt, fromCache);
+    }
+
+    // ========= POSICIÓN GLOBAL (HISTOGRAMA DE KM) =========
+
+    // leaderboards/histogram: hist_buckets.{i} = usuarios con km_total en [i*W, (i+1)*W)
+    public static final double HIST_BUCKET_KM = 5.0;
+    // El último bucket junta todo lo que supere (HIST_BUCKETS - 1) * W
+    public static final int HIST_BUCKETS = 400;
+    // Marca en memoria mientras corre assignHistBucket
+    private static final int HIST_ASSIGNING = -2;
+
+    public static class RankEstimate {
+        public final long rank;
+        public final long totalUsers;
+        public final double kmTotal;
+
+        public RankEstimate(long rank, long totalUsers, double kmTotal) {
+            this.rank = rank;
+            this.totalUsers = totalUsers;
+            this.kmTotal = kmTotal;
+        }
+    }
+
+    private DocumentReference histogramDoc() {
+        return db.collection("leaderboards").document("histogram");
+    }
+
+    static int histBucket(double km) {
+        if (km <= 0.0) return 0;
+        return (int) Math.min(HIST_BUCKETS - 1, Math.floor(km / HIST_BUCKET_KM));
+    }
+
+    /**
+     * Cuenta por primera vez al usuario en el histograma. Relee hist_bucket dentro de la
+     * transacción: si el backfill ya lo contó, solo se toma su bucket.
+     */
+    private void assignHistBucket(@NonNull String uid) {
+        DocumentReference ref = userDoc(uid);
+        db.runTransaction(tr -> {
+            DocumentSnapshot s = tr.get(ref);
+            Object hb = s.get("usu_stats.hist_bucket");
+            if (hb instanceof Number) return ((Number) hb).intValue();
+            Object t = s.get("usu_stats.km_total");
+            int bucket = histBucket(t instanceof Number ? ((Number) t).doubleValue() : 0.0);
+            Map<String, Object> counts = new HashMap<>();
+            counts.put(String.valueOf(bucket), FieldValue.increment(1));
+            Map<String, Object> hist = new HashMap<>();
+            hist.put("hist_buckets", counts);
+            tr.set(histogramDoc(), hist, SetOptions.merge());
+            tr.update(ref, "usu_stats.hist_bucket", bucket);
+            return bucket;
+        }).addOnSuccessListener(bucket -> {
+            synchronized (knownMaxDaily) {
+                knownHistBucket.put(uid, bucket);
+            }
+        }).addOnFailureListener(e -> {
+            synchronized (knownMaxDaily) {
+                knownHistBucket.remove(uid);
+                knownKmTotal.remove(uid);
+            }
+        });
+    }
+
+    /**
+     * Posición aproximada del usuario: suma de los buckets por encima del suyo más una
+     * interpolación lineal dentro del propio. Dos lecturas (usuario + histograma).
+     */
+    public void estimateGlobalRank(@NonNull String uid,
+                                   @NonNull OnSuccessListener<RankEstimate> ok,
+                                   @NonNull OnFailureListener err) {
+        Tasks.whenAllSuccess(userDoc(uid).get(), histogramDoc().get())
+                .addOnSuccessListener(res -> {
+                    DocumentSnapshot user = (DocumentSnapshot) res.get(0);
+                    DocumentSnapshot hist = (DocumentSnapshot) res.get(1);
 
-                    Collections.sort(tmp, (a, b) ->
-                            Double.compare(b.kmSemana, a.kmSemana));
-
-                    List<WeeklyRankingRow> rows = new ArrayList<>();
-                    for (int i = 0; i < tmp.size(); i++) {
-                        WeeklyRankingRow base = tmp.get(i);
-                        int pos = i + 1;
-                        long coins;
-                        if (pos == 1) coins = base.stepsWeek * 3L;
-                        else if (pos == 2) coins = base.stepsWeek * 2L;
-                        else if (pos == 3) coins = base.stepsWeek;
-                        else coins = 0L;
-
-                        rows.add(new WeeklyRankingRow(
-                                base.uid,
-                                base.nombre,
-                                base.kmSemana,
-                                base.stepsWeek,
-                                pos,
-                                coins
-                        ));
+                    Object vKm = user.get("usu_stats.km_total");
+                    double km = vKm instanceof Number ? ((Number) vKm).doubleValue() : 0.0;
+                    boolean counted = user.get("usu_stats.hist_bucket") instanceof Number;
+
+                    long[] counts = new long[HIST_BUCKETS];
+                    Object raw = hist.get("hist_buckets");
+                    if (raw instanceof Map) {
+                        for (Map.Entry<?, ?> e : ((Map<?, ?>) raw).entrySet()) {
+                            try {
+                                int i = Integer.parseInt(String.valueOf(e.getKey()));
+                                if (i >= 0 && i < HIST_BUCKETS && e.getValue() instanceof Number) {
+                                    counts[i] = Math.max(0L, ((Number) e.getValue()).longValue());
+                                }
+                            } catch (NumberFormatException ignored) {
+                            }
+                        }
                     }
+                    ok.onSuccess(estimateRank(counts, km, counted));
+                })
+                .addOnFailureListener(err);
+    }
+
+    static RankEstimate estimateRank(@NonNull long[] counts, double km, boolean counted) {
+        int b = histBucket(km);
+        long total = 0L;
+        long above = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            if (i > b) above += counts[i];
+        }
+        if (!counted) total++;
+
+        // Los demás del mismo bucket se reparten parejo en el rango
+        long others = Math.max(0L, counts[b] - (counted ? 1L : 0L));
+        double frac = b == HIST_BUCKETS - 1 ? 0.5
+                : Math.min(1.0, Math.max(0.0, (km - b * HIST_BUCKET_KM) / HIST_BUCKET_KM));
+        long rank = above + Math.round(others * (1.0 - frac)) + 1L;
+        return new RankEstimate(Math.min(rank, Math.max(1L, total)), total, km);
+    }
+
+    /**
+     * Los n usuarios inmediatamente por encima y por debajo en km_total, más el propio.
+     * Las posiciones se numeran alrededor de la estimada (aroundRank).
+     */
+    public void loadRankNeighbours(@NonNull String uid,
+                                   double kmTotal,
+                                   long aroundRank,
+                                   int n,
+                                   @NonNull OnSuccessListener<List<GlobalRankingRow>> ok,
+                                   @NonNull OnFailureListener err) {
+        Task<QuerySnapshot> tAbove = db.collection("users")
+                .whereGreaterThan("usu_stats.km_total", kmTotal)
+                .orderBy("usu_stats.km_total", Query.Direction.ASCENDING)
+                .limit(n)
+                .get();
+        Task<QuerySnapshot> tBelow = db.collection("users")
+                .whereLessThanOrEqualTo("usu_stats.km_total", kmTotal)
+                .orderBy("usu_stats.km_total", Query.Direction.DESCENDING)
+                .limit(n + 1)
+                .get();
 
-                    WriteBatch batch = db.batch();
-                    for (WeeklyRankingRow r : rows) {
-                        if (r.coins > 0L) {
-                            batch.update(userDoc(r.uid),
-                                    "usu_saldo", FieldValue.increment(r.coins));
+        Tasks.whenAllSuccess(tAbove, tBelow)
+                .addOnSuccessListener(res -> {
+                    List<DocumentSnapshot> above = new ArrayList<>(((QuerySnapshot) res.get(0)).getDocuments());
+                    Collections.reverse(above);
+                    List<DocumentSnapshot> below = new ArrayList<>();
+                    DocumentSnapshot self = null;
+                    for (DocumentSnapshot d : ((QuerySnapshot) res.get(1)).getDocuments()) {
+                        if (d.getId().equals(uid)) {
+                            self = d;
+                        } else if (below.size() < n) {
+                            below.add(d);
                         }
                     }
-                    batch.delete(rankingDoc.getReference());
-                    batch.commit();
+
+                    List<GlobalRankingRow> rows = new ArrayList<>();
+                    long pos = aroundRank - above.size();
+                    for (DocumentSnapshot d : above) rows.add(neighbourRow(d, pos++));
+                    if (self != null) {
+                        rows.add(neighbourRow(self, aroundRank));
+                    } else {
+                        rows.add(new GlobalRankingRow(uid, displayName(null, uid), kmTotal, (int) aroundRank));
+                    }
+                    pos = aroundRank + 1;
+                    for (DocumentSnapshot d : below) rows.add(neighbourRow(d, pos++));
+                    ok.onSuccess(rows);
+                })
+                .addOnFailureListener(err);
+    }
+
+    private static GlobalRankingRow neighbourRow(@NonNull DocumentSnapshot d, long position) {
+        Object vKm = d.get("usu_stats.km_total");
+        double km = vKm instanceof Number ? ((Number) vKm).doubleValue() : 0.0;
+        return new GlobalRankingRow(d.getId(), displayName(d.getString("usu_nombre"), d.getId()),
+                km, (int) Math.max(1L, position));
+    }
+
+    // ========= RANKINGS SEMANALES =========
+
+    public static class WeeklyRankingRow {
+        public final String uid;
+        public final String nombre;
+        public final double kmSemana;
+        public final long stepsWeek;
+        public final int position;
+        public final long coins;
+
+        public WeeklyRankingRow(String uid,
+                                String nombre,
+                                double kmSemana,
+                                long stepsWeek,
+                                int position,
+                                long coins) {
+            this.uid = uid;
+            this.nombre = nombre;
+            this.kmSemana = kmSemana;
+            this.stepsWeek = stepsWeek;
+            this.position = position;
+            this.coins = coins;
+        }
+    }
+
+    public static class WeeklyRankingResult {
+        public final List<WeeklyRankingRow> rows;
+        public final boolean rewardsApplied;
+        public final long weekKey;
+
+        public WeeklyRankingResult(List<WeeklyRankingRow> rows,
+                                   boolean rewardsApplied,
+                                   long weekKey) {
+            this.rows = rows;
+            this.rewardsApplied = rewardsApplied;
+            this.weekKey = weekKey;
+        }
+    }
+
+    public void loadWeeklyRankingForUser(@NonNull String uid,
+                                         @NonNull OnSuccessListener<WeeklyRankingResult> ok,
+                                         @NonNull OnFailureListener err) {
+
+        long weekKey = currentWeekKey();
+
+        cleanupOldRankingsForUser(uid, weekKey);
+
+        rankingsCol()
+                .whereEqualTo("ran_weekKey", weekKey)
+                .whereArrayContains("ran_players", uid)
+                .limit(1)
+                .get()
+                .addOnSuccessListener(qs -> {
+                    if (!qs.isEmpty()) {
+                        DocumentSnapshot doc = qs.getDocuments().get(0);
+                        rememberRanking(weekKey, uid, doc.getId());
+                        buildWeeklyRows(doc, weekKey, ok, err);
+                    } else {
+                        // Todavía no está en ninguna tabla: lo asignamos a una
+                        assignUserToWeeklyRanking(uid, weekKey,
+                                doc -> {
+                                    rememberRanking(weekKey, uid, doc.getId());
+                                    buildWeeklyRows(doc, weekKey, ok, err);
+                                },
+                                err);
+                    }
+                })
+                .addOnFailureListener(err);
+    }
+
+    private void cleanupOldRankingsForUser(@NonNull String uid, long currentWeekKey) {
+        rankingsCol()
+                .whereArrayContains("ran_players", uid)
+                .whereLessThan("ran_weekKey", currentWeekKey)
+                .get()
+                .addOnSuccessListener(qs -> {
+                    for (DocumentSnapshot d : qs.getDocuments()) {
+                        applyWeeklyRewardsAndDelete(d);
+                    }
                 });
     }
 
+    private void applyWeeklyRewardsAndDelete(@NonNull DocumentSnapshot rankingDoc) {
+        List<String> players = stringList(rankingDoc.get("ran_players"));
+        if (players.isEmpty() || Boolean.TRUE.equals(rankingDoc.getBoolean("ran_rewardsApplied"))) {
+            rankingDoc.getReference().delete();
+            return;
+        }
+
+        List<WeeklyRankingRow> fromScores = rowsFromScores(rankingDoc, players);
+        if (fromScores != null) {
+            commitWeeklyRewards(rankingDoc, rankRows(fromScores));
+            return;
+        }
+
+        List<Task<DocumentSnapshot>> tasks = new ArrayList<>();
+        for (String pid : players) {
+            tasks.add(userDoc(pid).get());
+        }
+
+        Tasks.whenAllSuccess(tasks)
+                .addOnSuccessListener(results ->
+                        commitWeeklyRewards(rankingDoc, rankRows(rowsFromUsers(results))));
+    }
+
+    // Transacción y no batch: el job de liquidación (jobs/WeeklySettlementJob) puede haber
+    // pagado la tabla entre la lectura y el commit; si ran_rewardsApplied ya está, solo se borra.
+    private void commitWeeklyRewards(@NonNull DocumentSnapshot rankingDoc,
+                                     @NonNull List<WeeklyRankingRow> rows) {
+        DocumentReference ref = rankingDoc.getReference();
+        db.runTransaction(tr -> {
+            DocumentSnapshot cur = tr.get(ref);
+            if (!cur.exists()) return null;
+            if (!Boolean.TRUE.equals(cur.getBoolean("ran_rewardsApplied"))) {
+                for (WeeklyRankingRow r : rows) {
+                    if (r.coins > 0L) {
+                        tr.update(userDoc(r.uid),
+                                "usu_saldo", FieldValue.increment(r.coins));
+                    }
+                }
+            }
+            tr.delete(ref);
+            return null;
+        });
+    }
+
     public void updateChosenStatsForUser(@NonNull String uid,
                                          @Nullable String slot1Key,
                                          @Nullable String slot2Key) {
@@ -1241,6 +3330,23 @@ public class FirestoreRepo {
         userDoc(uid).update(up);
     }
 
+    // Pool de matchmaking semanal: ranking_pool/{weekKey}_{uid}. Cada entrada cae en un
+    // bucket al azar y lleva un número aleatorio, así elegir rivales es una consulta acotada
+    // (bucket + rango de rpo_rand) en lugar de leer toda la colección users.
+    private static final int RANKING_TABLE_SIZE = 5;
+    private static final int OPEN_TABLES_SCAN = 10;
+    private static final int POOL_BUCKETS = 16;
+    private static final int POOL_PAGE = 8;
+    private static final int POOL_BUCKET_PROBES = 3;
+
+    private CollectionReference rankingPoolCol() {
+        return db.collection("ranking_pool");
+    }
+
+    private DocumentReference poolEntry(long weekKey, @NonNull String uid) {
+        return rankingPoolCol().document(weekKey + "_" + uid);
+    }
+
     private void assignUserToWeeklyRanking(@NonNull String uid,
                                            long weekKey,
                                            @NonNull OnSuccessListener<DocumentSnapshot> ok,
@@ -1248,94 +3354,235 @@ public class FirestoreRepo {
 
         rankingsCol()
                 .whereEqualTo("ran_weekKey", weekKey)
-                .whereEqualTo("ran_finished", false)
+                .whereEqualTo("ran_open", true)
+                .limit(OPEN_TABLES_SCAN)
                 .get()
                 .addOnSuccessListener(qs -> {
                     List<DocumentSnapshot> candidates = new ArrayList<>();
-                    HashSet<String> usedPlayers = new HashSet<>();
-
                     for (DocumentSnapshot d : qs.getDocuments()) {
-                        Object raw = d.get("ran_players");
-                        if (raw instanceof List) {
-                            for (Object o : (List<?>) raw) {
-                                if (o instanceof String) {
-                                    usedPlayers.add((String) o);
-                                }
-                            }
-                        }
-
-                        List<String> players = new ArrayList<>();
-                        Object rawPlayers = d.get("ran_players");
-                        if (rawPlayers instanceof List) {
-                            for (Object o : (List<?>) rawPlayers) {
-                                if (o instanceof String) players.add((String) o);
-                            }
-                        }
-                        if (!players.contains(uid) && players.size() < 5) {
+                        List<String> players = stringList(d.get("ran_players"));
+                        if (!players.contains(uid) && players.size() < RANKING_TABLE_SIZE) {
                             candidates.add(d);
                         }
                     }
 
-                    if (!candidates.isEmpty()) {
-                        DocumentSnapshot chosen = candidates.get(new Random().nextInt(candidates.size()));
-                        DocumentReference ref = chosen.getReference();
-                        ref.update("ran_players", FieldValue.arrayUnion(uid))
-                                .addOnSuccessListener(v ->
-                                        ref.get().addOnSuccessListener(ok).addOnFailureListener(err))
-                                .addOnFailureListener(err);
-                    } else {
-                        usedPlayers.add(uid);
-
-                        db.collection("users").get()
-                                .addOnSuccessListener(userQs -> {
-                                    List<DocumentSnapshot> users = userQs.getDocuments();
-                                    Collections.shuffle(users, new Random());
-
-                                    List<String> players = new ArrayList<>();
-                                    players.add(uid);
-
-                                    for (DocumentSnapshot uSnap : users) {
-                                        String pid = uSnap.getId();
-                                        if (usedPlayers.contains(pid)) continue;
-                                        if (pid.equals(uid)) continue;
-                                        Boolean susp = uSnap.getBoolean("usu_suspendido");
-                                        if (susp != null && susp) continue;
-
-                                        players.add(pid);
-                                        usedPlayers.add(pid);
-                                        if (players.size() >= 5) break;
-                                    }
+                    if (candidates.isEmpty()) {
+                        createRankingFromPool(uid, weekKey, ok, err);
+                        return;
+                    }
 
-                                    Map<String, Object> data = new HashMap<>();
-                                    data.put("ran_weekKey", weekKey);
-                                    data.put("ran_createdAt", System.currentTimeMillis());
-                                    data.put("ran_finished", false);
-                                    data.put("ran_rewardsApplied", false);
-                                    data.put("ran_players", players);
-
-                                    rankingsCol().add(data)
-                                            .addOnSuccessListener(ref ->
-                                                    ref.get().addOnSuccessListener(ok).addOnFailureListener(err))
-                                            .addOnFailureListener(err);
-                                })
-                                .addOnFailureListener(err);
+                    DocumentReference ref = candidates
+                            .get(new Random().nextInt(candidates.size()))
+                            .getReference();
+                    joinOpenRanking(ref, uid, weekKey)
+                            .addOnSuccessListener(joinedId -> {
+                                if (joinedId != null) {
+                                    rankingsCol().document(joinedId).get()
+                                            .addOnSuccessListener(ok).addOnFailureListener(err);
+                                } else {
+                                    // Se llenó mientras tanto: armamos una tabla nueva
+                                    createRankingFromPool(uid, weekKey, ok, err);
+                                }
+                            })
+                            .addOnFailureListener(err);
+                })
+                .addOnFailureListener(err);
+    }
+
+    // Devuelve el id de la tabla en la que quedó el usuario, o null si ref ya estaba llena
+    private Task<String> joinOpenRanking(@NonNull DocumentReference ref,
+                                         @NonNull String uid,
+                                         long weekKey) {
+        return db.runTransaction((Transaction.Function<String>) tr -> {
+            String assigned = assignedTable(tr.get(poolEntry(weekKey, uid)));
+            if (assigned != null) return assigned;
+            DocumentSnapshot table = tr.get(ref);
+            if (!table.exists()) return null;
+            List<String> players = stringList(table.get("ran_players"));
+            if (players.contains(uid)) return ref.getId();
+            if (players.size() >= RANKING_TABLE_SIZE) return null;
+            DocumentSnapshot user = tr.get(userDoc(uid));
+
+            players.add(uid);
+            tr.update(ref, "ran_players", players,
+                    "ran_open", players.size() < RANKING_TABLE_SIZE,
+                    "ran_scores." + uid, scoreEntry(user));
+            tr.set(poolEntry(weekKey, uid), newPoolEntry(weekKey, uid, ref.getId()));
+            return ref.getId();
+        });
+    }
+
+    private void createRankingFromPool(@NonNull String uid,
+                                       long weekKey,
+                                       @NonNull OnSuccessListener<DocumentSnapshot> ok,
+                                       @NonNull OnFailureListener err) {
+        // Primero entramos al pool para que otros nos puedan elegir si esta tabla no se llena;
+        // si una corrida anterior ya nos dejó en el pool y alguien nos eligió, vamos a esa tabla
+        DocumentReference own = poolEntry(weekKey, uid);
+        db.runTransaction((Transaction.Function<String>) tr -> {
+                    String assigned = assignedTable(tr.get(own));
+                    if (assigned == null) tr.set(own, newPoolEntry(weekKey, uid, null));
+                    return assigned;
+                })
+                .addOnSuccessListener(assigned -> {
+                    if (assigned != null) {
+                        rankingsCol().document(assigned).get()
+                                .addOnSuccessListener(ok).addOnFailureListener(err);
+                        return;
+                    }
+                    Random rnd = new Random();
+                    List<String> picked = new ArrayList<>();
+                    pickFromPool(weekKey, uid, rnd.nextInt(POOL_BUCKETS), rnd.nextDouble(),
+                            0, picked, () -> commitRankingTable(uid, weekKey, picked, ok, err), err);
+                })
+                .addOnFailureListener(err);
+    }
+
+    // Recorre hasta POOL_BUCKET_PROBES buckets desde startBucket; en cada uno pide a lo
+    // sumo 2 páginas (desde pivot hacia arriba y, si falta, desde 0 hasta pivot).
+    private void pickFromPool(long weekKey,
+                              @NonNull String uid,
+                              int startBucket,
+                              double pivot,
+                              int probe,
+                              @NonNull List<String> picked,
+                              @NonNull Runnable done,
+                              @NonNull OnFailureListener err) {
+        int needed = RANKING_TABLE_SIZE - 1;
+        if (picked.size() >= needed || probe >= POOL_BUCKET_PROBES) {
+            done.run();
+            return;
+        }
+        int bucket = (startBucket + probe) % POOL_BUCKETS;
+
+        Query base = rankingPoolCol()
+                .whereEqualTo("rpo_weekKey", weekKey)
+                .whereEqualTo("rpo_bucket", bucket)
+                .whereEqualTo("rpo_assigned", false);
+
+        base.whereGreaterThanOrEqualTo("rpo_rand", pivot)
+                .orderBy("rpo_rand")
+                .limit(POOL_PAGE)
+                .get()
+                .addOnSuccessListener(upper -> {
+                    addPoolPicks(upper, uid, picked, needed);
+                    if (picked.size() >= needed) {
+                        done.run();
+                        return;
                     }
+                    base.whereLessThan("rpo_rand", pivot)
+                            .orderBy("rpo_rand")
+                            .limit(POOL_PAGE)
+                            .get()
+                            .addOnSuccessListener(lower -> {
+                                addPoolPicks(lower, uid, picked, needed);
+                                pickFromPool(weekKey, uid, startBucket, pivot,
+                                        probe + 1, picked, done, err);
+                            })
+                            .addOnFailureListener(err);
                 })
                 .addOnFailureListener(err);
     }
 
+    private void addPoolPicks(@NonNull QuerySnapshot qs,
+                              @NonNull String uid,
+                              @NonNull List<String> picked,
+                              int needed) {
+        for (DocumentSnapshot d : qs.getDocuments()) {
+            if (picked.size() >= needed) return;
+            String pid = d.getString("rpo_uid");
+            if (pid == null || pid.equals(uid) || picked.contains(pid)) continue;
+            picked.add(pid);
+        }
+    }
+
+    // Crea la tabla y marca las entradas del pool como asignadas en una sola transacción;
+    // los elegidos que otro ya tomó se descartan. Si mientras elegíamos otro jugador nos metió
+    // en su tabla, no se crea nada y se devuelve esa.
+    private void commitRankingTable(@NonNull String uid,
+                                    long weekKey,
+                                    @NonNull List<String> picked,
+                                    @NonNull OnSuccessListener<DocumentSnapshot> ok,
+                                    @NonNull OnFailureListener err) {
+        DocumentReference tableRef = rankingsCol().document();
+
+        db.runTransaction((Transaction.Function<String>) tr -> {
+            String assigned = assignedTable(tr.get(poolEntry(weekKey, uid)));
+            if (assigned != null) return assigned;
+
+            List<String> players = new ArrayList<>();
+            players.add(uid);
+            for (String pid : picked) {
+                DocumentSnapshot entry = tr.get(poolEntry(weekKey, pid));
+                if (entry.exists() && !Boolean.TRUE.equals(entry.getBoolean("rpo_assigned"))) {
+                    players.add(pid);
+                }
+            }
+
+            // Puntajes iniciales: desde acá la tabla se mantiene con los deltas de km_semana
+            Map<String, Object> scores = new HashMap<>();
+            for (String pid : players) {
+                scores.put(pid, scoreEntry(tr.get(userDoc(pid))));
+            }
+
+            Map<String, Object> data = new HashMap<>();
+            data.put("ran_weekKey", weekKey);
+            data.put("ran_createdAt", System.currentTimeMillis());
+            data.put("ran_finished", false);
+            data.put("ran_rewardsApplied", false);
+            data.put("ran_players", players);
+            data.put("ran_open", players.size() < RANKING_TABLE_SIZE);
+            data.put("ran_scores", scores);
+            tr.set(tableRef, data);
+
+            for (String pid : players) {
+                tr.set(poolEntry(weekKey, pid), newPoolEntry(weekKey, pid, tableRef.getId()));
+            }
+            return tableRef.getId();
+        }).addOnSuccessListener(id ->
+                rankingsCol().document(id).get().addOnSuccessListener(ok).addOnFailureListener(err)
+        ).addOnFailureListener(err);
+    }
+
+    @Nullable
+    private static String assignedTable(@NonNull DocumentSnapshot entry) {
+        if (!entry.exists() || !Boolean.TRUE.equals(entry.getBoolean("rpo_assigned"))) return null;
+        String id = entry.getString("rpo_rankingId");
+        return (id == null || id.isEmpty()) ? null : id;
+    }
+
+    private Map<String, Object> newPoolEntry(long weekKey,
+                                             @NonNull String uid,
+                                             @Nullable String rankingId) {
+        Random rnd = new Random();
+        Map<String, Object> data = new HashMap<>();
+        data.put("rpo_weekKey", weekKey);
+        data.put("rpo_uid", uid);
+        data.put("rpo_bucket", rnd.nextInt(POOL_BUCKETS));
+        data.put("rpo_rand", rnd.nextDouble());
+        data.put("rpo_assigned", rankingId != null);
+        data.put("rpo_rankingId", rankingId);
+        data.put("rpo_createdAt", System.currentTimeMillis());
+        return data;
+    }
+
+    @NonNull
+    private static List<String> stringList(@Nullable Object raw) {
+        List<String> out = new ArrayList<>();
+        if (raw instanceof List) {
+            for (Object o : (List<?>) raw) {
+                if (o instanceof String) out.add((String) o);
+            }
+        }
+        return out;
+    }
+
     private void buildWeeklyRows(@NonNull DocumentSnapshot rankingDoc,
                                  long weekKey,
                                  @NonNull OnSuccessListener<WeeklyRankingResult> ok,
                                  @NonNull OnFailureListener err) {
 
-        Object rawPlayers = rankingDoc.get("ran_players");
-        List<String> players = new ArrayList<>();
-        if (rawPlayers instanceof List) {
-            for (Object o : (List<?>) rawPlayers) {
-                if (o instanceof String) players.add((String) o);
-            }
-        }
+        List<String> players = stringList(rankingDoc.get("ran_players"));
 
         if (players.isEmpty()) {
             ok.onSuccess(new WeeklyRankingResult(
@@ -1346,6 +3593,14 @@ public class FirestoreRepo {
             return;
         }
 
+        // Camino normal: la tabla ya trae nombre y km de cada jugador
+        List<WeeklyRankingRow> fromScores = rowsFromScores(rankingDoc, players);
+        if (fromScores != null) {
+            ok.onSuccess(new WeeklyRankingResult(rankRows(fromScores), false, weekKey));
+            return;
+        }
+
+        // Tablas viejas sin ran_scores: se leen los usuarios una vez y se completa el mapa
         List<Task<DocumentSnapshot>> tasks = new ArrayList<>();
         for (String pid : players) {
             tasks.add(userDoc(pid).get());
@@ -1353,52 +3608,101 @@ public class FirestoreRepo {
 
         Tasks.whenAllSuccess(tasks)
                 .addOnSuccessListener(results -> {
-                    List<WeeklyRankingRow> tmp = new ArrayList<>();
-
+                    Map<String, Object> scores = new HashMap<>();
                     for (Object o : results) {
                         DocumentSnapshot s = (DocumentSnapshot) o;
-                        String pid = s.getId();
-                        Double kmD = null;
-                        Object vKm = s.get("usu_stats.km_semana");
-                        if (vKm instanceof Number) kmD = ((Number) vKm).doubleValue();
-                        double km = kmD == null ? 0.0 : kmD;
-                        long stepsWeek = Math.round(km * 1000.0);
-
-                        String nombre = s.getString("usu_nombre");
-                        if (nombre == null || nombre.trim().isEmpty()) {
-                            String shortId = pid;
-                            if (shortId.length() > 6) shortId = shortId.substring(0, 6);
-                            nombre = "@" + shortId;
-                        }
-
-                        tmp.add(new WeeklyRankingRow(pid, nombre, km, stepsWeek, 0, 0L));
+                        scores.put(s.getId(), scoreEntry(s));
                     }
+                    rankingDoc.getReference().update("ran_scores", scores);
 
-                    Collections.sort(tmp, (a, b) ->
-                            Double.compare(b.kmSemana, a.kmSemana));
-
-                    List<WeeklyRankingRow> rows = new ArrayList<>();
-                    for (int i = 0; i < tmp.size(); i++) {
-                        WeeklyRankingRow base = tmp.get(i);
-                        int pos = i + 1;
-                        long coins;
-                        if (pos == 1) coins = base.stepsWeek * 3L;
-                        else if (pos == 2) coins = base.stepsWeek * 2L;
-                        else if (pos == 3) coins = base.stepsWeek;
-                        else coins = 0L;
-
-                        rows.add(new WeeklyRankingRow(
-                                base.uid,
-                                base.nombre,
-                                base.kmSemana,
-                                base.stepsWeek,
-                                pos,
-                                coins
-                        ));
-                    }
-
-                    ok.onSuccess(new WeeklyRankingResult(rows, false, weekKey));
+                    ok.onSuccess(new WeeklyRankingResult(
+                            rankRows(rowsFromUsers(results)), false, weekKey));
                 })
                 .addOnFailureListener(err);
     }
+
+    // Entrada de ran_scores.{uid}: nombre visible y km_semana actual
+    private static Map<String, Object> scoreEntry(@NonNull DocumentSnapshot user) {
+        Map<String, Object> e = new HashMap<>();
+        e.put("nombre", displayName(user.getString("usu_nombre"), user.getId()));
+        Object vKm = user.get("usu_stats.km_semana");
+        e.put("km", vKm instanceof Number ? ((Number) vKm).doubleValue() : 0.0);
+        return e;
+    }
+
+    @NonNull
+    private static String displayName(@Nullable String nombre, @NonNull String uid) {
+        if (nombre == null || nombre.trim().isEmpty()) {
+            String shortId = uid;
+            if (shortId.length() > 6) shortId = shortId.substring(0, 6);
+            return "@" + shortId;
+        }
+        return nombre;
+    }
+
+    /**
+     * Filas sin posición a partir de ran_scores, o null si falta algún jugador.
+     */
+    @Nullable
+    private static List<WeeklyRankingRow> rowsFromScores(@NonNull DocumentSnapshot rankingDoc,
+                                                         @NonNull List<String> players) {
+        Object raw = rankingDoc.get("ran_scores");
+        if (!(raw instanceof Map)) return null;
+        Map<?, ?> scores = (Map<?, ?>) raw;
+
+        List<WeeklyRankingRow> tmp = new ArrayList<>();
+        for (String pid : players) {
+            Object entry = scores.get(pid);
+            if (!(entry instanceof Map)) return null;
+            Map<?, ?> m = (Map<?, ?>) entry;
+            Object vKm = m.get("km");
+            double km = vKm instanceof Number ? Math.max(0.0, ((Number) vKm).doubleValue()) : 0.0;
+            Object vNombre = m.get("nombre");
+            String nombre = displayName(vNombre instanceof String ? (String) vNombre : null, pid);
+            tmp.add(new WeeklyRankingRow(pid, nombre, km, Math.round(km * 1000.0), 0, 0L));
+        }
+        return tmp;
+    }
+
+    @NonNull
+    private static List<WeeklyRankingRow> rowsFromUsers(@NonNull List<?> results) {
+        List<WeeklyRankingRow> tmp = new ArrayList<>();
+        for (Object o : results) {
+            DocumentSnapshot s = (DocumentSnapshot) o;
+            String pid = s.getId();
+            Object vKm = s.get("usu_stats.km_semana");
+            double km = vKm instanceof Number ? ((Number) vKm).doubleValue() : 0.0;
+            tmp.add(new WeeklyRankingRow(pid, displayName(s.getString("usu_nombre"), pid),
+                    km, Math.round(km * 1000.0), 0, 0L));
+        }
+        return tmp;
+    }
+
+    // Ordena por km y asigna posición y premio (3x / 2x / 1x pasos para el podio)
+    @NonNull
+    private static List<WeeklyRankingRow> rankRows(@NonNull List<WeeklyRankingRow> tmp) {
+        Collections.sort(tmp, (a, b) ->
+                Double.compare(b.kmSemana, a.kmSemana));
+
+        List<WeeklyRankingRow> rows = new ArrayList<>();
+        for (int i = 0; i < tmp.size(); i++) {
+            WeeklyRankingRow base = tmp.get(i);
+            int pos = i + 1;
+            long coins;
+            if (pos == 1) coins = base.stepsWeek * 3L;
+            else if (pos == 2) coins = base.stepsWeek * 2L;
+            else if (pos == 3) coins = base.stepsWeek;
+            else coins = 0L;
+
+            rows.add(new WeeklyRankingRow(
+                    base.uid,
+                    base.nombre,
+                    base.kmSemana,
+                    base.stepsWeek,
+                    pos,
+                    coins
+            ));
+        }
+        return rows;
+    }
 }
@@ -415,14 +415,8 @@ public class GoalsFragment extends DialogFragment {
     // ---------- otros helpers ----------
 
     static class StepsPrefs {
-        private static final String SP_STEPS = "steps_prefs";
-        private static final String KEY_TOTAL_PREFIX = "total_";
-
         static long todaySteps(Context ctx) {
-            String day = new SimpleDateFormat("yyyyMMdd", Locale.getDefault())
-                    .format(System.currentTimeMillis());
-            return ctx.getSharedPreferences(SP_STEPS, Context.MODE_PRIVATE)
-                    .getLong(KEY_TOTAL_PREFIX + day, 0L);
+            return StepJournal.readTodaySteps(ctx);
         }
     }
 
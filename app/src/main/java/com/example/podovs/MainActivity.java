@@ -1,13 +1,16 @@
 package com.example.podovs;
 
 import android.Manifest;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -27,14 +30,12 @@ import com.bumptech.glide.request.target.CustomTarget;
 import com.bumptech.glide.request.transition.Transition;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.QuerySnapshot;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
-import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -51,8 +52,24 @@ public class MainActivity extends AppCompatActivity {
     private FirebaseFirestore db;
     private String uid = null;
 
-    // ==== Steps ====
-    private StepsManager stepsManager;
+    // ==== Steps (StepService en primer plano) ====
+    private StepService stepService;
+    private boolean stepsBound = false;
+    private final StepsManager.Callback stepsCallback =
+            (stepsToday, kmHoy) -> onStepsUpdatedMain(stepsToday);
+
+    private final ServiceConnection stepsConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            stepService = ((StepService.LocalBinder) binder).getService();
+            stepService.addListener(stepsCallback);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            stepService = null;
+        }
+    };
 
     // ==== Prefs / flags ====
     private static final double STEP_TO_KM = 0.0008;
@@ -78,10 +95,6 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private double kmSemanaCache = 0.0;
-    private long lastSyncToFirestoreMillis = 0L;
-
-    private final List<String> activeVersusIds = new ArrayList<>();
-    private ListenerRegistration versusListener;
 
     private final ActivityResultLauncher<String[]> permsLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestMultiplePermissions(), result -> {
@@ -184,9 +197,6 @@ public class MainActivity extends AppCompatActivity {
         long pasosGuardados = userPrefs().getLong(KEY_PASOS_HOY, 0L);
         tvKmTotalBig.setText(String.valueOf(pasosGuardados));
 
-        stepsManager = new StepsManager(this, repo, uid,
-                (stepsToday, kmHoy) -> onStepsUpdatedMain(stepsToday));
-
         // Bottom bar
         ImageButton btnHome = findViewById(R.id.btnHome);
         ImageButton btnShop = findViewById(R.id.btnShop);
@@ -234,8 +244,6 @@ public class MainActivity extends AppCompatActivity {
         getSupportFragmentManager().setFragmentResultListener("coins_changed", this, (requestKey, bundle) -> {
         });
 
-        startVersusListener();
-
         requestRuntimePermissions();
 
         if (userPrefs().getBoolean(KEY_FIRST_LOGIN_DONE, false)) {
@@ -253,32 +261,16 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Override
-    protected void onPause() {
-        super.onPause();
-        secureStopSteps();  // solo apaga el scheduler, no el sensor
+    protected void onStop() {
+        super.onStop();
+        if (repo != null) repo.flushPendingWrites();
+        unbindSteps();  // el sensor sigue vivo en StepService
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        secureStopSteps();
-        if (versusListener != null) versusListener.remove();
-    }
-
-    private void startVersusListener() {
-        if (versusListener != null) versusListener.remove();
-
-        versusListener = FirebaseFirestore.getInstance()
-                .collection("versus")
-                .whereArrayContains("ver_players", uid)
-                .whereEqualTo("ver_finished", false)
-                .addSnapshotListener((qs, err) -> {
-                    if (err != null || qs == null) return;
-                    activeVersusIds.clear();
-                    for (DocumentSnapshot d : qs.getDocuments()) {
-                        activeVersusIds.add(d.getId());
-                    }
-                });
+        unbindSteps();
     }
 
     // ========= CALLBACK CENTRAL DE PASOS =========
@@ -290,31 +282,17 @@ public class MainActivity extends AppCompatActivity {
         sp.edit().putLong(KEY_PASOS_HOY, stepsToday).apply();
         tvKmTotalBig.setText(String.valueOf(stepsToday));
 
-        if (!activeVersusIds.isEmpty()) {
-            for (String vsId : activeVersusIds) {
-                repo.updateVersusStepsQuiet(vsId, uid, stepsToday);
-            }
-        }
-
-        long now = System.currentTimeMillis();
-        if (now - lastSyncToFirestoreMillis < 60_000L) return;
-        lastSyncToFirestoreMillis = now;
+        // Los pushes a versus los hace StepsManager vía VersusPushScheduler
 
+        // km y récord diario van a la cola write-behind: se escriben juntos en un batch
         long alreadySynced = sp.getLong(KEY_SYNCED_STEPS_TODAY, 0L);
         long deltaSteps = stepsToday - alreadySynced;
         if (deltaSteps <= 0L) return;
 
         sp.edit().putLong(KEY_SYNCED_STEPS_TODAY, stepsToday).apply();
 
-        double kmDelta = deltaSteps * STEP_TO_KM;
-        if (kmDelta <= 0.0) return;
-
-        repo.addKmDelta(uid, kmDelta,
-                v -> {
-                },
-                e -> Log.w(TAG, "addKmDelta delta error: " + e.getMessage()));
-
-        repo.updateMayorPasosDiaIfGreater(uid, stepsToday);
+        repo.queueKmDelta(uid, deltaSteps * STEP_TO_KM);
+        repo.queueMayorPasosDia(uid, stepsToday);
     }
 
     // ==== Prefs por usuario ====
@@ -354,10 +332,12 @@ public class MainActivity extends AppCompatActivity {
         if (today.equals(last)) return;
 
         long pasosDiaAnterior = sp.getLong(KEY_PASOS_HOY, 0L);
-        repo.updateMayorPasosDiaIfGreater(uid, pasosDiaAnterior);
+        repo.queueMayorPasosDia(uid, pasosDiaAnterior);
 
         int diasContados = sp.getInt(KEY_DIAS_CONTADOS, 0) + 1;
         if (diasContados >= 7) {
+            // Los km pendientes son de la semana que se cierra: salen antes del reset
+            repo.flushPendingWrites();
             repo.setKmSemana(uid, 0.0, v -> {
             }, e -> Log.w(TAG, "reset semana error", e));
             kmSemanaCache = 0.0;
@@ -443,16 +423,29 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void secureStartSteps() {
-        if (stepsManager != null && ensureARGranted()) try {
-            stepsManager.start();
-        } catch (SecurityException ignored) {
+        if (uid == null || !ensureARGranted()) return;
+        try {
+            StepService.start(this);
+        } catch (IllegalStateException | SecurityException e) {
+            Log.w(TAG, "StepService start: " + e.getMessage());
+            return;
+        }
+        if (!stepsBound) {
+            stepsBound = bindService(new Intent(this, StepService.class), stepsConnection, BIND_AUTO_CREATE);
         }
     }
 
-    private void secureStopSteps() {
-        if (stepsManager != null) try {
-            stepsManager.stop();
-        } catch (SecurityException ignored) {
+    private void unbindSteps() {
+        if (stepService != null) {
+            stepService.removeListener(stepsCallback);
+            stepService = null;
+        }
+        if (stepsBound) {
+            try {
+                unbindService(stepsConnection);
+            } catch (IllegalArgumentException ignored) {
+            }
+            stepsBound = false;
         }
     }
 
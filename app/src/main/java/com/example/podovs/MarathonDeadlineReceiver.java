@@ -0,0 +1,22 @@
+package com.example.podovs;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Recibe la alarma de MarathonDeadlineScheduler cuando vence la maratón de la cabeza.
+ * Si el proceso se había muerto, cierra esa maratón directamente; las siguientes se vuelven
+ * a programar cuando el listener de versus activos entregue su snapshot.
+ */
+public class MarathonDeadlineReceiver extends BroadcastReceiver {
+
+    static final String EXTRA_VERSUS_ID = "versus_id";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String versusId = intent.getStringExtra(EXTRA_VERSUS_ID);
+        PendingResult pending = goAsync();
+        FirestoreRepo.onMarathonAlarm(context.getApplicationContext(), versusId, pending::finish);
+    }
+}
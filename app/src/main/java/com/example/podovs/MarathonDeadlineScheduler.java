@@ -0,0 +1,176 @@
+package com.example.podovs;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Cierra las maratones a la hora exacta en que vencen, aunque nadie vuelva a caminar.
+ * Guarda el vencimiento de cada maratón abierta en un min-heap y mantiene una única alarma
+ * de AlarmManager (RTC_WAKEUP, permitida en Doze) para la cabeza: un Handler cuenta en
+ * uptime y se congela con el equipo dormido. Al dispararse llama a FirestoreRepo.settleVersus.
+ */
+final class MarathonDeadlineScheduler {
+
+    static final long RETRY_MS = 60_000L;
+
+    private static final class Deadline implements Comparable<Deadline> {
+        final String versusId;
+        final long atMs;
+
+        Deadline(String versusId, long atMs) {
+            this.versusId = versusId;
+            this.atMs = atMs;
+        }
+
+        @Override
+        public int compareTo(Deadline o) {
+            return Long.compare(atMs, o.atMs);
+        }
+    }
+
+    private final Context appCtx;
+    private final AlarmManager alarms;
+    private final FirestoreRepo repo;
+    private final PriorityQueue<Deadline> heap = new PriorityQueue<>();
+    // Vencimiento vigente por versus; lo que está en el heap con otro valor es basura
+    private final Map<String, Long> current = new HashMap<>();
+    private long armedAtMs = -1L;
+
+    // Métricas
+    private long fired = 0L;
+    private long settled = 0L;
+    private long failures = 0L;
+
+    MarathonDeadlineScheduler(Context context, FirestoreRepo repo) {
+        this.appCtx = context.getApplicationContext();
+        this.alarms = appCtx.getSystemService(AlarmManager.class);
+        this.repo = repo;
+    }
+
+    /**
+     * Sincroniza con el snapshot de versus activos del usuario: agrega las maratones
+     * nuevas y olvida las que ya no están abiertas.
+     */
+    synchronized void sync(QuerySnapshot active) {
+        Set<String> open = new HashSet<>();
+        for (DocumentSnapshot d : active.getDocuments()) {
+            if (Boolean.TRUE.equals(d.getBoolean("ver_isEvent"))) continue;
+            if (Boolean.TRUE.equals(d.getBoolean("ver_type"))) continue;
+            long at = FirestoreRepo.marathonDeadlineMs(d);
+            // ver_createdAt todavía sin resolver por el servidor: llega en otro snapshot
+            if (at <= 0L) continue;
+            open.add(d.getId());
+            Long prev = current.get(d.getId());
+            if (prev == null || prev != at) {
+                current.put(d.getId(), at);
+                heap.add(new Deadline(d.getId(), at));
+            }
+        }
+        current.keySet().retainAll(open);
+        arm();
+    }
+
+    private void arm() {
+        while (!heap.isEmpty() && isStale(heap.peek())) heap.poll();
+        if (heap.isEmpty()) {
+            if (alarms != null) alarms.cancel(alarmIntent(null));
+            armedAtMs = -1L;
+            return;
+        }
+        Deadline head = heap.peek();
+        if (head.atMs == armedAtMs) return;
+        armedAtMs = head.atMs;
+        if (alarms == null) return;
+        PendingIntent pi = alarmIntent(head.versusId);
+        // Sin permiso de alarma exacta (Android 12+) queda la inexacta, que igual despierta en Doze
+        if (Build.VERSION.SDK_INT < 31 || alarms.canScheduleExactAlarms()) {
+            alarms.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, head.atMs, pi);
+        } else {
+            alarms.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, head.atMs, pi);
+        }
+    }
+
+    // Siempre el mismo PendingIntent: programar otra cabeza reemplaza la alarma anterior
+    private PendingIntent alarmIntent(String versusId) {
+        Intent i = new Intent(appCtx, MarathonDeadlineReceiver.class);
+        if (versusId != null) i.putExtra(MarathonDeadlineReceiver.EXTRA_VERSUS_ID, versusId);
+        return PendingIntent.getBroadcast(appCtx, 0, i,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private boolean isStale(Deadline d) {
+        Long at = current.get(d.versusId);
+        return at == null || at != d.atMs;
+    }
+
+    /**
+     * Llamado por MarathonDeadlineReceiver: cierra todo lo vencido y programa la siguiente.
+     */
+    synchronized void fireDue() {
+        armedAtMs = -1L;
+        long now = System.currentTimeMillis();
+        while (!heap.isEmpty() && heap.peek().atMs <= now) {
+            Deadline d = heap.poll();
+            if (isStale(d)) continue;
+            fired++;
+            current.remove(d.versusId);
+            settle(d.versusId);
+        }
+        arm();
+    }
+
+    private void settle(String versusId) {
+        repo.settleVersus(versusId,
+                v -> onSettled(),
+                e -> onFailed(versusId));
+    }
+
+    private synchronized void onSettled() {
+        settled++;
+    }
+
+    // Sin red o con contención: se reintenta más tarde, salvo que el snapshot ya lo haya sacado
+    private synchronized void onFailed(String versusId) {
+        failures++;
+        if (current.containsKey(versusId)) return;
+        long at = System.currentTimeMillis() + RETRY_MS;
+        current.put(versusId, at);
+        heap.add(new Deadline(versusId, at));
+        arm();
+    }
+
+    // ================== MÉTRICAS ==================
+
+    synchronized int getPending() {
+        return current.size();
+    }
+
+    synchronized long getNextDeadlineMs() {
+        while (!heap.isEmpty() && isStale(heap.peek())) heap.poll();
+        return heap.isEmpty() ? -1L : heap.peek().atMs;
+    }
+
+    synchronized long getFired() {
+        return fired;
+    }
+
+    synchronized long getSettled() {
+        return settled;
+    }
+
+    synchronized long getFailures() {
+        return failures;
+    }
+}
@@ -1,9 +1,12 @@
 package com.example.podovs;
 
 import android.Manifest;
+import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
@@ -24,6 +27,12 @@ public final class NotificationHelper {
     private static final String CHANNEL_NAME = "PodoVS Notificaciones";
     private static final String CHANNEL_DESC = "Notificaciones de metas y nivel";
 
+    // Canal silencioso para el servicio de pasos en primer plano
+    private static final String STEPS_CHANNEL_ID = "podovs_steps_channel";
+    private static final String STEPS_CHANNEL_NAME = "PodoVS Pasos";
+    private static final String STEPS_CHANNEL_DESC = "Conteo de pasos en segundo plano";
+    public static final int STEP_SERVICE_NOTIF_ID = 1001;
+
     private static final String PREFS = "podovs_notif_store";
     private static final String KEY_LIST = "list";
     private static final int MAX_STORED = 50;
@@ -45,6 +54,25 @@ public final class NotificationHelper {
         pushAndLog(context, title, body, android.R.drawable.star_big_on);
     }
 
+    public static Notification buildStepServiceNotification(Context context, long stepsToday) {
+        ensureStepsChannel(context);
+        Intent open = new Intent(context, MainActivity.class)
+                .addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        PendingIntent pi = PendingIntent.getActivity(context, 0, open,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        return new NotificationCompat.Builder(context, STEPS_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.ic_menu_directions)
+                .setContentTitle("Contando pasos")
+                .setContentText("Hoy: " + stepsToday + " pasos")
+                .setContentIntent(pi)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setSilent(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
     public static List<Item> getLast(Context context, int n) {
         ArrayList<Item> out = new ArrayList<>();
         try {
@@ -102,6 +130,17 @@ public final class NotificationHelper {
         }
     }
 
+    private static void ensureStepsChannel(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(
+                    STEPS_CHANNEL_ID, STEPS_CHANNEL_NAME, NotificationManager.IMPORTANCE_LOW
+            );
+            channel.setDescription(STEPS_CHANNEL_DESC);
+            NotificationManager manager = context.getSystemService(NotificationManager.class);
+            if (manager != null) manager.createNotificationChannel(channel);
+        }
+    }
+
     private static void log(Context context, String title, String text) {
         try {
             SharedPreferences sp = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
@@ -1,12 +1,16 @@
 package com.example.podovs;
 
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.IBinder;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.widget.SwitchCompat;
 import androidx.fragment.app.Fragment;
 
 import android.view.LayoutInflater;
@@ -17,6 +21,8 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Locale;
+
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.DocumentSnapshot;
 
@@ -34,9 +40,30 @@ public class OptionsFragment extends Fragment {
     private Button btnResetProgress;
     private Button btnLogout;
     private ImageButton btnClose;
+    private SwitchCompat swBatching;
+    private TextView tvBatchStats;
 
     private int resetClicks = 0;
 
+    // Enlace al servicio solo para leer/aplicar el modo batch; no lo arranca
+    @Nullable
+    private StepService stepService;
+    private boolean stepsBound = false;
+
+    private final ServiceConnection stepsConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            stepService = ((StepService.LocalBinder) binder).getService();
+            renderBatchStats();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            stepService = null;
+            renderBatchStats();
+        }
+    };
+
     public OptionsFragment() {
     }
 
@@ -75,10 +102,16 @@ public class OptionsFragment extends Fragment {
         btnResetProgress = view.findViewById(R.id.btnResetProgress);
         btnLogout = view.findViewById(R.id.btnLogout);
         btnClose = view.findViewById(R.id.btnClose);
+        swBatching = view.findViewById(R.id.swBatching);
+        tvBatchStats = view.findViewById(R.id.tvBatchStats);
 
         loadCurrentData();
         updateResetHint();
 
+        swBatching.setChecked(StepsManager.isBatchingEnabled(requireContext()));
+        swBatching.setOnCheckedChangeListener((buttonView, isChecked) -> changeBatching(isChecked));
+        renderBatchStats();
+
         btnDifBajo.setOnClickListener(v -> changeDifficulty("bajo"));
         btnDifMedio.setOnClickListener(v -> changeDifficulty("medio"));
         btnDifAlto.setOnClickListener(v -> changeDifficulty("alto"));
@@ -88,6 +121,26 @@ public class OptionsFragment extends Fragment {
         btnClose.setOnClickListener(v -> getParentFragmentManager().popBackStack());
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        Context ctx = requireContext();
+        stepsBound = ctx.bindService(new Intent(ctx, StepService.class), stepsConnection, 0);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (stepsBound) {
+            try {
+                requireContext().unbindService(stepsConnection);
+            } catch (IllegalArgumentException ignored) {
+            }
+            stepsBound = false;
+        }
+        stepService = null;
+    }
+
     // ====== Datos de usuario / dificultad ======
 
     private void loadCurrentData() {
@@ -184,11 +237,42 @@ public class OptionsFragment extends Fragment {
         );
     }
 
+    // ====== Sensor por lotes ======
+
+    private void changeBatching(boolean enabled) {
+        StepsManager.setBatching(requireContext(), enabled, StepsManager.DEFAULT_BATCH_LATENCY_MS);
+        StepsManager sm = stepService != null ? stepService.getStepsManager() : null;
+        if (sm != null) sm.applyBatching();
+        renderBatchStats();
+    }
+
+    private void renderBatchStats() {
+        if (tvBatchStats == null) return;
+        StepsManager sm = stepService != null ? stepService.getStepsManager() : null;
+        if (sm == null) {
+            tvBatchStats.setText("El contador de pasos no está activo.");
+            return;
+        }
+        if (!sm.isBatching()) {
+            boolean enabled = StepsManager.isBatchingEnabled(requireContext());
+            tvBatchStats.setText(enabled
+                    ? "Este teléfono no admite pasos por lotes."
+                    : "Desactivado: el sensor avisa en cada paso.");
+            return;
+        }
+        StepBatchStats st = sm.getBatchStats();
+        tvBatchStats.setText(String.format(Locale.getDefault(),
+                "Lotes: %d · %.1f pasos por lote · %.1f despertares/h",
+                st.getBatches(), st.getAverageBatchSize(),
+                st.getWakeupsPerHour(System.currentTimeMillis())));
+    }
+
     // ====== Logout ======
 
     private void logout() {
         Context ctx = requireContext();
         FirebaseAuth.getInstance().signOut();
+        StepService.stop(ctx);
 
         SharedPreferences sp = ctx.getSharedPreferences("session", Context.MODE_PRIVATE);
         sp.edit().clear().apply();
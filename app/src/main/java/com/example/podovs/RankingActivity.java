@@ -1,10 +1,11 @@
 package com.example.podovs;
 
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.text.TextUtils;
 import android.view.Gravity;
 import android.view.View;
 import android.widget.ImageButton;
@@ -15,11 +16,8 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.google.android.material.card.MaterialCardView;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FirebaseFirestore;
 
 import java.util.Calendar;
-import java.util.List;
 import java.util.Locale;
 
 public class RankingActivity extends AppCompatActivity {
@@ -29,6 +27,8 @@ public class RankingActivity extends AppCompatActivity {
 
     private LinearLayout containerWeekly;
     private LinearLayout containerGlobal;
+    private LinearLayout containerAroundMe;
+    private TextView tvMyGlobalRank;
     private TextView tvWeeklySubtitle;
 
     // Timer semana
@@ -51,11 +51,14 @@ public class RankingActivity extends AppCompatActivity {
 
         containerWeekly = findViewById(R.id.containerWeeklyRanking);
         containerGlobal = findViewById(R.id.containerGlobalRanking);
+        containerAroundMe = findViewById(R.id.containerAroundMe);
+        tvMyGlobalRank = findViewById(R.id.tvMyGlobalRank);
         tvWeeklySubtitle = findViewById(R.id.tvWeeklySubtitle);
 
         setupBottomNav();
         loadWeeklyRanking();
         loadGlobalRanking();
+        loadAroundMe();
     }
 
     @Override
@@ -250,48 +253,86 @@ public class RankingActivity extends AppCompatActivity {
 
     // ---------- RANKING GLOBAL (TOP 5 KM_TOTAL) ----------
 
+    private static final int GLOBAL_VISIBLE = 5;
+
     private void loadGlobalRanking() {
         containerGlobal.removeAllViews();
         containerGlobal.addView(makeSimpleText("Cargando top global..."));
 
-        FirebaseFirestore.getInstance()
-                .collection("users")
-                .orderBy("usu_stats.km_total", com.google.firebase.firestore.Query.Direction.DESCENDING)
-                .limit(5)
-                .get()
-                .addOnSuccessListener(qs -> {
+        // Puede llegar dos veces: primero la caché y después el servidor si estaba vencida
+        repo.loadGlobalLeaderboard(
+                board -> {
                     containerGlobal.removeAllViews();
-                    if (qs.isEmpty()) {
+                    if (board.rows.isEmpty()) {
                         containerGlobal.addView(makeSimpleText("Todavía no hay datos suficientes."));
                         return;
                     }
-                    List<DocumentSnapshot> docs = qs.getDocuments();
-                    for (int i = 0; i < docs.size(); i++) {
-                        containerGlobal.addView(makeGlobalRow(i, docs.get(i)));
+                    int n = Math.min(GLOBAL_VISIBLE, board.rows.size());
+                    for (int i = 0; i < n; i++) {
+                        containerGlobal.addView(makeGlobalRow(board.rows.get(i)));
                     }
-                })
-                .addOnFailureListener(e -> {
+                    containerGlobal.addView(makeSimpleText(freshnessText(board)));
+                },
+                e -> {
                     containerGlobal.removeAllViews();
                     containerGlobal.addView(makeSimpleText(
                             "Error al cargar top global: " + e.getMessage()));
                 });
     }
 
-    private View makeGlobalRow(int index,
-                               @NonNull DocumentSnapshot snap) {
+    // ---------- POSICIÓN PROPIA (HISTOGRAMA + VECINOS) ----------
+
+    private static final int NEIGHBOURS = 2;
+
+    private void loadAroundMe() {
+        containerAroundMe.removeAllViews();
+        containerAroundMe.addView(makeSimpleText("Calculando tu posición..."));
+
+        repo.estimateGlobalRank(uid,
+                est -> {
+                    tvMyGlobalRank.setText(String.format(Locale.getDefault(),
+                            "Tu posición global: ~#%,d de %,d", est.rank, est.totalUsers));
+                    repo.loadRankNeighbours(uid, est.kmTotal, est.rank, NEIGHBOURS,
+                            rows -> {
+                                containerAroundMe.removeAllViews();
+                                for (FirestoreRepo.GlobalRankingRow row : rows) {
+                                    containerAroundMe.addView(makeGlobalRow(row));
+                                }
+                            },
+                            e -> {
+                                containerAroundMe.removeAllViews();
+                                containerAroundMe.addView(makeSimpleText(
+                                        "Error al cargar jugadores cercanos: " + e.getMessage()));
+                            });
+                },
+                e -> {
+                    containerAroundMe.removeAllViews();
+                    containerAroundMe.addView(makeSimpleText(
+                            "Error al calcular tu posición: " + e.getMessage()));
+                });
+    }
 
-        int pos = index + 1;
-        String nombre = snap.getString("usu_nombre");
-        if (TextUtils.isEmpty(nombre)) {
-            String id = snap.getId();
-            if (id.length() > 6) id = id.substring(0, 6);
-            nombre = "@" + id;
-        }
+    private String freshnessText(@NonNull FirestoreRepo.GlobalLeaderboard board) {
+        if (board.updatedAtMs <= 0L) return "";
+        long mins = Math.max(0L, (System.currentTimeMillis() - board.updatedAtMs) / 60_000L);
+        String when = mins == 0L ? "recién"
+                : String.format(Locale.getDefault(), "hace %d min", mins);
+        // Leer de caché es lo normal (se muestra antes que el servidor): solo sin red se avisa
+        return "Actualizado " + when + (board.fromCache && !isOnline() ? " (sin conexión)" : "");
+    }
+
+    private boolean isOnline() {
+        ConnectivityManager cm = getSystemService(ConnectivityManager.class);
+        if (cm == null) return false;
+        NetworkCapabilities nc = cm.getNetworkCapabilities(cm.getActiveNetwork());
+        return nc != null && nc.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+
+    private View makeGlobalRow(@NonNull FirestoreRepo.GlobalRankingRow row) {
 
-        Double kmD = null;
-        Object vKm = snap.get("usu_stats.km_total");
-        if (vKm instanceof Number) kmD = ((Number) vKm).doubleValue();
-        double km = kmD == null ? 0.0 : kmD;
+        int pos = row.position;
+        String nombre = row.nombre;
+        double km = row.kmTotal;
 
         MaterialCardView card = new MaterialCardView(this);
         LinearLayout.LayoutParams lpCard = new LinearLayout.LayoutParams(
@@ -319,12 +360,10 @@ public class RankingActivity extends AppCompatActivity {
         TextView tvName = new TextView(this);
         tvName.setText(nombre);
         tvName.setTextSize(14);
-        tvName.setTextColor(0xFF111827);
+        tvName.setTextColor(row.uid.equals(uid) ? 0xFFB91C1C : 0xFF111827);
 
-        String otherUid = snap.getId();
-        String finalNombre = nombre;
         tvName.setOnClickListener(v ->
-                openUserProfile(otherUid, finalNombre));
+                openUserProfile(row.uid, nombre));
 
         TextView tvKm = new TextView(this);
         tvKm.setTextSize(13);
@@ -17,6 +17,7 @@ import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.ListenerRegistration;
 
+import java.util.Calendar;
 import java.util.Locale;
 
 public class StatsFragment extends Fragment {
@@ -28,6 +29,8 @@ public class StatsFragment extends Fragment {
     private TextView tvMejorPosicionMensual;
     private TextView tvMetasDiariasOk;
     private TextView tvMetasSemanalesOk;
+    private TextView tvPasosUltimaHora;
+    private TextView tvPasosSemanaLocal;
 
     private FirestoreRepo repo;
     private String uid = null;
@@ -60,6 +63,9 @@ public class StatsFragment extends Fragment {
         tvMejorPosicionMensual = v.findViewById(R.id.tvMejorPosicionMensual);
         tvMetasDiariasOk = v.findViewById(R.id.tvMetasDiariasOk);
         tvMetasSemanalesOk = v.findViewById(R.id.tvMetasSemanalesOk);
+        tvPasosUltimaHora = v.findViewById(R.id.tvPasosUltimaHora);
+        tvPasosSemanaLocal = v.findViewById(R.id.tvPasosSemanaLocal);
+        bindLocalSeries();
 
         uid = requireContext()
                 .getSharedPreferences("session", Context.MODE_PRIVATE)
@@ -88,6 +94,7 @@ public class StatsFragment extends Fragment {
         if (uid != null) {
             repo.getUser(uid, this::bindStatsFromSnapshot, e -> { /* no-op */ });
         }
+        bindLocalSeries();
     }
 
     @Override
@@ -130,6 +137,25 @@ public class StatsFragment extends Fragment {
         tvMejorPosicionMensual.setText((mejorPos == null || mejorPos == 0L) ? "-" : String.valueOf(mejorPos));
     }
 
+    // Datos de la serie local por minuto: no tocan Firestore
+    private void bindLocalSeries() {
+        if (!isAdded() || tvPasosUltimaHora == null) return;
+        StepTimeSeries series = StepTimeSeries.get(requireContext());
+
+        Calendar c = Calendar.getInstance();
+        int today = StepIngestState.dayCodeOf(c.getTimeInMillis());
+        int minuteNow = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
+
+        long lastHour = series.sumRange(today, minuteNow - 59, minuteNow + 1);
+        if (minuteNow < 59) {
+            int yesterday = StepIngestState.addDays(today, -1);
+            lastHour += series.sumRange(yesterday,
+                    StepTimeSeries.MINUTES_PER_DAY - (59 - minuteNow), StepTimeSeries.MINUTES_PER_DAY);
+        }
+        tvPasosUltimaHora.setText(String.format(Locale.getDefault(), "%,d", lastHour));
+        tvPasosSemanaLocal.setText(String.format(Locale.getDefault(), "%,d", series.weekSum(today)));
+    }
+
     private long getLong(DocumentSnapshot s, String path, long def) {
         Object v = s.get(path);
         return (v instanceof Number) ? ((Number) v).longValue() : def;
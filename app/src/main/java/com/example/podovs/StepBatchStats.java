@@ -0,0 +1,83 @@
+package com.example.podovs;
+
+import java.util.Locale;
+
+/**
+ * Métricas del modo batch del sensor de pasos: cuántos despertares hubo,
+ * cuántos eventos trajo cada uno y a qué ritmo por hora.
+ */
+public final class StepBatchStats {
+
+    private static final double MS_PER_HOUR = 60.0 * 60.0 * 1000.0;
+
+    private long startedAtMs = 0L;
+    private long batches = 0L;
+    private long events = 0L;
+    private int currentBatchSize = 0;
+    private int lastBatchSize = 0;
+    private int maxBatchSize = 0;
+
+    synchronized void onBatchStart(long nowMs) {
+        if (startedAtMs == 0L) startedAtMs = nowMs;
+        if (currentBatchSize > 0) closeBatch();
+        batches++;
+    }
+
+    synchronized void onEvent() {
+        events++;
+        currentBatchSize++;
+    }
+
+    synchronized void onBatchEnd() {
+        if (currentBatchSize > 0) closeBatch();
+    }
+
+    synchronized void reset() {
+        startedAtMs = 0L;
+        batches = 0L;
+        events = 0L;
+        currentBatchSize = 0;
+        lastBatchSize = 0;
+        maxBatchSize = 0;
+    }
+
+    private void closeBatch() {
+        lastBatchSize = currentBatchSize;
+        if (currentBatchSize > maxBatchSize) maxBatchSize = currentBatchSize;
+        currentBatchSize = 0;
+    }
+
+    // ================== LECTURA ==================
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    public synchronized int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public synchronized double getAverageBatchSize() {
+        return batches == 0L ? 0.0 : (double) events / batches;
+    }
+
+    public synchronized double getWakeupsPerHour(long nowMs) {
+        if (startedAtMs == 0L || nowMs <= startedAtMs) return 0.0;
+        return batches / ((nowMs - startedAtMs) / MS_PER_HOUR);
+    }
+
+    public synchronized String summary(long nowMs) {
+        return String.format(Locale.US,
+                "batches=%d events=%d avg=%.1f last=%d max=%d wakeups/h=%.1f",
+                batches, events, getAverageBatchSize(), lastBatchSize, maxBatchSize,
+                getWakeupsPerHour(nowMs));
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.podovs;
+
+import java.util.Calendar;
+
+/**
+ * Estado primitivo preasignado del contador de pasos. El camino de ingesta
+ * (onCounter / onDetector) no crea objetos: el cambio de día se detecta comparando
+ * contra un umbral en epoch-millis calculado una sola vez por día.
+ */
+final class StepIngestState {
+
+    // Flags devueltos por la ingesta
+    static final int NONE = 0;
+    static final int CHANGED = 1;
+    static final int ROLLED_OVER = 2;
+
+    // Día actual
+    int dayCode;              // yyyyMMdd como entero
+    long dayStartMs;
+    long nextDayStartMs;
+
+    // Contador
+    float baseOffset = -1f;
+    float lastCounter = -1f;
+    volatile long stepsToday = 0L;
+
+    // Cierre del día anterior (para récord), pendiente de persistir
+    boolean closedDayPending = false;
+    int closedDayCode;
+    long closedDaySteps;
+
+    // true si hay cambios que todavía no se escribieron a disco
+    boolean dirty = false;
+
+    StepIngestState(long nowMs) {
+        computeDay(nowMs);
+    }
+
+    // ================== INGESTA ==================
+
+    synchronized int onCounter(long nowMs, float totalSinceBoot) {
+        int flags = rollIfNeeded(nowMs) ? ROLLED_OVER : NONE;
+
+        // Reinicio del dispositivo: el contador volvió a empezar
+        if (lastCounter >= 0f && totalSinceBoot < lastCounter) {
+            float recalib = totalSinceBoot - stepsToday;
+            if (recalib < 0f) recalib = 0f;
+            baseOffset = recalib;
+            dirty = true;
+        }
+
+        if (baseOffset < 0f) {
+            baseOffset = totalSinceBoot - stepsToday;
+            if (baseOffset < 0f) baseOffset = totalSinceBoot;
+            dirty = true;
+        }
+
+        long val = Math.max(0L, Math.round(totalSinceBoot - baseOffset));
+        if (val != stepsToday) {
+            stepsToday = val;
+            flags |= CHANGED;
+        }
+
+        if (lastCounter != totalSinceBoot) {
+            lastCounter = totalSinceBoot;
+            dirty = true;
+        }
+        return flags;
+    }
+
+    synchronized int onDetector(long nowMs, int inc) {
+        int flags = rollIfNeeded(nowMs) ? ROLLED_OVER : NONE;
+        if (inc <= 0) inc = 1;
+        stepsToday += inc;
+        dirty = true;
+        return flags | CHANGED;
+    }
+
+    // ================== DÍA ==================
+
+    synchronized boolean rollIfNeeded(long nowMs) {
+        if (nowMs < nextDayStartMs && nowMs >= dayStartMs) return false;
+
+        closedDayPending = true;
+        closedDayCode = dayCode;
+        closedDaySteps = stepsToday;
+
+        computeDay(nowMs);
+        baseOffset = -1f;
+        stepsToday = 0L;
+        dirty = true;
+        return true;
+    }
+
+    // Solo se llama al construir y al cambiar de día: puede asignar
+    private void computeDay(long nowMs) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(nowMs);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        dayStartMs = c.getTimeInMillis();
+        dayCode = c.get(Calendar.YEAR) * 10000
+                + (c.get(Calendar.MONTH) + 1) * 100
+                + c.get(Calendar.DAY_OF_MONTH);
+        c.add(Calendar.DAY_OF_YEAR, 1);
+        nextDayStartMs = c.getTimeInMillis();
+    }
+
+    static int dayCodeOf(long ms) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(ms);
+        return c.get(Calendar.YEAR) * 10000
+                + (c.get(Calendar.MONTH) + 1) * 100
+                + c.get(Calendar.DAY_OF_MONTH);
+    }
+
+    static int addDays(int dayCode, int delta) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(dayCode / 10000, (dayCode / 100) % 100 - 1, dayCode % 100);
+        c.add(Calendar.DAY_OF_YEAR, delta);
+        return c.get(Calendar.YEAR) * 10000
+                + (c.get(Calendar.MONTH) + 1) * 100
+                + c.get(Calendar.DAY_OF_MONTH);
+    }
+
+    static String dayString(int dayCode) {
+        return Integer.toString(dayCode);
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.podovs;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Journal binario append-only del contador de pasos. Cada registro ocupa
+ * RECORD_SIZE bytes: timestamp, día (yyyyMMdd), valor del contador, offset base
+ * y pasos del día. Al arrancar solo se lee la cola del archivo.
+ */
+final class StepJournal {
+
+    static final String FILE_NAME = "steps.journal";
+
+    // long ts + int day + float counter + float base + int steps
+    static final int RECORD_SIZE = 24;
+
+    // Cada cuántos registros se compacta el archivo a un único checkpoint
+    private static final int CHECKPOINT_EVERY = 512;
+
+    // Registros a revisar hacia atrás si el último quedó corrupto
+    private static final int TAIL_RECORDS = 8;
+
+    static final class Record {
+        long timeMs;
+        int day;
+        float counter;
+        float base;
+        long steps;
+    }
+
+    private final File file;
+    private final ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private int recordsSinceCheckpoint = 0;
+
+    StepJournal(File file) {
+        this.file = file;
+    }
+
+    static File fileFor(Context context) {
+        return new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Pasos de hoy según el último registro, sin abrir el journal para escritura.
+     */
+    static long readTodaySteps(Context context) {
+        StepJournal j = new StepJournal(fileFor(context));
+        Record r = new Record();
+        if (!j.readTail(r)) return 0L;
+        return r.day == StepIngestState.dayCodeOf(System.currentTimeMillis()) ? r.steps : 0L;
+    }
+
+    // ================== LECTURA ==================
+
+    synchronized boolean readTail(Record out) {
+        if (!file.exists()) return false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long count = in.length() / RECORD_SIZE;
+            ByteBuffer b = ByteBuffer.allocate(RECORD_SIZE);
+            for (long i = count - 1; i >= 0 && i >= count - TAIL_RECORDS; i--) {
+                b.clear();
+                in.getChannel().read(b, i * RECORD_SIZE);
+                b.flip();
+                if (b.remaining() < RECORD_SIZE) continue;
+                if (decode(b, out)) return true;
+            }
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    private static boolean decode(ByteBuffer b, Record out) {
+        long ts = b.getLong();
+        int day = b.getInt();
+        float counter = b.getFloat();
+        float base = b.getFloat();
+        int steps = b.getInt();
+        if (ts <= 0L || day < 19700101 || steps < 0) return false;
+        out.timeMs = ts;
+        out.day = day;
+        out.counter = counter;
+        out.base = base;
+        out.steps = steps;
+        return true;
+    }
+
+    // ================== ESCRITURA ==================
+
+    synchronized void append(long timeMs, int day, float counter, float base, long steps)
+            throws IOException {
+        ensureOpen();
+        encode(timeMs, day, counter, base, steps);
+        channel.write(buf, channel.size());
+        recordsSinceCheckpoint++;
+        if (recordsSinceCheckpoint >= CHECKPOINT_EVERY) {
+            checkpoint(timeMs, day, counter, base, steps);
+        }
+    }
+
+    /**
+     * Reemplaza el archivo por un único registro con el estado actual.
+     * Se escribe a un temporal y se renombra para no perder el journal a mitad de camino.
+     */
+    synchronized void checkpoint(long timeMs, int day, float counter, float base, long steps)
+            throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0L);
+            encode(timeMs, day, counter, base, steps);
+            out.getChannel().write(buf);
+            out.getChannel().force(true);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("No se pudo reemplazar " + file.getName());
+        }
+        recordsSinceCheckpoint = 1;
+    }
+
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+        raf = null;
+        channel = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel != null) return;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        // Un crash a mitad de escritura puede dejar un registro incompleto al final
+        long whole = channel.size() - channel.size() % RECORD_SIZE;
+        if (whole != channel.size()) channel.truncate(whole);
+        recordsSinceCheckpoint = (int) (whole / RECORD_SIZE);
+    }
+
+    private void encode(long timeMs, int day, float counter, float base, long steps) {
+        buf.clear();
+        buf.putLong(timeMs);
+        buf.putInt(day);
+        buf.putFloat(counter);
+        buf.putFloat(base);
+        buf.putInt((int) Math.min(steps, Integer.MAX_VALUE));
+        buf.flip();
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.podovs;
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Servicio en primer plano que mantiene vivo un único StepsManager mientras dure la sesión.
+ * Las activities se enlazan (bind) para recibir actualizaciones sin volver a registrar el sensor.
+ */
+public class StepService extends Service {
+
+    public class LocalBinder extends Binder {
+        public StepService getService() {
+            return StepService.this;
+        }
+    }
+
+    private final LocalBinder binder = new LocalBinder();
+    private final CopyOnWriteArrayList<StepsManager.Callback> listeners = new CopyOnWriteArrayList<>();
+
+    private StepsManager stepsManager;
+    private String uid;
+
+    private boolean hasValue = false;
+    private long lastStepsToday = 0L;
+    private double lastKmToday = 0.0;
+    private long lastNotifiedSteps = -1L;
+
+    // ================== ARRANQUE / PARADA ==================
+
+    public static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, StepService.class));
+    }
+
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, StepService.class));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Notification n = NotificationHelper.buildStepServiceNotification(this, lastStepsToday);
+        int type = Build.VERSION.SDK_INT >= 34 ? ServiceInfo.FOREGROUND_SERVICE_TYPE_HEALTH : 0;
+        try {
+            ServiceCompat.startForeground(this, NotificationHelper.STEP_SERVICE_NOTIF_ID, n, type);
+        } catch (RuntimeException e) {
+            // Sin permiso de actividad física no se puede declarar el tipo "health"
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        SharedPreferences sp = getSharedPreferences("session", MODE_PRIVATE);
+        String sessionUid = sp.getString("uid", null);
+        if (sessionUid == null || sessionUid.isEmpty()) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        // Cambio de usuario: rearmamos el motor con el nuevo uid
+        if (stepsManager != null && !sessionUid.equals(uid)) {
+            stepsManager.stop();
+            stepsManager = null;
+        }
+        if (stepsManager == null) {
+            uid = sessionUid;
+            stepsManager = new StepsManager(this, new FirestoreRepo(), uid, this::dispatch);
+        }
+
+        try {
+            stepsManager.start();
+        } catch (SecurityException e) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (stepsManager != null) {
+            try {
+                stepsManager.stop();
+            } catch (SecurityException ignored) {
+            }
+            stepsManager = null;
+        }
+        listeners.clear();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    // ================== SUSCRIPCIONES ==================
+
+    /**
+     * Registra un listener y le entrega enseguida el último valor conocido, si ya hay uno.
+     */
+    public void addListener(StepsManager.Callback cb) {
+        listeners.addIfAbsent(cb);
+        if (hasValue) cb.onStepsUpdated(lastStepsToday, lastKmToday);
+    }
+
+    public void removeListener(StepsManager.Callback cb) {
+        listeners.remove(cb);
+    }
+
+    @Nullable
+    public StepsManager getStepsManager() {
+        return stepsManager;
+    }
+
+    // Llega siempre por el main thread (StepsManager postea al mainHandler)
+    private void dispatch(long stepsToday, double kmHoy) {
+        hasValue = true;
+        lastStepsToday = stepsToday;
+        lastKmToday = kmHoy;
+        for (StepsManager.Callback cb : listeners) {
+            cb.onStepsUpdated(stepsToday, kmHoy);
+        }
+        updateNotification(stepsToday);
+    }
+
+    private void updateNotification(long stepsToday) {
+        // Solo cada 50 pasos para no saturar al NotificationManager
+        if (lastNotifiedSteps >= 0L && Math.abs(stepsToday - lastNotifiedSteps) < 50L) return;
+        lastNotifiedSteps = stepsToday;
+        try {
+            NotificationManagerCompat.from(this).notify(NotificationHelper.STEP_SERVICE_NOTIF_ID,
+                    NotificationHelper.buildStepServiceNotification(this, stepsToday));
+        } catch (SecurityException ignored) {
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.podovs;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serie temporal local de pasos por minuto. Cada día es un int[1440] que se guarda en
+ * disco como un archivo de 1440 enteros (yyyyMMdd.bin). Sumar pasos al minuto actual
+ * escribe solo los 4 bytes de ese slot.
+ */
+public final class StepTimeSeries {
+
+    public static final int MINUTES_PER_DAY = 1440;
+
+    private static final String DIR_NAME = "steps_series";
+    private static final int DAY_BYTES = MINUTES_PER_DAY * 4;
+    private static final int KEEP_DAYS = 120;
+
+    private static StepTimeSeries instance;
+
+    private final File dir;
+    private final ByteBuffer slotBuf = ByteBuffer.allocate(4);
+
+    // Día en curso, siempre en memoria
+    private int currentDay = 0;
+    private final int[] current = new int[MINUTES_PER_DAY];
+    private long currentTotal = 0L;
+    private RandomAccessFile currentFile;
+    private FileChannel currentChannel;
+
+    // Totales de días cerrados ya calculados
+    private final Map<Integer, Long> dayTotals = new HashMap<>();
+
+    public static synchronized StepTimeSeries get(Context context) {
+        if (instance == null) {
+            instance = new StepTimeSeries(new File(context.getApplicationContext().getFilesDir(), DIR_NAME));
+        }
+        return instance;
+    }
+
+    StepTimeSeries(File dir) {
+        this.dir = dir;
+    }
+
+    // ================== ESCRITURA ==================
+
+    /**
+     * Suma pasos al minuto indicado del día. Para el día en curso es O(1).
+     */
+    public synchronized void add(int dayCode, int minuteOfDay, int steps) throws IOException {
+        if (steps <= 0) return;
+        int m = clampMinute(minuteOfDay);
+        openDay(dayCode);
+        current[m] += steps;
+        currentTotal += steps;
+
+        slotBuf.clear();
+        slotBuf.putInt(current[m]);
+        slotBuf.flip();
+        currentChannel.write(slotBuf, (long) m * 4L);
+    }
+
+    public synchronized void close() {
+        closeCurrentFile();
+    }
+
+    private void openDay(int dayCode) throws IOException {
+        if (dayCode == currentDay && currentChannel != null) return;
+
+        if (currentDay != 0 && currentDay != dayCode) {
+            dayTotals.put(currentDay, currentTotal);
+        }
+        closeCurrentFile();
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("No se pudo crear " + dir.getName());
+        }
+        boolean isNewDay = currentDay != dayCode;
+        if (isNewDay) {
+            readDay(dayCode, current);
+            currentTotal = 0L;
+            for (int v : current) currentTotal += v;
+            currentDay = dayCode;
+            dayTotals.remove(dayCode);
+            prune(dayCode);
+        }
+
+        currentFile = new RandomAccessFile(fileFor(dayCode), "rw");
+        if (currentFile.length() < DAY_BYTES) currentFile.setLength(DAY_BYTES);
+        currentChannel = currentFile.getChannel();
+    }
+
+    private void closeCurrentFile() {
+        if (currentFile != null) {
+            try {
+                currentFile.close();
+            } catch (IOException ignored) {
+            }
+        }
+        currentFile = null;
+        currentChannel = null;
+    }
+
+    private void prune(int todayCode) {
+        int oldest = StepIngestState.addDays(todayCode, -KEEP_DAYS);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            int code = parseDayCode(f.getName());
+            if (code > 0 && code < oldest) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+                dayTotals.remove(code);
+            }
+        }
+    }
+
+    // ================== CONSULTAS ==================
+
+    public synchronized int minute(int dayCode, int minuteOfDay) {
+        int m = clampMinute(minuteOfDay);
+        if (dayCode == currentDay) return current[m];
+        int[] day = new int[MINUTES_PER_DAY];
+        readDay(dayCode, day);
+        return day[m];
+    }
+
+    /**
+     * Suma de pasos en [fromMinute, toMinute) del día.
+     */
+    public synchronized long sumRange(int dayCode, int fromMinute, int toMinute) {
+        int from = Math.max(0, fromMinute);
+        int to = Math.min(MINUTES_PER_DAY, toMinute);
+        if (from >= to) return 0L;
+
+        int[] day;
+        if (dayCode == currentDay) {
+            day = current;
+        } else {
+            day = new int[MINUTES_PER_DAY];
+            readDay(dayCode, day);
+        }
+        long sum = 0L;
+        for (int i = from; i < to; i++) sum += day[i];
+        return sum;
+    }
+
+    public synchronized long hourSum(int dayCode, int hour) {
+        return sumRange(dayCode, hour * 60, hour * 60 + 60);
+    }
+
+    public synchronized long daySum(int dayCode) {
+        if (dayCode == currentDay) return currentTotal;
+        Long cached = dayTotals.get(dayCode);
+        if (cached != null) return cached;
+
+        int[] day = new int[MINUTES_PER_DAY];
+        readDay(dayCode, day);
+        long sum = 0L;
+        for (int v : day) sum += v;
+        dayTotals.put(dayCode, sum);
+        return sum;
+    }
+
+    /**
+     * Suma de los 7 días que terminan en endDayCode (inclusive).
+     */
+    public synchronized long weekSum(int endDayCode) {
+        long sum = 0L;
+        for (int i = 0; i < 7; i++) {
+            sum += daySum(StepIngestState.addDays(endDayCode, -i));
+        }
+        return sum;
+    }
+
+    // ================== ARCHIVOS ==================
+
+    private File fileFor(int dayCode) {
+        return new File(dir, dayCode + ".bin");
+    }
+
+    private void readDay(int dayCode, int[] out) {
+        Arrays.fill(out, 0);
+        File f = fileFor(dayCode);
+        if (!f.exists()) return;
+        try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+            ByteBuffer b = ByteBuffer.allocate(DAY_BYTES);
+            in.getChannel().read(b, 0L);
+            b.flip();
+            int n = Math.min(MINUTES_PER_DAY, b.remaining() / 4);
+            for (int i = 0; i < n; i++) out[i] = b.getInt();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static int parseDayCode(String name) {
+        if (!name.endsWith(".bin")) return -1;
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int clampMinute(int m) {
+        if (m < 0) return 0;
+        return Math.min(m, MINUTES_PER_DAY - 1);
+    }
+}
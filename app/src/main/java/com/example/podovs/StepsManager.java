@@ -9,18 +9,16 @@ import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.util.Log;
 
 import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.FirebaseFirestoreException;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.QuerySnapshot;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -31,13 +29,25 @@ public class StepsManager {
         void onStepsUpdated(long stepsToday, double kmHoy);
     }
 
+    private static final String TAG = "StepsManager";
+
     private static final String SP_NAME = "steps_prefs";
+    // Claves legadas: hoy el estado del día vive en StepJournal
     private static final String KEY_BASE_PREFIX = "base_";
     private static final String KEY_TOTAL_PREFIX = "total_";
     private static final String KEY_LAST_COUNTER = "last_counter";
     private static final String KEY_LAST_COUNTER_DAY = "last_counter_day";
     private static final String KEY_RECORD_STEPS = "record_steps";
     private static final String KEY_RECORD_DAY = "record_day";
+    private static final String KEY_BATCH_ENABLED = "batch_enabled";
+    private static final String KEY_BATCH_LATENCY_MS = "batch_latency_ms";
+
+    // Modo batch: el sensor hub acumula pasos en su FIFO y nos despierta cada tanto
+    public static final long DEFAULT_BATCH_LATENCY_MS = 60_000L;
+    // Eventos separados por menos de esto pertenecen al mismo batch
+    private static final long BATCH_GAP_MS = 250L;
+    // Tope de seguridad del wake lock por batch
+    private static final long BATCH_WAKE_TIMEOUT_MS = 10_000L;
 
     private static final double METROS_POR_PASO = 0.78;
 
@@ -54,15 +64,23 @@ public class StepsManager {
     private boolean usingDetector = false;
     private volatile boolean listening = false;
 
-    private String keyBaseToday, keyTotalToday;
-    private float baseOffset = -1f;
-    private long stepsToday = 0L;
+    private boolean batchingActive = false;
+    private long lastBatchEventMs = 0L;
+    private final StepBatchStats batchStats = new StepBatchStats();
+
+    private final SharedPreferences prefs;
+    private final StepIngestState state;
+    private final StepJournal journal;
+
+    // Serie por minuto: pasos de seriesDay ya volcados
+    private final StepTimeSeries series;
+    private int seriesDay;
+    private long seriesSteps;
 
     private ScheduledExecutorService tickScheduler;
 
     private FirestoreRepo repo;
     private String userId;
-    private FirebaseFirestore fs;
     private ListenerRegistration activeVsListener;
     private final List<String> activeVersusIds = new ArrayList<>();
     private long lastPushedSteps = -1L;
@@ -77,26 +95,21 @@ public class StepsManager {
         stepCounter = sensorManager != null ? sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER) : null;
         stepDetector = sensorManager != null ? sensorManager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR) : null;
 
-        keyBaseToday = todayKey(KEY_BASE_PREFIX);
-        keyTotalToday = todayKey(KEY_TOTAL_PREFIX);
-
-        SharedPreferences prefs = appCtx.getSharedPreferences(SP_NAME, Context.MODE_PRIVATE);
-        baseOffset = prefs.getFloat(keyBaseToday, -1f);
-        stepsToday = prefs.getLong(keyTotalToday, 0L);
-
-        if (baseOffset < 0f) {
-            String today = dayCode();
-            String lastDay = prefs.getString(KEY_LAST_COUNTER_DAY, "");
-            if (today.equals(lastDay)) {
-                float lastCounter = prefs.getFloat(KEY_LAST_COUNTER, -1f);
-                if (lastCounter >= 0f) {
-                    float reconstructed = lastCounter - stepsToday;
-                    if (reconstructed < 0f) reconstructed = 0f;
-                    baseOffset = reconstructed;
-                    prefs.edit().putFloat(keyBaseToday, baseOffset).apply();
-                }
-            }
+        prefs = appCtx.getSharedPreferences(SP_NAME, Context.MODE_PRIVATE);
+        state = new StepIngestState(System.currentTimeMillis());
+        journal = new StepJournal(StepJournal.fileFor(appCtx));
+
+        StepJournal.Record tail = new StepJournal.Record();
+        if (journal.readTail(tail)) {
+            restoreFromJournal(tail);
+        } else {
+            migrateFromPrefs();
         }
+        purgeLegacyKeys();
+
+        series = StepTimeSeries.get(appCtx);
+        seriesDay = state.dayCode;
+        seriesSteps = Math.min(series.daySum(seriesDay), state.stepsToday);
 
         PowerManager pm = (PowerManager) appCtx.getSystemService(Context.POWER_SERVICE);
         if (pm != null) {
@@ -111,7 +124,6 @@ public class StepsManager {
         this(context, callback);
         this.repo = repo;
         this.userId = uid;
-        this.fs = FirebaseFirestore.getInstance();
         startActiveVersusListener();
     }
 
@@ -129,33 +141,41 @@ public class StepsManager {
             return;
         }
 
-        if (stepCounter != null) {
-            usingDetector = false;
-            sensorManager.registerListener(listener, stepCounter, SensorManager.SENSOR_DELAY_GAME);
-        } else if (stepDetector != null) {
-            usingDetector = true;
-            sensorManager.registerListener(listener, stepDetector, SensorManager.SENSOR_DELAY_GAME);
-        } else {
+        if (!registerSensor()) {
             listening = false;
             emitUpdate();
             return;
         }
         listening = true;
 
-        if (wakeLock != null && !wakeLock.isHeld()) {
-            try {
-                wakeLock.acquire();
-            } catch (Exception ignored) {
-            }
-        }
+        // Sin wake lock continuo: TYPE_STEP_COUNTER cuenta en hardware aunque la CPU duerma y
+        // al despertar trae el acumulado. Solo el modo batch lo toma, con tope, por cada batch.
 
         if (tickScheduler == null || tickScheduler.isShutdown()) {
             tickScheduler = Executors.newSingleThreadScheduledExecutor();
-            tickScheduler.scheduleAtFixedRate(this::emitUpdate, 0, 5, TimeUnit.SECONDS);
+            tickScheduler.scheduleAtFixedRate(this::onTick, 0, 5, TimeUnit.SECONDS);
         }
         emitUpdate();
     }
 
+    // Registra el contador (en batch si está activado) o, sin él, el detector
+    private boolean registerSensor() {
+        batchingActive = false;
+        if (stepCounter != null) {
+            usingDetector = false;
+            if (!registerBatched()) {
+                sensorManager.registerListener(listener, stepCounter, SensorManager.SENSOR_DELAY_GAME);
+            }
+            return true;
+        }
+        if (stepDetector != null) {
+            usingDetector = true;
+            sensorManager.registerListener(listener, stepDetector, SensorManager.SENSOR_DELAY_GAME);
+            return true;
+        }
+        return false;
+    }
+
     public void stop() {
         listening = false;
 
@@ -167,6 +187,13 @@ public class StepsManager {
             tickScheduler.shutdownNow();
             tickScheduler = null;
         }
+        mainHandler.removeCallbacks(deliverUpdate);
+        mainHandler.removeCallbacks(endBatch);
+        if (batchingActive) batchStats.onBatchEnd();
+        batchingActive = false;
+        flushState();
+        journal.close();
+        series.close();
 
         if (wakeLock != null && wakeLock.isHeld()) {
             try {
@@ -179,65 +206,133 @@ public class StepsManager {
     }
 
     public long getStepsToday() {
-        return stepsToday;
+        return state.stepsToday;
     }
 
     public double getKmToday() {
-        return round2(stepsToday * METROS_POR_PASO / 1000.0);
+        return round2(state.stepsToday * METROS_POR_PASO / 1000.0);
     }
 
     public long getDailyRecordLocal() {
-        return appCtx.getSharedPreferences(SP_NAME, Context.MODE_PRIVATE)
-                .getLong(KEY_RECORD_STEPS, 0L);
+        return prefs.getLong(KEY_RECORD_STEPS, 0L);
     }
 
-    // ================== SENSOR CALLBACK ==================
+    // ================== MODO BATCH ==================
+
+    /**
+     * Activa o desactiva el modo batch. Se aplica en el próximo start() o con applyBatching().
+     */
+    public static void setBatching(Context context, boolean enabled, long maxReportLatencyMs) {
+        context.getApplicationContext()
+                .getSharedPreferences(SP_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(KEY_BATCH_ENABLED, enabled)
+                .putLong(KEY_BATCH_LATENCY_MS, Math.max(0L, maxReportLatencyMs))
+                .apply();
+    }
 
-    private final SensorEventListener listener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            ensureTodayKeys();
+    public static boolean isBatchingEnabled(Context context) {
+        return context.getApplicationContext()
+                .getSharedPreferences(SP_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEY_BATCH_ENABLED, true);
+    }
+
+    /**
+     * Vuelve a registrar el sensor con la configuración de batch actual, sin cortar la sesión.
+     */
+    public void applyBatching() {
+        if (!listening || sensorManager == null) return;
+        sensorManager.unregisterListener(listener);
+        mainHandler.removeCallbacks(endBatch);
+        // Cierra el batch en curso: persiste y suelta el wake lock si estaba tomado
+        if (batchingActive) endBatch.run();
+        registerSensor();
+    }
 
-            SharedPreferences prefs = appCtx.getSharedPreferences(SP_NAME, Context.MODE_PRIVATE);
+    public boolean isBatching() {
+        return batchingActive;
+    }
 
-            if (!usingDetector && event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-                float totalSinceBoot = event.values[0];
+    public StepBatchStats getBatchStats() {
+        return batchStats;
+    }
 
-                float lastCounter = prefs.getFloat(KEY_LAST_COUNTER, -1f);
-                String lastDay = prefs.getString(KEY_LAST_COUNTER_DAY, "");
-                if (lastCounter >= 0f && totalSinceBoot < lastCounter) {
-                    float recalib = totalSinceBoot - stepsToday;
-                    if (recalib < 0f) recalib = 0f;
-                    baseOffset = recalib;
-                    prefs.edit().putFloat(keyBaseToday, baseOffset).apply();
-                }
+    private boolean registerBatched() {
+        // Por defecto activado: el hub despierta al AP una vez por minuto en vez de por paso
+        if (!prefs.getBoolean(KEY_BATCH_ENABLED, true)) return false;
+        long latencyMs = prefs.getLong(KEY_BATCH_LATENCY_MS, DEFAULT_BATCH_LATENCY_MS);
+        if (latencyMs <= 0L) return false;
+
+        // Preferimos la variante wake-up: el hub despierta al AP cuando vence la latencia
+        Sensor s = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER, true);
+        if (s == null) s = stepCounter;
+        if (s.getFifoMaxEventCount() <= 0) return false;
+
+        int latencyUs = (int) Math.min(Integer.MAX_VALUE, latencyMs * 1000L);
+        boolean ok = sensorManager.registerListener(listener, s,
+                SensorManager.SENSOR_DELAY_NORMAL, latencyUs);
+        if (!ok) return false;
+
+        batchingActive = true;
+        lastBatchEventMs = 0L;
+        return true;
+    }
 
-                if (baseOffset < 0f) {
-                    baseOffset = totalSinceBoot - stepsToday;
-                    if (baseOffset < 0f) baseOffset = totalSinceBoot;
-                    prefs.edit().putFloat(keyBaseToday, baseOffset).apply();
+    private void onBatchEvent(long nowMs) {
+        if (nowMs - lastBatchEventMs > BATCH_GAP_MS) {
+            batchStats.onBatchStart(nowMs);
+            if (wakeLock != null) {
+                try {
+                    wakeLock.acquire(BATCH_WAKE_TIMEOUT_MS);
+                } catch (Exception ignored) {
                 }
+            }
+        }
+        lastBatchEventMs = nowMs;
+        batchStats.onEvent();
+        mainHandler.removeCallbacks(endBatch);
+        mainHandler.postDelayed(endBatch, BATCH_GAP_MS);
+    }
 
-                long val = Math.max(0L, Math.round(totalSinceBoot - baseOffset));
-                if (val != stepsToday) {
-                    stepsToday = val;
-                    saveToday(stepsToday);
-                    emitUpdate();
+    // Fin del batch: persistimos antes de soltar la CPU
+    private final Runnable endBatch = new Runnable() {
+        @Override
+        public void run() {
+            batchStats.onBatchEnd();
+            flushState();
+            if (wakeLock != null && wakeLock.isHeld()) {
+                try {
+                    wakeLock.release();
+                } catch (Exception ignored) {
                 }
+            }
+        }
+    };
 
-                prefs.edit()
-                        .putFloat(KEY_LAST_COUNTER, totalSinceBoot)
-                        .putString(KEY_LAST_COUNTER_DAY, dayCode())
-                        .apply();
+    // ================== SENSOR CALLBACK ==================
+    // Camino caliente: sin SharedPreferences, sin formateo de fechas y sin objetos nuevos.
+    // La persistencia y el push a versus quedan en onTick().
+
+    private final SensorEventListener listener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            int type = event.sensor.getType();
+            int flags;
+
+            if (!usingDetector && type == Sensor.TYPE_STEP_COUNTER) {
+                long now = System.currentTimeMillis();
+                if (batchingActive) onBatchEvent(now);
+                flags = state.onCounter(now, event.values[0]);
+            } else if (usingDetector && type == Sensor.TYPE_STEP_DETECTOR) {
+                int inc = (int) (event.values.length > 0 ? event.values[0] : 1);
+                flags = state.onDetector(System.currentTimeMillis(), inc);
+            } else {
                 return;
             }
 
-            if (usingDetector && event.sensor.getType() == Sensor.TYPE_STEP_DETECTOR) {
-                int inc = (int) (event.values.length > 0 ? event.values[0] : 1);
-                if (inc <= 0) inc = 1;
-                stepsToday += inc;
-                saveToday(stepsToday);
-                emitUpdate();
+            if ((flags & StepIngestState.CHANGED) != 0 || (flags & StepIngestState.ROLLED_OVER) != 0) {
+                mainHandler.removeCallbacks(deliverUpdate);
+                mainHandler.post(deliverUpdate);
             }
         }
 
@@ -246,11 +341,24 @@ public class StepsManager {
         }
     };
 
+    private final Runnable deliverUpdate = new Runnable() {
+        @Override
+        public void run() {
+            long s = state.stepsToday;
+            if (callback != null) callback.onStepsUpdated(s, round2(s * METROS_POR_PASO / 1000.0));
+        }
+    };
+
     // ================== EMISIÓN / SYNC VERSUS ==================
 
+    private void onTick() {
+        state.rollIfNeeded(System.currentTimeMillis());
+        flushState();
+        emitUpdate();
+    }
+
     private void emitUpdate() {
-        final long s = stepsToday;
-        final double km = round2(s * METROS_POR_PASO / 1000.0);
+        final long s = state.stepsToday;
 
         if (repo != null && userId != null) {
             if (s != lastPushedSteps) {
@@ -259,9 +367,8 @@ public class StepsManager {
             }
         }
 
-        mainHandler.post(() -> {
-            if (callback != null) callback.onStepsUpdated(s, km);
-        });
+        mainHandler.removeCallbacks(deliverUpdate);
+        mainHandler.post(deliverUpdate);
     }
 
     private void pushStepsToAllActiveVersus(long steps) {
@@ -270,26 +377,32 @@ public class StepsManager {
             vsIdsCopy = new ArrayList<>(activeVersusIds);
         }
         for (String vsId : vsIdsCopy) {
-            repo.updateVersusStepsQuiet(vsId, userId, steps);
+            repo.pushVersusSteps(vsId, userId, steps);
         }
     }
 
     private void startActiveVersusListener() {
-        if (fs == null || userId == null) return;
+        if (repo == null || userId == null) return;
 
         stopActiveVersusListener();
 
-        activeVsListener = fs.collection("versus")
-                .whereArrayContains("ver_players", userId)
-                .whereEqualTo("ver_finished", false)
-                .addSnapshotListener((QuerySnapshot qs, FirebaseFirestoreException e) -> {
+        activeVsListener = repo.listenMyActiveVersus(userId,
+                (QuerySnapshot qs, FirebaseFirestoreException e) -> {
                     if (e != null || qs == null) return;
+                    List<String> ended;
                     synchronized (activeVersusIds) {
+                        ended = new ArrayList<>(activeVersusIds);
                         activeVersusIds.clear();
                         for (DocumentSnapshot d : qs.getDocuments()) {
                             activeVersusIds.add(d.getId());
                         }
+                        ended.removeAll(activeVersusIds);
                     }
+                    for (String vsId : ended) repo.forgetVersusPush(vsId);
+                    repo.scheduleMarathonDeadlines(appCtx, qs);
+                    // Un versus nuevo recibe los pasos actuales sin esperar a que cambien;
+                    // los repetidos los descarta el scheduler
+                    lastPushedSteps = -1L;
                 });
     }
 
@@ -305,37 +418,124 @@ public class StepsManager {
 
     // ================== PERSISTENCIA LOCAL ==================
 
-    private String todayKey(String prefix) {
-        return prefix + dayCode();
+    private void restoreFromJournal(StepJournal.Record tail) {
+        state.lastCounter = tail.counter;
+        if (tail.day == state.dayCode) {
+            state.baseOffset = tail.base;
+            state.stepsToday = tail.steps;
+        } else {
+            // El journal terminó en un día anterior: queda pendiente cerrarlo
+            state.closedDayPending = true;
+            state.closedDayCode = tail.day;
+            state.closedDaySteps = tail.steps;
+        }
     }
 
-    private String dayCode() {
-        return new SimpleDateFormat("yyyyMMdd", Locale.getDefault()).format(new Date());
+    // Primera vez con journal: tomamos lo que haya en steps_prefs
+    private void migrateFromPrefs() {
+        String today = StepIngestState.dayString(state.dayCode);
+        state.baseOffset = prefs.getFloat(KEY_BASE_PREFIX + today, -1f);
+        state.stepsToday = prefs.getLong(KEY_TOTAL_PREFIX + today, 0L);
+        state.lastCounter = prefs.getFloat(KEY_LAST_COUNTER, -1f);
+
+        if (state.baseOffset < 0f && state.lastCounter >= 0f
+                && today.equals(prefs.getString(KEY_LAST_COUNTER_DAY, ""))) {
+            float reconstructed = state.lastCounter - state.stepsToday;
+            state.baseOffset = reconstructed < 0f ? 0f : reconstructed;
+        }
+        state.dirty = true;
     }
 
-    private void ensureTodayKeys() {
-        String expectedBase = todayKey(KEY_BASE_PREFIX);
-        if (!expectedBase.equals(keyBaseToday)) {
-            SharedPreferences prefs = appCtx.getSharedPreferences(SP_NAME, Context.MODE_PRIVATE);
-            long record = prefs.getLong(KEY_RECORD_STEPS, 0L);
-            if (stepsToday > record) {
-                prefs.edit()
-                        .putLong(KEY_RECORD_STEPS, stepsToday)
-                        .putString(KEY_RECORD_DAY, dayCode())
-                        .apply();
+    private void purgeLegacyKeys() {
+        SharedPreferences.Editor ed = null;
+        for (String k : prefs.getAll().keySet()) {
+            if (k.startsWith(KEY_BASE_PREFIX) || k.startsWith(KEY_TOTAL_PREFIX)
+                    || k.equals(KEY_LAST_COUNTER) || k.equals(KEY_LAST_COUNTER_DAY)) {
+                if (ed == null) ed = prefs.edit();
+                ed.remove(k);
             }
-            keyBaseToday = expectedBase;
-            keyTotalToday = todayKey(KEY_TOTAL_PREFIX);
-            baseOffset = -1f;
-            stepsToday = 0L;
-            prefs.edit().remove(keyTotalToday).apply();
         }
+        if (ed != null) ed.apply();
     }
 
-    private void saveToday(long steps) {
-        appCtx.getSharedPreferences(SP_NAME, Context.MODE_PRIVATE).edit()
-                .putLong(keyTotalToday, steps)
-                .apply();
+    /**
+     * Agrega un registro al journal si hubo cambios. Se llama desde el tick, al cerrar
+     * un batch y al detener, nunca desde el callback del sensor.
+     */
+    private void flushState() {
+        synchronized (journal) {
+            long now = System.currentTimeMillis();
+            int day;
+            long dayStart;
+            float base, last;
+            long steps;
+            boolean closedPending;
+            int closedDay;
+            long closedSteps;
+
+            synchronized (state) {
+                if (!state.dirty && !state.closedDayPending) return;
+                day = state.dayCode;
+                dayStart = state.dayStartMs;
+                base = state.baseOffset;
+                last = state.lastCounter;
+                steps = state.stepsToday;
+                closedPending = state.closedDayPending;
+                closedDay = state.closedDayCode;
+                closedSteps = state.closedDaySteps;
+                state.dirty = false;
+                state.closedDayPending = false;
+            }
+
+            if (closedPending) {
+                long record = prefs.getLong(KEY_RECORD_STEPS, 0L);
+                if (closedSteps > record) {
+                    prefs.edit()
+                            .putLong(KEY_RECORD_STEPS, closedSteps)
+                            .putString(KEY_RECORD_DAY, StepIngestState.dayString(closedDay))
+                            .apply();
+                }
+            }
+
+            try {
+                if (closedPending) {
+                    // Día nuevo: el journal arranca de cero con el estado actual
+                    journal.checkpoint(now, day, last, base, steps);
+                } else {
+                    journal.append(now, day, last, base, steps);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "journal: " + e.getMessage());
+                synchronized (state) {
+                    state.dirty = true;
+                }
+            }
+
+            int minute = (int) ((now - dayStart) / 60_000L);
+            feedSeries(day, minute, steps, closedPending, closedDay, closedSteps);
+        }
+    }
+
+    private void feedSeries(int day, int minute, long steps,
+                            boolean closedPending, int closedDay, long closedSteps) {
+        try {
+            if (closedPending) {
+                // Lo que faltaba del día cerrado va a su último minuto
+                long already = closedDay == seriesDay ? seriesSteps : series.daySum(closedDay);
+                series.add(closedDay, StepTimeSeries.MINUTES_PER_DAY - 1, (int) (closedSteps - already));
+            }
+            if (day != seriesDay) {
+                seriesDay = day;
+                seriesSteps = Math.min(series.daySum(day), steps);
+            }
+            long delta = steps - seriesSteps;
+            if (delta > 0L) {
+                series.add(day, minute, (int) delta);
+                seriesSteps = steps;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "series: " + e.getMessage());
+        }
     }
 
     private static double round2(double v) {
@@ -0,0 +1,71 @@
+package com.example.podovs;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Codifica la línea de tiempo de un versus: una muestra de pasos acumulados por intervalo,
+ * guardada como diferencia con la anterior en varint zigzag. Un cuarto de hora caminando
+ * entra en 2 bytes y uno quieto en 1, así que un día de muestras ocupa ~100-200 bytes.
+ * Sin dependencias de Android para poder probarlo en la JVM.
+ */
+final class TimelineCodec {
+
+    private TimelineCodec() {
+    }
+
+    /**
+     * Agrega a data las muestras values (acumulados), tomando prev como el valor anterior.
+     */
+    static byte[] append(byte[] data, long prev, long[] values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                (data == null ? 0 : data.length) + values.length * 2);
+        if (data != null) out.write(data, 0, data.length);
+        long last = prev;
+        for (long v : values) {
+            writeVarint(out, zigzag(v - last));
+            last = v;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Devuelve los primeros count acumulados de data, partiendo de base.
+     * Si los bytes no alcanzan, el resto repite el último valor leído.
+     */
+    static long[] decode(byte[] data, long base, int count) {
+        long[] out = new long[Math.max(0, count)];
+        long value = base;
+        int pos = 0;
+        for (int i = 0; i < out.length; i++) {
+            if (data != null && pos < data.length) {
+                long raw = 0L;
+                int shift = 0;
+                while (pos < data.length) {
+                    int b = data[pos++] & 0xFF;
+                    raw |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) break;
+                    shift += 7;
+                }
+                value += unzigzag(raw);
+            }
+            out[i] = value;
+        }
+        return out;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0L) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1L);
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.podovs;
+
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resúmenes de usuario (nombre, nivel, equipado) compartidos por toda la app. LRU con
+ * vencimiento; lo que falta se pide en consultas whereIn(documentId) de hasta 30 ids y un
+ * mismo uid en vuelo no se vuelve a pedir.
+ */
+final class UserSummaryCache {
+
+    static final int MAX_ENTRIES = 300;
+    static final long TTL_MS = 10L * 60_000L;
+    static final int BATCH = 30;
+
+    private static final class Entry {
+        final FirestoreRepo.UserSummary summary;
+        final long fetchedAtMs;
+
+        Entry(FirestoreRepo.UserSummary summary, long fetchedAtMs) {
+            this.summary = summary;
+            this.fetchedAtMs = fetchedAtMs;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, Task<Void>> inFlight = new HashMap<>();
+
+    // Métricas
+    private long hits = 0L;
+    private long misses = 0L;
+    private long queries = 0L;
+    private long docsRead = 0L;
+
+    UserSummaryCache(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    synchronized FirestoreRepo.UserSummary peek(String uid) {
+        Entry e = entries.get(uid);
+        return (e == null || expired(e)) ? null : e.summary;
+    }
+
+    synchronized void forget(String uid) {
+        entries.remove(uid);
+    }
+
+    /**
+     * Entrega los resúmenes de los uids que se pudieron resolver (los que no existen
+     * vienen con el handle como nombre). Si todo estaba en cache responde en el acto.
+     */
+    void load(Collection<String> uids, OnSuccessListener<Map<String, FirestoreRepo.UserSummary>> ok) {
+        Set<String> wanted = new LinkedHashSet<>();
+        for (String uid : uids) {
+            if (uid != null && !uid.isEmpty()) wanted.add(uid);
+        }
+
+        Set<Task<Void>> waits = new HashSet<>();
+        synchronized (this) {
+            List<String> toFetch = new ArrayList<>();
+            for (String uid : wanted) {
+                Entry e = entries.get(uid);
+                if (e != null && !expired(e)) {
+                    hits++;
+                    continue;
+                }
+                misses++;
+                Task<Void> pending = inFlight.get(uid);
+                if (pending != null) waits.add(pending);
+                else toFetch.add(uid);
+            }
+            for (int i = 0; i < toFetch.size(); i += BATCH) {
+                List<String> chunk = new ArrayList<>(toFetch.subList(i, Math.min(i + BATCH, toFetch.size())));
+                Task<Void> t = fetch(chunk);
+                for (String id : chunk) inFlight.put(id, t);
+                waits.add(t);
+            }
+        }
+
+        if (waits.isEmpty()) {
+            ok.onSuccess(collect(wanted));
+            return;
+        }
+        Tasks.whenAllComplete(waits).addOnCompleteListener(t -> ok.onSuccess(collect(wanted)));
+    }
+
+    private Task<Void> fetch(List<String> chunk) {
+        queries++;
+        return db.collection("users")
+                .whereIn(FieldPath.documentId(), chunk)
+                .get()
+                .continueWith(task -> {
+                    synchronized (UserSummaryCache.this) {
+                        for (String id : chunk) inFlight.remove(id);
+                        // Si falló no se guarda nada: el próximo load lo vuelve a pedir
+                        if (!task.isSuccessful() || task.getResult() == null) return null;
+
+                        long now = System.currentTimeMillis();
+                        Set<String> found = new HashSet<>();
+                        for (DocumentSnapshot d : task.getResult().getDocuments()) {
+                            docsRead++;
+                            found.add(d.getId());
+                            entries.put(d.getId(), new Entry(FirestoreRepo.UserSummary.fromUser(d), now));
+                        }
+                        // Los que no existen también quedan, así no se piden en cada render
+                        for (String id : chunk) {
+                            if (!found.contains(id)) {
+                                entries.put(id, new Entry(FirestoreRepo.UserSummary.missing(id), now));
+                            }
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    private synchronized Map<String, FirestoreRepo.UserSummary> collect(Set<String> uids) {
+        Map<String, FirestoreRepo.UserSummary> out = new HashMap<>();
+        for (String uid : uids) {
+            Entry e = entries.get(uid);
+            if (e != null) out.put(uid, e.summary);
+        }
+        return out;
+    }
+
+    private static boolean expired(Entry e) {
+        return System.currentTimeMillis() - e.fetchedAtMs > TTL_MS;
+    }
+
+    // ================== MÉTRICAS ==================
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getQueries() {
+        return queries;
+    }
+
+    synchronized long getDocsRead() {
+        return docsRead;
+    }
+
+    synchronized int getSize() {
+        return entries.size();
+    }
+}
@@ -23,19 +23,23 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.request.target.CustomTarget;
 import com.bumptech.glide.request.transition.Transition;
 import com.google.android.material.button.MaterialButton;
+import com.google.android.material.button.MaterialButtonToggleGroup;
 import com.google.android.material.card.MaterialCardView;
+import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.QuerySnapshot;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
 
 public class VersusActivity extends AppCompatActivity {
 
@@ -54,12 +58,22 @@ public class VersusActivity extends AppCompatActivity {
     private ImageView ivEnergy2;
     private ImageView ivEnergy3;
 
-    private ListenerRegistration roomsListener;
     private ListenerRegistration versusListener;
 
     private final List<VsRoom> myActive = new ArrayList<>();
     private final List<VsRoom> others = new ArrayList<>();
-    private final Map<String, OwnerInfo> ownersCache = new HashMap<>();
+
+    // Lobby paginado: filtros de la consulta y cards ya dibujadas por id de sala
+    private boolean lobbyPublic = true;
+    @Nullable
+    private Boolean lobbyRace = null;
+    // Un listener por página (startAfter del último doc de la anterior) y su último snapshot
+    private final List<ListenerRegistration> pageListeners = new ArrayList<>();
+    private final List<QuerySnapshot> pageSnaps = new ArrayList<>();
+    private boolean lobbyHasMore = false;
+    private final Map<String, View> roomCards = new HashMap<>();
+    private View roomsEmptyView;
+    private MaterialButton btnMoreRooms;
 
     static class VsRoom {
         String id;
@@ -76,16 +90,6 @@ public class VersusActivity extends AppCompatActivity {
         Map<String, Object> ownerEquipped;
     }
 
-    static class OwnerInfo {
-        final String name;
-        final Map<String, Object> equipped;
-
-        OwnerInfo(String name, Map<String, Object> equipped) {
-            this.name = name;
-            this.equipped = equipped;
-        }
-    }
-
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -142,6 +146,26 @@ public class VersusActivity extends AppCompatActivity {
             frag.show(getSupportFragmentManager(), "creator_room");
         });
 
+        findViewById(R.id.btnJoinByCode).setOnClickListener(v -> {
+            CodeFragment f = CodeFragment.newInstance(null, uid);
+            f.show(getSupportFragmentManager(), "code_room");
+        });
+
+        MaterialButtonToggleGroup tgVisibility = findViewById(R.id.tgLobbyVisibility);
+        MaterialButtonToggleGroup tgMode = findViewById(R.id.tgLobbyMode);
+        tgVisibility.addOnButtonCheckedListener((group, checkedId, isChecked) -> {
+            if (!isChecked) return;
+            lobbyPublic = checkedId == R.id.btnLobbyPublic;
+            resetLobby();
+        });
+        tgMode.addOnButtonCheckedListener((group, checkedId, isChecked) -> {
+            if (!isChecked) return;
+            if (checkedId == R.id.btnLobbyRace) lobbyRace = true;
+            else if (checkedId == R.id.btnLobbyMarathon) lobbyRace = false;
+            else lobbyRace = null;
+            resetLobby();
+        });
+
         startVersusListener();
         startRoomsListener();
     }
@@ -149,74 +173,146 @@ public class VersusActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (roomsListener != null) roomsListener.remove();
+        removePageListeners();
         if (versusListener != null) versusListener.remove();
     }
 
     // LISTENERS
 
     private void startRoomsListener() {
-        if (roomsListener != null) roomsListener.remove();
+        removePageListeners();
+        // Solo las páginas pedidas: el costo no crece con la cantidad de salas abiertas
+        listenPage(0, null, null, FirestoreRepo.LOBBY_PAGE);
+    }
 
-        roomsListener = db.collection("rooms")
-                .whereEqualTo("roo_finished", false)
-                .addSnapshotListener((qs, err) -> {
+    private void listenPage(int page,
+                            @Nullable DocumentSnapshot after,
+                            @Nullable DocumentSnapshot endAt,
+                            int limit) {
+        while (pageSnaps.size() <= page) {
+            pageSnaps.add(null);
+            pageListeners.add(null);
+        }
+        ListenerRegistration prev = pageListeners.get(page);
+        if (prev != null) prev.remove();
+        pageListeners.set(page, repo.listenLobbyPage(lobbyPublic, lobbyRace, after, endAt, limit,
+                (qs, err) -> {
                     if (err != null || qs == null) return;
-                    rebuildRoomsFromSnapshot(qs);
+                    pageSnaps.set(page, qs);
+                    Set<String> dirty = rebuildRoomsFromPages(qs);
+                    renderRoomCards(dirty);
                     fetchOwnersForRooms();
-                });
+                }));
+    }
+
+    private void removePageListeners() {
+        for (ListenerRegistration r : pageListeners) if (r != null) r.remove();
+        pageListeners.clear();
+        pageSnaps.clear();
+    }
+
+    // Cambió un filtro: otra consulta, se empieza de la primera página
+    private void resetLobby() {
+        others.clear();
+        roomCards.clear();
+        containerRooms.removeAllViews();
+        startRoomsListener();
+    }
+
+    /**
+     * Abre la página siguiente después del último doc de la actual. Las salas nuevas solo
+     * entran arriba, en la página 0: al abrir la 1 se la cierra en su último doc (sin limit)
+     * para que una sala nueva no empuje a otra fuera de ambas páginas.
+     */
+    private void loadMoreRooms() {
+        int last = pageSnaps.size() - 1;
+        if (last < 0) return;
+        QuerySnapshot qs = pageSnaps.get(last);
+        if (qs == null || qs.isEmpty()) return;
+        DocumentSnapshot end = qs.getDocuments().get(qs.size() - 1);
+        if (last == 0) listenPage(0, null, end, 0);
+        listenPage(last + 1, end, null, FirestoreRepo.LOBBY_PAGE);
     }
 
     private void startVersusListener() {
         if (versusListener != null) versusListener.remove();
 
-        versusListener = db.collection("versus")
-                .whereArrayContains("ver_players", uid)
-                .whereEqualTo("ver_finished", false)
-                .addSnapshotListener((qs, err) -> {
-                    if (err != null || qs == null) return;
-                    rebuildVersusFromSnapshot(qs);
-                    renderRooms();
-                });
+        // Comparte el listener con StepsManager: una sola consulta por usuario
+        versusListener = repo.listenMyActiveVersus(uid, (qs, err) -> {
+            if (err != null || qs == null) return;
+            rebuildVersusFromSnapshot(qs);
+            renderActive();
+        });
     }
 
-    private void rebuildRoomsFromSnapshot(QuerySnapshot qs) {
-        others.clear();
-        for (DocumentSnapshot d : qs.getDocuments()) {
+    /**
+     * Rearma la lista de salas concatenando las páginas en orden. Solo se vuelven a parsear
+     * las que trae getDocumentChanges() de la página que cambió; devuelve sus ids para
+     * redibujar únicamente esas cards.
+     */
+    private Set<String> rebuildRoomsFromPages(QuerySnapshot changed) {
+        Set<String> dirty = new HashSet<>();
+        for (DocumentChange dc : changed.getDocumentChanges()) {
+            dirty.add(dc.getDocument().getId());
+        }
 
-            if (d.get("roo_eventId") != null) {
-                continue;
+        Map<String, VsRoom> prev = new HashMap<>();
+        for (VsRoom r : others) prev.put(r.id, r);
+
+        others.clear();
+        Set<String> seen = new HashSet<>();
+        for (QuerySnapshot qs : pageSnaps) {
+            if (qs == null) continue;
+            for (DocumentSnapshot d : qs.getDocuments()) {
+                // Al cerrarse una sala la página con limit toma la primera de la siguiente
+                if (!seen.add(d.getId())) continue;
+                VsRoom old = prev.get(d.getId());
+                if (old != null && !dirty.contains(d.getId())) {
+                    others.add(old);
+                    continue;
+                }
+                others.add(parseRoom(d));
             }
+        }
+        QuerySnapshot tail = pageSnaps.isEmpty() ? null : pageSnaps.get(pageSnaps.size() - 1);
+        lobbyHasMore = tail != null && tail.size() >= FirestoreRepo.LOBBY_PAGE;
+        return dirty;
+    }
 
-            VsRoom r = new VsRoom();
-            r.id = d.getId();
-            r.ownerId = asString(d.get("roo_user"));
+    private VsRoom parseRoom(DocumentSnapshot d) {
+        VsRoom r = new VsRoom();
+        r.id = d.getId();
+        r.ownerId = asString(d.get("roo_user"));
 
-            Boolean pub = d.getBoolean("roo_public");
-            r.isPublic = pub != null && pub;
+        Boolean pub = d.getBoolean("roo_public");
+        r.isPublic = pub != null && pub;
 
-            r.code = asString(d.get("roo_code"));
+        r.code = asString(d.get("roo_code"));
 
-            Boolean typeB = d.getBoolean("roo_type");
-            r.isRace = typeB != null && typeB;
+        Boolean typeB = d.getBoolean("roo_type");
+        r.isRace = typeB != null && typeB;
 
-            Object tSteps = d.get("roo_targetSteps");
-            if (tSteps instanceof Number) r.targetSteps = ((Number) tSteps).longValue();
+        Object tSteps = d.get("roo_targetSteps");
+        if (tSteps instanceof Number) r.targetSteps = ((Number) tSteps).longValue();
 
-            Object dDays = d.get("roo_days");
-            if (dDays instanceof Number) r.days = ((Number) dDays).longValue();
+        Object dDays = d.get("roo_days");
+        if (dDays instanceof Number) r.days = ((Number) dDays).longValue();
 
-            Boolean finished = d.getBoolean("roo_finished");
-            r.finished = finished != null && finished;
+        Boolean finished = d.getBoolean("roo_finished");
+        r.finished = finished != null && finished;
 
-            Object playersRaw = d.get("roo_players");
-            if (playersRaw instanceof List) {
-                List<?> rawList = (List<?>) playersRaw;
-                for (Object o : rawList) if (o instanceof String) r.players.add((String) o);
-            }
+        Object playersRaw = d.get("roo_players");
+        if (playersRaw instanceof List) {
+            List<?> rawList = (List<?>) playersRaw;
+            for (Object o : rawList) if (o instanceof String) r.players.add((String) o);
+        }
 
-            if (!r.finished) others.add(r);
+        FirestoreRepo.UserSummary owner = r.ownerId == null ? null : repo.peekUserSummary(r.ownerId);
+        if (owner != null) {
+            r.ownerName = owner.nombre;
+            r.ownerEquipped = owner.equipped;
         }
+        return r;
     }
 
     private void rebuildVersusFromSnapshot(QuerySnapshot qs) {
@@ -259,63 +355,37 @@ public class VersusActivity extends AppCompatActivity {
 
 
     private void fetchOwnersForRooms() {
-        HashSet<String> missing = new HashSet<>();
+        HashSet<String> owners = new HashSet<>();
         for (VsRoom r : others) {
-            if (r.ownerId != null && !ownersCache.containsKey(r.ownerId)) {
-                missing.add(r.ownerId);
-            }
-        }
-        if (missing.isEmpty()) {
-            applyOwnerInfoToRooms();
-            renderRooms();
-            return;
+            if (r.ownerId != null) owners.add(r.ownerId);
         }
+        if (owners.isEmpty()) return;
 
-        AtomicInteger remaining = new AtomicInteger(missing.size());
-        for (String ownerId : missing) {
-            db.collection("users").document(ownerId)
-                    .get()
-                    .addOnSuccessListener(snap -> {
-                        String name = snap.getString("usu_nombre");
-                        if (name == null || name.trim().isEmpty()) {
-                            name = buildHandle(ownerId);
-                        }
-                        Object eqRaw = snap.get("usu_equipped");
-                        Map<String, Object> equipped = null;
-                        if (eqRaw instanceof Map) {
-                            //noinspection unchecked
-                            equipped = (Map<String, Object>) eqRaw;
-                        }
-                        ownersCache.put(ownerId, new OwnerInfo(name, equipped));
-
-                        if (remaining.decrementAndGet() == 0) {
-                            applyOwnerInfoToRooms();
-                            renderRooms();
-                        }
-                    })
-                    .addOnFailureListener(e -> {
-                        if (remaining.decrementAndGet() == 0) {
-                            applyOwnerInfoToRooms();
-                            renderRooms();
-                        }
-                    });
-        }
+        // Cache compartido de la app: lo que falta sale en consultas de hasta 30 ids
+        repo.loadUserSummaries(owners, summaries -> {
+            if (isFinishing() || isDestroyed()) return;
+            renderRoomCards(applyOwnerInfoToRooms(summaries));
+        });
     }
 
-    private void applyOwnerInfoToRooms() {
+    // Devuelve las salas cuyo dueño cambió, para redibujar solo esas cards
+    private Set<String> applyOwnerInfoToRooms(Map<String, FirestoreRepo.UserSummary> summaries) {
+        Set<String> dirty = new HashSet<>();
         for (VsRoom r : others) {
             if (r.ownerId == null) continue;
-            OwnerInfo info = ownersCache.get(r.ownerId);
-            if (info != null) {
-                r.ownerName = info.name;
+            FirestoreRepo.UserSummary info = summaries.get(r.ownerId);
+            if (info != null && (!info.nombre.equals(r.ownerName) || info.equipped != r.ownerEquipped)) {
+                r.ownerName = info.nombre;
                 r.ownerEquipped = info.equipped;
+                dirty.add(r.id);
             }
         }
+        return dirty;
     }
 
     // RENDER
 
-    private void renderRooms() {
+    private void renderActive() {
         int used = myActive.size();
         int remaining = MAX_ACTIVE_VS - used;
         if (remaining < 0) remaining = 0;
@@ -327,7 +397,6 @@ public class VersusActivity extends AppCompatActivity {
         updateEnergyIcons(remaining);
 
         containerActive.removeAllViews();
-        containerRooms.removeAllViews();
 
         if (myActive.isEmpty()) {
             containerActive.addView(makeSimpleText("No tenés versus en progreso."));
@@ -337,19 +406,62 @@ public class VersusActivity extends AppCompatActivity {
             }
         }
 
-        if (others.isEmpty()) {
-            containerRooms.addView(makeSimpleText("No hay salas disponibles por ahora."));
-        } else {
-            for (VsRoom r : others) {
-                containerRooms.addView(makeJoinableCard(r));
-            }
-        }
-
         boolean canCreate = remaining > 0;
         btnCreateRoom.setEnabled(canCreate);
         btnCreateRoom.setAlpha(canCreate ? 1f : 0.5f);
     }
 
+    /**
+     * Render incremental del lobby: reutiliza la card de cada sala por id, redibuja solo las
+     * de dirty y mueve las demás a su posición nueva.
+     */
+    private void renderRoomCards(Set<String> dirty) {
+        if (roomsEmptyView != null) containerRooms.removeView(roomsEmptyView);
+        if (btnMoreRooms != null) containerRooms.removeView(btnMoreRooms);
+
+        Set<String> keep = new HashSet<>();
+        for (VsRoom r : others) keep.add(r.id);
+        Iterator<Map.Entry<String, View>> it = roomCards.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, View> e = it.next();
+            if (!keep.contains(e.getKey()) || dirty.contains(e.getKey())) {
+                containerRooms.removeView(e.getValue());
+                it.remove();
+            }
+        }
+
+        for (int i = 0; i < others.size(); i++) {
+            VsRoom r = others.get(i);
+            View card = roomCards.get(r.id);
+            if (card == null) {
+                card = makeJoinableCard(r);
+                roomCards.put(r.id, card);
+            }
+            if (containerRooms.getChildAt(i) != card) {
+                if (card.getParent() != null) containerRooms.removeView(card);
+                containerRooms.addView(card, i);
+            }
+        }
+
+        if (others.isEmpty()) {
+            if (roomsEmptyView == null) {
+                roomsEmptyView = makeSimpleText("No hay salas disponibles por ahora.");
+            }
+            containerRooms.addView(roomsEmptyView);
+        }
+        if (lobbyHasMore) {
+            if (btnMoreRooms == null) {
+                btnMoreRooms = new MaterialButton(this, null,
+                        com.google.android.material.R.attr.borderlessButtonStyle);
+                btnMoreRooms.setText("Ver más salas");
+                btnMoreRooms.setAllCaps(false);
+                btnMoreRooms.setTextColor(0xFF047857);
+                btnMoreRooms.setOnClickListener(v -> loadMoreRooms());
+            }
+            containerRooms.addView(btnMoreRooms);
+        }
+    }
+
     private void updateEnergyIcons(int remaining) {
         int full = R.drawable.energy_empty;
         int spent = R.drawable.energy_charged;
@@ -548,10 +660,10 @@ public class VersusActivity extends AppCompatActivity {
         if (uid.equals(r.ownerId)) {
             tvClose.setVisibility(View.VISIBLE);
             tvClose.setOnClickListener(v -> {
-                db.collection("rooms").document(r.id)
-                        .delete()
-                        .addOnFailureListener(e ->
-                                Toast.makeText(this, "Error al borrar sala", Toast.LENGTH_SHORT).show());
+                repo.deleteRoom(r.id,
+                        x -> {
+                        },
+                        e -> Toast.makeText(this, "Error al borrar sala", Toast.LENGTH_SHORT).show());
             });
         } else {
             tvClose.setVisibility(View.GONE);
@@ -631,8 +743,16 @@ public class VersusActivity extends AppCompatActivity {
         );
     }
 
-    public void joinRoomWithCode(@NonNull String roomId, @NonNull String code) {
-        if (TextUtils.isEmpty(roomId) || TextUtils.isEmpty(code)) return;
+    public void joinRoomWithCode(@Nullable String roomId, @NonNull String code) {
+        if (TextUtils.isEmpty(code)) return;
+
+        if (TextUtils.isEmpty(roomId)) {
+            repo.joinRoomByCode(code, uid,
+                    vsId -> {
+                    },
+                    e -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show());
+            return;
+        }
 
         new FirestoreRepo().joinRoomAndStartMatch(
                 roomId,
@@ -671,18 +791,11 @@ public class VersusActivity extends AppCompatActivity {
             if (equipped != null) {
                 renderWithEquipped(act, db, target, userId, equipped);
             } else {
-                db.collection("users").document(userId).get()
-                        .addOnSuccessListener(snap -> {
-                            if (snap == null || !snap.exists()
-                                    || act.isFinishing() || act.isDestroyed()) return;
-                            Object eqRaw = snap.get("usu_equipped");
-                            Map<String, Object> eq = null;
-                            if (eqRaw instanceof Map) {
-                                //noinspection unchecked
-                                eq = (Map<String, Object>) eqRaw;
-                            }
-                            renderWithEquipped(act, db, target, userId, eq);
-                        });
+                act.repo.loadUserSummaries(Collections.singletonList(userId), summaries -> {
+                    FirestoreRepo.UserSummary s = summaries.get(userId);
+                    if (s == null || !s.exists || act.isFinishing() || act.isDestroyed()) return;
+                    renderWithEquipped(act, db, target, userId, s.equipped);
+                });
             }
         }
 
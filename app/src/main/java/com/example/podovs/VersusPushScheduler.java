@@ -0,0 +1,147 @@
+package com.example.podovs;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Único dueño de los pushes de pasos a versus/{id}. Agrupa los envíos por versus
+ * con un debounce y mantiene como máximo una transacción en vuelo por documento;
+ * lo que llega mientras tanto se colapsa en el último valor. Un envío fallido se
+ * reprograma con backoff exponencial mientras quede un valor sin subir.
+ */
+final class VersusPushScheduler {
+
+    static final long DEBOUNCE_MS = 3_000L;
+    static final long MAX_BACKOFF_MS = 5L * 60_000L;
+
+    private static final class Slot {
+        String uid;
+        long latestSteps = -1L;
+        long pushedSteps = -1L;
+        boolean scheduled = false;
+        boolean inFlight = false;
+        int failStreak = 0;
+        Runnable fire;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Slot> slots = new HashMap<>();
+    private final FirestoreRepo repo;
+
+    // Métricas
+    private long submitted = 0L;
+    private long pushed = 0L;
+    private long skipped = 0L;
+    private long coalesced = 0L;
+    private long failures = 0L;
+    private long retries = 0L;
+
+    VersusPushScheduler(FirestoreRepo repo) {
+        this.repo = repo;
+    }
+
+    synchronized void submit(String versusId, String uid, long steps) {
+        submitted++;
+        Slot slot = slots.get(versusId);
+        if (slot == null) {
+            slot = new Slot();
+            final String id = versusId;
+            slot.fire = () -> fire(id);
+            slots.put(versusId, slot);
+        }
+
+        if (!slot.scheduled && !slot.inFlight && steps == slot.pushedSteps && uid.equals(slot.uid)) {
+            skipped++;
+            return;
+        }
+        if (slot.scheduled || slot.inFlight) coalesced++;
+
+        slot.uid = uid;
+        slot.latestSteps = steps;
+        if (!slot.scheduled && !slot.inFlight) {
+            slot.scheduled = true;
+            handler.postDelayed(slot.fire, DEBOUNCE_MS);
+        }
+    }
+
+    /**
+     * Descarta el estado de un versus que ya no está activo.
+     */
+    synchronized void forget(String versusId) {
+        Slot slot = slots.remove(versusId);
+        if (slot != null) handler.removeCallbacks(slot.fire);
+    }
+
+    private synchronized void fire(String versusId) {
+        Slot slot = slots.get(versusId);
+        if (slot == null) return;
+        slot.scheduled = false;
+        if (slot.inFlight) return;
+        if (slot.latestSteps == slot.pushedSteps) {
+            skipped++;
+            return;
+        }
+
+        slot.inFlight = true;
+        pushed++;
+        final long value = slot.latestSteps;
+        repo.updateVersusSteps(versusId, slot.uid, value,
+                v -> onDone(versusId, value, true),
+                e -> onDone(versusId, value, false));
+    }
+
+    private synchronized void onDone(String versusId, long value, boolean ok) {
+        Slot slot = slots.get(versusId);
+        if (slot == null) return;
+        slot.inFlight = false;
+        long delay = DEBOUNCE_MS;
+        if (ok) {
+            slot.pushedSteps = value;
+            slot.failStreak = 0;
+        } else {
+            failures++;
+            slot.failStreak++;
+            delay = backoffMs(slot.failStreak);
+        }
+        if (slot.latestSteps != slot.pushedSteps && !slot.scheduled) {
+            if (!ok) retries++;
+            slot.scheduled = true;
+            handler.postDelayed(slot.fire, delay);
+        }
+    }
+
+    // 3 s, 6 s, 12 s... hasta MAX_BACKOFF_MS
+    static long backoffMs(int failStreak) {
+        int shift = Math.min(Math.max(0, failStreak - 1), 20);
+        return Math.min(MAX_BACKOFF_MS, DEBOUNCE_MS << shift);
+    }
+
+    // ================== MÉTRICAS ==================
+
+    synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    synchronized long getPushed() {
+        return pushed;
+    }
+
+    synchronized long getSkipped() {
+        return skipped;
+    }
+
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    synchronized long getFailures() {
+        return failures;
+    }
+
+    synchronized long getRetries() {
+        return retries;
+    }
+}
@@ -10,7 +10,9 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
+import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -22,11 +24,18 @@ import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.QuerySnapshot;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class VsInfoFragment extends DialogFragment {
@@ -48,13 +57,79 @@ public class VsInfoFragment extends DialogFragment {
     private String myUid;
 
     private FirebaseFirestore db;
+    private FirestoreRepo repo;
     private ListenerRegistration registration;
+    private ListenerRegistration progressRegistration;
+
+    // Último estado recibido del versus y, en modo docs, de progress/{uid}
+    private DocumentSnapshot lastSnap;
+    private QuerySnapshot lastProgress;
+
+    // Repetición: la línea de tiempo se baja recién al abrirla; replaySlot -1 = en vivo
+    private FirestoreRepo.VersusTimeline timeline;
+    private int replaySlot = -1;
+
+    // Filas de jugadores por uid: cada bind solo toca lo que cambió
+    private static final class PlayerRow {
+        final View root;
+        final TextView tvLine;
+        final ProgressBar pb;
+        String line;
+        int progress = -1;
+
+        PlayerRow(View root, TextView tvLine, ProgressBar pb) {
+            this.root = root;
+            this.tvLine = tvLine;
+            this.pb = pb;
+        }
+    }
+
+    private final Map<String, PlayerRow> playerRows = new HashMap<>();
+    private final List<String> rowOrder = new ArrayList<>();
+
+    // Métricas de render del proceso, sumando todos los diálogos (hilo principal)
+    private static long binds = 0L;
+    private static long skippedSnaps = 0L;
+    private static long rowsCreated = 0L;
+    private static long rowsUpdated = 0L;
+    private static long bindNanosTotal = 0L;
+    private static long bindNanosMax = 0L;
+
+    public static class RenderStats {
+        public final long binds;
+        public final long skippedSnaps;
+        public final long rowsCreated;
+        public final long rowsUpdated;
+        public final double avgBindUs;
+        public final double maxBindUs;
+
+        public RenderStats(long binds, long skippedSnaps, long rowsCreated, long rowsUpdated,
+                           double avgBindUs, double maxBindUs) {
+            this.binds = binds;
+            this.skippedSnaps = skippedSnaps;
+            this.rowsCreated = rowsCreated;
+            this.rowsUpdated = rowsUpdated;
+            this.avgBindUs = avgBindUs;
+            this.maxBindUs = maxBindUs;
+        }
+    }
+
+    /**
+     * Costo de dibujar las filas de jugadores por actualización. Llamar desde el hilo principal.
+     */
+    public static RenderStats getRenderStats() {
+        return new RenderStats(binds, skippedSnaps, rowsCreated, rowsUpdated,
+                binds == 0L ? 0.0 : bindNanosTotal / 1000.0 / binds, bindNanosMax / 1000.0);
+    }
 
     private View rootOverlay;
     private MaterialCardView card;
     private TextView tvTitle, tvSubtitle, tvTarget, tvTime, tvWinner;
     private LinearLayout containerPlayers;
     private MaterialButton btnClose;
+    private MaterialButton btnReplay;
+    private SeekBar sbReplay;
+    private TextView tvReplayTime;
 
     @Nullable
     @Override
@@ -72,6 +147,7 @@ public class VsInfoFragment extends DialogFragment {
         vsId = getArguments() != null ? getArguments().getString(ARG_VS_ID) : null;
         myUid = getArguments() != null ? getArguments().getString(ARG_UID) : null;
         db = FirebaseFirestore.getInstance();
+        repo = new FirestoreRepo();
 
         rootOverlay = view.findViewById(R.id.rootVsInfoOverlay);
         card = view.findViewById(R.id.cardVsInfo);
@@ -82,6 +158,9 @@ public class VsInfoFragment extends DialogFragment {
         tvWinner = view.findViewById(R.id.tvVsInfoWinner);
         containerPlayers = view.findViewById(R.id.containerVsPlayers);
         btnClose = view.findViewById(R.id.btnCloseVsInfo);
+        btnReplay = view.findViewById(R.id.btnVsReplay);
+        sbReplay = view.findViewById(R.id.sbVsReplay);
+        tvReplayTime = view.findViewById(R.id.tvVsReplayTime);
         View btnCloseIcon = view.findViewById(R.id.btnCloseIcon);
 
         rootOverlay.setOnClickListener(v -> dismiss());
@@ -89,6 +168,24 @@ public class VsInfoFragment extends DialogFragment {
         });
         btnClose.setOnClickListener(v -> dismiss());
         btnCloseIcon.setOnClickListener(v -> dismiss());
+        btnReplay.setOnClickListener(v -> toggleReplay());
+        sbReplay.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (timeline == null) return;
+                replaySlot = progress >= timeline.slots ? -1 : progress;
+                bindReplayTime();
+                if (lastSnap != null) bindPlayers(lastSnap);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
 
         if (!TextUtils.isEmpty(vsId)) {
             registration = db.collection("versus").document(vsId)
@@ -96,6 +193,11 @@ public class VsInfoFragment extends DialogFragment {
                         if (e != null || snap == null || !snap.exists()) {
                             return;
                         }
+                        // Solo cambió metadata (pendiente -> confirmado) o nada visible
+                        if (lastSnap != null && Objects.equals(snap.getData(), lastSnap.getData())) {
+                            skippedSnaps++;
+                            return;
+                        }
                         bindSnapshot(snap);
                     });
         }
@@ -110,13 +212,13 @@ public class VsInfoFragment extends DialogFragment {
         if (players == null) return;
 
         String title = isRace ? "Carrera 1 vs 1" : "Maratón 1 vs 1";
-        tvTitle.setText(title);
+        setIfChanged(tvTitle, title);
 
         String owner = snap.getString("ver_owner");
         if (myUid != null && myUid.equals(owner)) {
-            tvSubtitle.setText("Sos el creador de este versus");
+            setIfChanged(tvSubtitle, "Sos el creador de este versus");
         } else {
-            tvSubtitle.setText("Estás participando en este versus");
+            setIfChanged(tvSubtitle, "Estás participando en este versus");
         }
 
         Long targetSteps = snap.getLong("ver_targetSteps");
@@ -128,12 +230,12 @@ public class VsInfoFragment extends DialogFragment {
             String objetivo = (targetSteps != null && targetSteps > 0)
                     ? String.format(Locale.getDefault(), "Meta: %,d pasos", targetSteps)
                     : "Meta: sorpresa";
-            tvTarget.setText(objetivo);
+            setIfChanged(tvTarget, objetivo);
         } else {
             String objetivo = (days != null && days > 0)
                     ? String.format(Locale.getDefault(), "Duración: %d días", days)
                     : "Duración: indefinida";
-            tvTarget.setText(objetivo);
+            setIfChanged(tvTarget, objetivo);
         }
 
         Timestamp createdAt = snap.getTimestamp("ver_createdAt");
@@ -147,55 +249,156 @@ public class VsInfoFragment extends DialogFragment {
             long diff = end - now;
 
             if (diff <= 0) {
-                tvTime.setText("El desafío ya terminó.");
+                setIfChanged(tvTime, "El desafío ya terminó.");
             } else {
                 long d = TimeUnit.MILLISECONDS.toDays(diff);
                 long h = TimeUnit.MILLISECONDS.toHours(diff - TimeUnit.DAYS.toMillis(d));
-                tvTime.setText(
+                setIfChanged(tvTime,
                         String.format(Locale.getDefault(),
                                 "Faltan %d d %d h", d, h));
             }
         } else if (isRace && targetSteps != null && targetSteps > 0) {
-            tvTime.setText("Termina cuando alguien llegue a la meta.");
+            setIfChanged(tvTime, "Termina cuando alguien llegue a la meta.");
         } else {
-            tvTime.setText("");
+            setIfChanged(tvTime, "");
         }
 
         String winnerId = snap.getString("ver_winnerUid");
         if (finished && !TextUtils.isEmpty(winnerId)) {
             String label = winnerId.equals(myUid) ? "Ganaste este versus" :
                     "Ganador: @" + winnerId.substring(0, Math.min(6, winnerId.length()));
-            tvWinner.setText(label);
+            setIfChanged(tvWinner, label);
             tvWinner.setVisibility(View.VISIBLE);
         } else if (finished) {
-            tvWinner.setText("Versus finalizado");
+            setIfChanged(tvWinner, "Versus finalizado");
             tvWinner.setVisibility(View.VISIBLE);
         } else {
             tvWinner.setVisibility(View.GONE);
         }
 
-        Object progressRaw = snap.get("ver_progress");
-        Map<String, Map<String, Object>> progress = null;
-        if (progressRaw instanceof Map) {
-            progress = (Map<String, Map<String, Object>>) progressRaw;
+        lastSnap = snap;
+        if (FirestoreRepo.usesProgressDocs(snap) && progressRegistration == null) {
+            progressRegistration = repo.listenVersusProgress(vsId, (qs, e) -> {
+                if (e != null || qs == null) return;
+                if (lastProgress != null && qs.getDocumentChanges().isEmpty()) {
+                    skippedSnaps++;
+                    return;
+                }
+                lastProgress = qs;
+                if (lastSnap != null) bindPlayers(lastSnap);
+            });
+        }
+        bindPlayers(snap);
+    }
+
+    private void bindPlayers(@NonNull DocumentSnapshot snap) {
+        Object playersRaw = snap.get("ver_players");
+        List<String> players = playersRaw instanceof List ? (List<String>) playersRaw : null;
+        if (players == null || getContext() == null) return;
+        long t0 = System.nanoTime();
+        Long targetSteps = snap.getLong("ver_targetSteps");
+
+        Map<String, Long> progress = FirestoreRepo.stepsByPlayer(snap,
+                FirestoreRepo.usesProgressDocs(snap) ? lastProgress : null);
+        if (replaySlot >= 0 && timeline != null) {
+            for (String pUid : players) progress.put(pUid, timeline.stepsAt(pUid, replaySlot));
         }
-        if (progress == null) progress = new HashMap<>();
 
-        containerPlayers.removeAllViews();
+        // Quienes ya no están se van; el resto se reusa y solo se reordena si cambió el orden
+        Set<String> keep = new HashSet<>(players);
+        for (String gone : new ArrayList<>(playerRows.keySet())) {
+            if (!keep.contains(gone)) containerPlayers.removeView(playerRows.remove(gone).root);
+        }
 
+        List<String> missing = new ArrayList<>();
         for (String pUid : players) {
-            Map<String, Object> pData = progress.get(pUid);
-            long steps = 0L;
-            if (pData != null && pData.get("steps") instanceof Number) {
-                steps = ((Number) pData.get("steps")).longValue();
+            PlayerRow row = playerRows.get(pUid);
+            if (row == null) {
+                row = makePlayerRow();
+                playerRows.put(pUid, row);
+                rowsCreated++;
             }
-            containerPlayers.addView(makePlayerRow(pUid, steps, targetSteps));
+            Long steps = progress.get(pUid);
+            if (updatePlayerRow(row, pUid, steps == null ? 0L : steps, targetSteps)) rowsUpdated++;
+            if (repo.peekUserSummary(pUid) == null) missing.add(pUid);
+        }
+
+        if (!rowOrder.equals(players)) {
+            containerPlayers.removeAllViews();
+            for (String pUid : players) containerPlayers.addView(playerRows.get(pUid).root);
+            rowOrder.clear();
+            rowOrder.addAll(players);
+        }
+
+        long took = System.nanoTime() - t0;
+        binds++;
+        bindNanosTotal += took;
+        if (took > bindNanosMax) bindNanosMax = took;
+
+        // Nombres desde el cache compartido; al llegar se redibujan las filas
+        if (!missing.isEmpty()) {
+            repo.loadUserSummaries(missing, summaries -> {
+                if (summaries.isEmpty() || !isAdded() || lastSnap == null) return;
+                bindPlayers(lastSnap);
+            });
+        }
+    }
+
+    // ========= REPETICIÓN =========
+
+    private void toggleReplay() {
+        if (sbReplay.getVisibility() == View.VISIBLE) {
+            sbReplay.setVisibility(View.GONE);
+            tvReplayTime.setVisibility(View.GONE);
+            btnReplay.setText("Ver cómo fue");
+            replaySlot = -1;
+            if (lastSnap != null) bindPlayers(lastSnap);
+            return;
+        }
+        if (timeline != null) {
+            showReplay();
+            return;
         }
+        if (TextUtils.isEmpty(vsId)) return;
+        btnReplay.setEnabled(false);
+        repo.loadVersusTimeline(vsId,
+                tl -> {
+                    if (!isAdded()) return;
+                    btnReplay.setEnabled(true);
+                    if (tl.slots == 0) {
+                        Toast.makeText(getContext(), "Todavía no hay historial", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    timeline = tl;
+                    showReplay();
+                },
+                e -> {
+                    if (!isAdded()) return;
+                    btnReplay.setEnabled(true);
+                    Toast.makeText(getContext(), "No se pudo cargar el historial", Toast.LENGTH_SHORT).show();
+                });
     }
 
-    private View makePlayerRow(String playerUid, long steps, @Nullable Long targetSteps) {
-        if (getContext() == null) return new View(getContext());
+    // La última posición de la barra es "ahora" (progreso en vivo)
+    private void showReplay() {
+        sbReplay.setMax(timeline.slots);
+        sbReplay.setProgress(timeline.slots);
+        sbReplay.setVisibility(View.VISIBLE);
+        tvReplayTime.setVisibility(View.VISIBLE);
+        btnReplay.setText("Ocultar historial");
+        bindReplayTime();
+    }
+
+    private void bindReplayTime() {
+        if (replaySlot < 0 || timeline == null) {
+            tvReplayTime.setText("Ahora");
+            return;
+        }
+        long at = timeline.startMs + (replaySlot + 1L) * timeline.sampleMs;
+        tvReplayTime.setText(new SimpleDateFormat("dd/MM HH:mm", Locale.getDefault()).format(new Date(at)));
+    }
 
+    private PlayerRow makePlayerRow() {
         LinearLayout row = new LinearLayout(getContext());
         row.setOrientation(LinearLayout.VERTICAL);
         LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
@@ -204,15 +407,7 @@ public class VsInfoFragment extends DialogFragment {
         lp.bottomMargin = (int) (4 * getResources().getDisplayMetrics().density);
         row.setLayoutParams(lp);
 
-        String shortId = "@" + playerUid.substring(0, Math.min(6, playerUid.length()));
-        String name = shortId;
-        if (playerUid.equals(myUid)) {
-            name = shortId + " (vos)";
-        }
-
         TextView tvLine = new TextView(getContext());
-        tvLine.setText(
-                String.format(Locale.getDefault(), "%s   %,d pasos", name, steps));
         tvLine.setTextSize(14);
         tvLine.setTextColor(0xFFE5E7EB);
 
@@ -226,17 +421,48 @@ public class VsInfoFragment extends DialogFragment {
         pb.setProgressTintList(
                 android.content.res.ColorStateList.valueOf(0xFF818CF8));
 
+        row.addView(tvLine);
+        row.addView(pb);
+
+        return new PlayerRow(row, tvLine, pb);
+    }
+
+    // Devuelve true si hubo que tocar alguna vista
+    private boolean updatePlayerRow(@NonNull PlayerRow row,
+                                    @NonNull String playerUid,
+                                    long steps,
+                                    @Nullable Long targetSteps) {
+        FirestoreRepo.UserSummary summary = repo.peekUserSummary(playerUid);
+        String shortId = summary != null ? summary.nombre
+                : "@" + playerUid.substring(0, Math.min(6, playerUid.length()));
+        String name = shortId;
+        if (playerUid.equals(myUid)) {
+            name = shortId + " (vos)";
+        }
+        String line = String.format(Locale.getDefault(), "%s   %,d pasos", name, steps);
+
         int progress = 0;
         if (targetSteps != null && targetSteps > 0) {
             progress = (int) Math.min(100,
                     Math.round(steps * 100f / targetSteps));
         }
-        pb.setProgress(progress);
 
-        row.addView(tvLine);
-        row.addView(pb);
+        boolean changed = false;
+        if (!line.equals(row.line)) {
+            row.line = line;
+            row.tvLine.setText(line);
+            changed = true;
+        }
+        if (progress != row.progress) {
+            row.progress = progress;
+            row.pb.setProgress(progress);
+            changed = true;
+        }
+        return changed;
+    }
 
-        return row;
+    private static void setIfChanged(@NonNull TextView tv, @NonNull CharSequence text) {
+        if (!TextUtils.equals(tv.getText(), text)) tv.setText(text);
     }
 
     @Override
@@ -254,5 +480,8 @@ public class VsInfoFragment extends DialogFragment {
     public void onDestroyView() {
         super.onDestroyView();
         if (registration != null) registration.remove();
+        if (progressRegistration != null) progressRegistration.remove();
+        playerRows.clear();
+        rowOrder.clear();
     }
 }
@@ -0,0 +1,150 @@
+package com.example.podovs;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cola write-behind de deltas sobre users/{uid}. Acumula km y récord diario y los entrega
+ * juntos al Flusher cuando el km pendiente llega al tope o cuando vence el intervalo.
+ * Las llamadas que se funden en el mismo campo no adelantan el flush.
+ */
+final class WriteBehindQueue {
+
+    interface Flusher {
+        void flush(String uid, Pending p);
+    }
+
+    static final class Pending {
+        double kmDelta = 0.0;
+        long maxDailySteps = -1L;
+        int ops = 0;
+        long firstAtMs = 0L;
+
+        boolean isEmpty() {
+            return kmDelta <= 0.0 && maxDailySteps < 0L;
+        }
+    }
+
+    // Política de flush
+    static final long MAX_DELAY_MS = 60_000L;
+    // ~625 pasos: más que eso sin escribir no vale esperar al timer
+    static final double MAX_PENDING_KM = 0.5;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Flusher flusher;
+
+    // Métricas
+    private long enqueued = 0L;
+    private long flushes = 0L;
+    private long fieldsWritten = 0L;
+    private long requeued = 0L;
+
+    private final Runnable timedFlush = this::flushAll;
+
+    WriteBehindQueue(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    // ================== ENCOLAR ==================
+
+    synchronized void addKm(String uid, double kmDelta) {
+        if (kmDelta <= 0.0) return;
+        Pending p = pendingFor(uid);
+        p.kmDelta += kmDelta;
+        afterEnqueue(uid, p);
+    }
+
+    synchronized void offerMaxDailySteps(String uid, long candidate) {
+        if (candidate <= 0L) return;
+        Pending p = pendingFor(uid);
+        if (candidate > p.maxDailySteps) p.maxDailySteps = candidate;
+        afterEnqueue(uid, p);
+    }
+
+    /**
+     * Devuelve a la cola los deltas de un flush cuyo commit falló; salen con el próximo timer.
+     */
+    synchronized void requeue(String uid, Pending failed) {
+        if (failed.isEmpty()) return;
+        boolean armed = !pending.isEmpty();
+        Pending p = pendingFor(uid);
+        p.kmDelta += Math.max(0.0, failed.kmDelta);
+        if (failed.maxDailySteps > p.maxDailySteps) p.maxDailySteps = failed.maxDailySteps;
+        requeued++;
+        if (!armed) handler.postDelayed(timedFlush, MAX_DELAY_MS);
+    }
+
+    private Pending pendingFor(String uid) {
+        Pending p = pending.get(uid);
+        if (p == null) {
+            p = new Pending();
+            p.firstAtMs = System.currentTimeMillis();
+            pending.put(uid, p);
+        }
+        return p;
+    }
+
+    private void afterEnqueue(String uid, Pending p) {
+        enqueued++;
+        p.ops++;
+        if (p.kmDelta >= MAX_PENDING_KM) {
+            flush(uid);
+            return;
+        }
+        if (p.ops == 1) {
+            handler.removeCallbacks(timedFlush);
+            handler.postDelayed(timedFlush, MAX_DELAY_MS);
+        }
+    }
+
+    // ================== FLUSH ==================
+
+    synchronized void flush(String uid) {
+        Pending p = pending.remove(uid);
+        if (p == null || p.isEmpty()) return;
+        flushes++;
+        if (p.kmDelta > 0.0) fieldsWritten += 2;
+        if (p.maxDailySteps >= 0L) fieldsWritten++;
+        flusher.flush(uid, p);
+        if (pending.isEmpty()) handler.removeCallbacks(timedFlush);
+    }
+
+    synchronized void flushAll() {
+        List<String> uids = new ArrayList<>(pending.keySet());
+        for (String uid : uids) flush(uid);
+    }
+
+    // ================== MÉTRICAS ==================
+
+    synchronized long getEnqueued() {
+        return enqueued;
+    }
+
+    synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * Escrituras que no llegaron a Firestore por quedar agrupadas en un batch:
+     * cada operación encolada habría sido su propia transacción.
+     */
+    synchronized long getCoalesced() {
+        long pendingOps = 0L;
+        for (Pending p : pending.values()) pendingOps += p.ops;
+        return Math.max(0L, enqueued - pendingOps - flushes);
+    }
+
+    synchronized long getFieldsWritten() {
+        return fieldsWritten;
+    }
+
+    synchronized long getRequeued() {
+        return requeued;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.podovs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lógica pura de FirestoreRepo que corre en la JVM sin Firestore.
+ */
+public class FirestoreRepoTest {
+
+    // ================== estimateRank ==================
+
+    private static long[] histogram() {
+        long[] counts = new long[FirestoreRepo.HIST_BUCKETS];
+        counts[0] = 10L;
+        counts[1] = 4L;   // 5-10 km, incluye al usuario
+        counts[2] = 3L;
+        return counts;
+    }
+
+    @Test
+    public void estimateRank_interpolatesInsideBucket() {
+        FirestoreRepo.RankEstimate r = FirestoreRepo.estimateRank(histogram(), 7.5, true);
+        // 3 por encima + la mitad de los otros 3 del bucket (redondeo arriba) + 1
+        assertEquals(6L, r.rank);
+        assertEquals(17L, r.totalUsers);
+    }
+
+    @Test
+    public void estimateRank_bucketEdges() {
+        assertEquals(7L, FirestoreRepo.estimateRank(histogram(), 5.0, true).rank);
+        assertEquals(4L, FirestoreRepo.estimateRank(histogram(), 9.99, true).rank);
+    }
+
+    @Test
+    public void estimateRank_notCountedAddsUser() {
+        long[] counts = histogram();
+        counts[1]--;
+        FirestoreRepo.RankEstimate r = FirestoreRepo.estimateRank(counts, 7.5, false);
+        assertEquals(6L, r.rank);
+        assertEquals(17L, r.totalUsers);
+    }
+
+    @Test
+    public void estimateRank_emptyHistogram() {
+        long[] counts = new long[FirestoreRepo.HIST_BUCKETS];
+        FirestoreRepo.RankEstimate r = FirestoreRepo.estimateRank(counts, 0.0, false);
+        assertEquals(1L, r.rank);
+        assertEquals(1L, r.totalUsers);
+
+        // Histograma atrasado: nunca una posición mayor que el total ni menor que 1
+        assertEquals(1L, FirestoreRepo.estimateRank(counts, 12.0, true).rank);
+    }
+
+    @Test
+    public void estimateRank_lastBucketTakesMiddle() {
+        long[] counts = new long[FirestoreRepo.HIST_BUCKETS];
+        counts[FirestoreRepo.HIST_BUCKETS - 1] = 5L;
+        FirestoreRepo.RankEstimate r = FirestoreRepo.estimateRank(counts, 100_000.0, true);
+        assertEquals(3L, r.rank);
+    }
+
+    // ================== coopCreatorRank ==================
+
+    @Test
+    public void coopCreatorRank_ordersByUid() {
+        List<String> players = new ArrayList<>(Arrays.asList("c", "a", "d", "b"));
+        assertEquals(0, FirestoreRepo.coopCreatorRank(players, "a"));
+        assertEquals(2, FirestoreRepo.coopCreatorRank(players, "c"));
+        assertEquals(3, FirestoreRepo.coopCreatorRank(players, "d"));
+        assertEquals(-1, FirestoreRepo.coopCreatorRank(players, "x"));
+        // No reordena la lista de la sala
+        assertEquals(Arrays.asList("c", "a", "d", "b"), players);
+    }
+
+    // ================== pickActiveEvent ==================
+
+    private static void assertPick(int index, long nextChangeMs, FirestoreRepo.EventPick p) {
+        assertEquals(index, p.index);
+        assertEquals(nextChangeMs, p.nextChangeMs);
+    }
+
+    @Test
+    public void pickActiveEvent_none() {
+        assertPick(-1, 0L, FirestoreRepo.pickActiveEvent(new long[0], new long[0], 50L));
+    }
+
+    @Test
+    public void pickActiveEvent_latestStartWins() {
+        assertPick(1, 200L, FirestoreRepo.pickActiveEvent(
+                new long[]{0L, 10L}, new long[]{100L, 200L}, 50L));
+    }
+
+    @Test
+    public void pickActiveEvent_nextStartEndsCurrent() {
+        assertPick(0, 60L, FirestoreRepo.pickActiveEvent(
+                new long[]{0L, 60L}, new long[]{100L, 200L}, 50L));
+    }
+
+    @Test
+    public void pickActiveEvent_skipsEndedAndWaitsForNext() {
+        assertPick(-1, 80L, FirestoreRepo.pickActiveEvent(
+                new long[]{0L, 80L}, new long[]{40L, 200L}, 50L));
+    }
+
+    @Test
+    public void pickActiveEvent_missingDates() {
+        assertPick(0, Long.MAX_VALUE, FirestoreRepo.pickActiveEvent(
+                new long[]{Long.MIN_VALUE}, new long[]{Long.MAX_VALUE}, 50L));
+    }
+}
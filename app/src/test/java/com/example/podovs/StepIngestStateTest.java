@@ -0,0 +1,110 @@
+package com.example.podovs;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Calendar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ingesta del contador: pasos del día, cambio de día y que el camino caliente no asigne.
+ */
+public class StepIngestStateTest {
+
+    private static long at(int year, int month, int day, int hour) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, month - 1, day, hour, 0, 0);
+        return c.getTimeInMillis();
+    }
+
+    @Test
+    public void counter_countsFromFirstReading() {
+        long now = at(2026, 3, 10, 12);
+        StepIngestState s = new StepIngestState(now);
+        assertEquals(20260310, s.dayCode);
+
+        // La primera lectura solo fija la base
+        assertEquals(StepIngestState.NONE, s.onCounter(now, 1000f));
+        assertEquals(0L, s.stepsToday);
+
+        int flags = s.onCounter(now + 1_000L, 1250f);
+        assertEquals(StepIngestState.CHANGED, flags);
+        assertEquals(250L, s.stepsToday);
+        assertTrue(s.dirty);
+    }
+
+    @Test
+    public void detector_addsAtLeastOneStep() {
+        long now = at(2026, 3, 10, 12);
+        StepIngestState s = new StepIngestState(now);
+        s.onDetector(now, 3);
+        s.onDetector(now, 0);
+        assertEquals(4L, s.stepsToday);
+    }
+
+    @Test
+    public void rollover_closesPreviousDay() {
+        long now = at(2026, 3, 10, 23);
+        StepIngestState s = new StepIngestState(now);
+        s.onCounter(now, 500f);
+        s.onCounter(now + 1_000L, 800f);
+
+        int flags = s.onCounter(at(2026, 3, 11, 0) + 60_000L, 900f);
+        assertTrue((flags & StepIngestState.ROLLED_OVER) != 0);
+        assertTrue(s.closedDayPending);
+        assertEquals(20260310, s.closedDayCode);
+        assertEquals(300L, s.closedDaySteps);
+        assertEquals(20260311, s.dayCode);
+        // La base se vuelve a fijar con la primera lectura del día nuevo
+        assertEquals(0L, s.stepsToday);
+    }
+
+    @Test
+    public void addDays_crossesMonthAndYear() {
+        assertEquals(20260301, StepIngestState.addDays(20260228, 1));
+        assertEquals(20251231, StepIngestState.addDays(20260101, -1));
+    }
+
+    /**
+     * Benchmark de asignaciones: N eventos del contador y del detector ya compilados por el
+     * JIT tienen que asignar exactamente 0 bytes en el hilo que los procesa.
+     */
+    @Test
+    public void ingest_allocatesZeroBytesPerEvent() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assertTrue("la JVM no mide asignaciones por hilo",
+                mx instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mx;
+        assertTrue("la JVM no mide asignaciones por hilo", bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        long now = at(2026, 3, 10, 12);
+        StepIngestState s = new StepIngestState(now);
+        float counter = 1000f;
+        // Calentamiento para que el JIT compile el camino
+        for (int i = 0; i < 200_000; i++) {
+            s.onCounter(now + i, counter += 1f);
+            s.onDetector(now + i, 1);
+        }
+
+        final int events = 100_000;
+        long tid = Thread.currentThread().getId();
+        // Lo que cuesta la propia medición (0 en HotSpot), para descontarlo
+        long m0 = bean.getThreadAllocatedBytes(tid);
+        long overhead = bean.getThreadAllocatedBytes(tid) - m0;
+
+        long before = bean.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < events; i++) {
+            s.onCounter(now + i, counter += 1f);
+            s.onDetector(now + i, 1);
+        }
+        long allocated = bean.getThreadAllocatedBytes(tid) - before - overhead;
+
+        System.out.println("StepIngestState: " + (2 * events) + " eventos, "
+                + allocated + " bytes asignados");
+        assertEquals("bytes asignados en " + (2 * events) + " eventos", 0L, allocated);
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.podovs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recuperación del journal: cola corrupta, registro a medias y compactación.
+ */
+public class StepJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final long T0 = 1_780_000_000_000L;
+
+    @Test
+    public void readTail_returnsLastRecord() throws Exception {
+        File f = new File(tmp.getRoot(), StepJournal.FILE_NAME);
+        StepJournal j = new StepJournal(f);
+        j.append(T0, 20260310, 1000f, 900f, 100L);
+        j.append(T0 + 1_000L, 20260310, 1040f, 900f, 140L);
+        j.close();
+
+        StepJournal.Record r = new StepJournal.Record();
+        assertTrue(new StepJournal(f).readTail(r));
+        assertEquals(T0 + 1_000L, r.timeMs);
+        assertEquals(20260310, r.day);
+        assertEquals(1040f, r.counter, 0f);
+        assertEquals(900f, r.base, 0f);
+        assertEquals(140L, r.steps);
+    }
+
+    @Test
+    public void readTail_missingFile() {
+        StepJournal j = new StepJournal(new File(tmp.getRoot(), "nada.journal"));
+        assertFalse(j.readTail(new StepJournal.Record()));
+    }
+
+    @Test
+    public void readTail_skipsCorruptLastRecord() throws Exception {
+        File f = new File(tmp.getRoot(), StepJournal.FILE_NAME);
+        StepJournal j = new StepJournal(f);
+        j.append(T0, 20260310, 1000f, 900f, 100L);
+        j.close();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[StepJournal.RECORD_SIZE]); // ts = 0: inválido
+        }
+
+        StepJournal.Record r = new StepJournal.Record();
+        assertTrue(new StepJournal(f).readTail(r));
+        assertEquals(100L, r.steps);
+    }
+
+    @Test
+    public void append_truncatesPartialRecord() throws Exception {
+        File f = new File(tmp.getRoot(), StepJournal.FILE_NAME);
+        StepJournal j = new StepJournal(f);
+        j.append(T0, 20260310, 1000f, 900f, 100L);
+        j.close();
+        // Crash a mitad de escritura: medio registro al final
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[StepJournal.RECORD_SIZE / 2]);
+        }
+
+        StepJournal again = new StepJournal(f);
+        again.append(T0 + 1_000L, 20260310, 1010f, 900f, 110L);
+        again.close();
+
+        assertEquals(2L * StepJournal.RECORD_SIZE, f.length());
+        StepJournal.Record r = new StepJournal.Record();
+        assertTrue(new StepJournal(f).readTail(r));
+        assertEquals(110L, r.steps);
+    }
+
+    @Test
+    public void checkpoint_compactsToSingleRecord() throws Exception {
+        File f = new File(tmp.getRoot(), StepJournal.FILE_NAME);
+        StepJournal j = new StepJournal(f);
+        for (int i = 0; i < 10; i++) {
+            j.append(T0 + i, 20260310, 1000f + i, 900f, 100L + i);
+        }
+        j.checkpoint(T0 + 10, 20260310, 1010f, 900f, 110L);
+        j.close();
+
+        assertEquals(StepJournal.RECORD_SIZE, f.length());
+        assertFalse(new File(f.getPath() + ".tmp").exists());
+        StepJournal.Record r = new StepJournal.Record();
+        assertTrue(new StepJournal(f).readTail(r));
+        assertEquals(110L, r.steps);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.podovs;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ida y vuelta de la línea de tiempo y tamaño de un día de muestras.
+ */
+public class TimelineCodecTest {
+
+    @Test
+    public void roundTrip_inChunks() {
+        Random rnd = new Random(42L);
+        long[] values = new long[FirestoreRepo.TIMELINE_CHUNK];
+        long acc = 0L;
+        for (int i = 0; i < values.length; i++) {
+            acc += rnd.nextInt(1500);
+            values[i] = acc;
+        }
+
+        // Se agrega de a pedazos, como hace cada push
+        byte[] data = null;
+        long prev = 0L;
+        for (int from = 0; from < values.length; from += 7) {
+            int to = Math.min(values.length, from + 7);
+            long[] part = new long[to - from];
+            System.arraycopy(values, from, part, 0, part.length);
+            data = TimelineCodec.append(data, prev, part);
+            prev = values[to - 1];
+        }
+
+        assertArrayEquals(values, TimelineCodec.decode(data, 0L, values.length));
+    }
+
+    @Test
+    public void roundTrip_zigzagExtremes() {
+        long[] values = {0L, -1L, 1L, -64L, 63L, 64L, Long.MAX_VALUE, Long.MIN_VALUE, 0L};
+        byte[] data = TimelineCodec.append(null, 0L, values);
+        assertArrayEquals(values, TimelineCodec.decode(data, 0L, values.length));
+    }
+
+    @Test
+    public void varint_sizes() {
+        // Deltas chicos (zigzag < 128) en 1 byte, hasta 8191 en 2
+        assertEquals(1, TimelineCodec.append(null, 0L, new long[]{63L}).length);
+        assertEquals(1, TimelineCodec.append(null, 0L, new long[]{-64L}).length);
+        assertEquals(2, TimelineCodec.append(null, 0L, new long[]{64L}).length);
+        assertEquals(2, TimelineCodec.append(null, 0L, new long[]{8191L}).length);
+        assertEquals(3, TimelineCodec.append(null, 0L, new long[]{8192L}).length);
+        assertEquals(10, TimelineCodec.append(null, 0L, new long[]{Long.MIN_VALUE}).length);
+    }
+
+    @Test
+    public void daySize_withinBudget() {
+        // Un doc = un día de cuartos de hora: 8 h caminando a 2000 pasos y el resto quieto
+        long[] values = new long[FirestoreRepo.TIMELINE_CHUNK];
+        long acc = 0L;
+        for (int i = 0; i < values.length; i++) {
+            if (i >= 32 && i < 64) acc += 2000L;
+            values[i] = acc;
+        }
+        byte[] data = TimelineCodec.append(null, 0L, values);
+        assertEquals(32 * 2 + 64, data.length);
+        assertTrue(data.length <= 200);
+    }
+
+    @Test
+    public void decode_repeatsLastWhenShort() {
+        byte[] data = TimelineCodec.append(null, 100L, new long[]{150L, 170L});
+        assertArrayEquals(new long[]{150L, 170L, 170L, 170L},
+                TimelineCodec.decode(data, 100L, 4));
+        assertArrayEquals(new long[]{100L, 100L}, TimelineCodec.decode(null, 100L, 2));
+    }
+
+    // Maratón de 5 días con 4 jugadores: una muestra por jugador cada TIMELINE_SAMPLE_MS
+    private static long[][] marathon(Random rnd) {
+        int samples = (int) (5L * 24L * 60L * 60L * 1000L / FirestoreRepo.TIMELINE_SAMPLE_MS);
+        long[][] players = new long[4][samples];
+        for (long[] p : players) {
+            long acc = 0L;
+            for (int i = 0; i < samples; i++) {
+                int hour = (i / 4) % 24;
+                if (hour >= 7 && hour < 22) acc += rnd.nextInt(1500);
+                p[i] = acc;
+            }
+        }
+        return players;
+    }
+
+    @Test
+    public void marathonSize_underFewKb() {
+        long[][] players = marathon(new Random(7L));
+        int bytes = 0;
+        for (long[] p : players) bytes += TimelineCodec.append(null, 0L, p).length;
+        assertTrue("ocupó " + bytes + " bytes", bytes <= 4 * 1024);
+    }
+
+    /**
+     * Benchmark de throughput: codifica y decodifica la maratón de 4 jugadores muchas veces
+     * e informa muestras por segundo de cada lado.
+     */
+    @Test
+    public void throughput_encodeDecode() {
+        long[][] players = marathon(new Random(11L));
+        int samples = players[0].length;
+        byte[][] encoded = new byte[players.length][];
+        long sink = 0L;
+
+        // Calentamiento
+        for (int r = 0; r < 2_000; r++) {
+            for (int p = 0; p < players.length; p++) {
+                encoded[p] = TimelineCodec.append(null, 0L, players[p]);
+                sink += TimelineCodec.decode(encoded[p], 0L, samples)[samples - 1];
+            }
+        }
+
+        final int rounds = 5_000;
+        long total = (long) rounds * players.length * samples;
+
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < players.length; p++) {
+                encoded[p] = TimelineCodec.append(null, 0L, players[p]);
+            }
+        }
+        long encNs = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < players.length; p++) {
+                sink += TimelineCodec.decode(encoded[p], 0L, samples)[samples - 1];
+            }
+        }
+        long decNs = System.nanoTime() - t0;
+
+        double encPerSec = total * 1e9 / Math.max(1L, encNs);
+        double decPerSec = total * 1e9 / Math.max(1L, decNs);
+        System.out.println(String.format(Locale.US,
+                "TimelineCodec: %d muestras, encode %.1f M/s, decode %.1f M/s (sink %d)",
+                total, encPerSec / 1e6, decPerSec / 1e6, sink));
+
+        for (int p = 0; p < players.length; p++) {
+            assertArrayEquals(players[p], TimelineCodec.decode(encoded[p], 0L, samples));
+        }
+        // Piso holgado: un push decodifica a lo sumo unos miles de muestras
+        assertTrue(encPerSec > 1e6);
+        assertTrue(decPerSec > 1e6);
+    }
+}
@@ -0,0 +1,53 @@
+// Jobs de servidor (JVM) que trabajan directo sobre Firestore con el Admin SDK.
+// Contra el emulador: FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:run --args="--project demo-podovs"
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+application {
+    mainClass.set("com.example.podovs.jobs.WeeklySettlementJob")
+}
+
+dependencies {
+    implementation("com.google.firebase:firebase-admin:9.4.1")
+}
+
+// Cierre de maratones al vencer: ./gradlew :jobs:runMarathons --args="--project demo-podovs [--once]"
+tasks.register<JavaExec>("runMarathons") {
+    group = "application"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.podovs.jobs.MarathonSettlementWorker")
+}
+
+// Alta en el histograma de usuarios sin hist_bucket: ./gradlew :jobs:runHistogramBackfill --args="--project demo-podovs [--restart]"
+tasks.register<JavaExec>("runHistogramBackfill") {
+    group = "application"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.podovs.jobs.HistogramBackfillJob")
+}
+
+// Tablas viejas sin ran_open: ./gradlew :jobs:runRankingOpenBackfill --args="--project demo-podovs [--week N] [--restart]"
+tasks.register<JavaExec>("runRankingOpenBackfill") {
+    group = "application"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.podovs.jobs.RankingOpenBackfillJob")
+}
+
+// Benchmark de matchmaking, solo emulador: ./gradlew :jobs:runRankingBenchmark --args="--project demo-podovs --users 100000"
+tasks.register<JavaExec>("runRankingBenchmark") {
+    group = "verification"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.podovs.jobs.RankingPoolBenchmark")
+}
+
+// Salas abiertas sin roo_isEvent: ./gradlew :jobs:runRoomIsEventBackfill --args="--project demo-podovs [--restart]"
+tasks.register<JavaExec>("runRoomIsEventBackfill") {
+    group = "application"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.example.podovs.jobs.RoomIsEventBackfillJob")
+}
@@ -0,0 +1,241 @@
+package com.example.podovs.jobs;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cuenta en leaderboards/histogram a los usuarios que todavía no tienen usu_stats.hist_bucket
+ * (los que existían antes del histograma o no volvieron a caminar). Sin esto totalUsers y las
+ * posiciones estimadas quedan cortas.
+ *
+ * Cada batch lleva las marcas de hasta ~500 usuarios (con precondición de updateTime), un único
+ * set con los incrementos sumados por bucket y el checkpoint. Si un usuario cambió desde la
+ * lectura (la app le asignó el bucket, por ejemplo) se pasa a una transacción por usuario que
+ * relee hist_bucket, igual que FirestoreRepo.assignHistBucket.
+ *
+ * Contra el emulador:
+ * FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:runHistogramBackfill --args="--project demo-podovs"
+ */
+public final class HistogramBackfillJob {
+
+    // Mismos valores que FirestoreRepo.HIST_BUCKET_KM / HIST_BUCKETS
+    static final double HIST_BUCKET_KM = 5.0;
+    static final int HIST_BUCKETS = 400;
+
+    private static final String CHECKPOINT_DOC = "jobs/histogram_backfill";
+
+    private static final class Plan {
+        final DocumentReference ref;
+        final Timestamp updateTime;
+        final int bucket;
+
+        Plan(DocumentReference ref, Timestamp updateTime, int bucket) {
+            this.ref = ref;
+            this.updateTime = updateTime;
+            this.bucket = bucket;
+        }
+    }
+
+    private final Firestore db;
+    private final int pageSize;
+
+    // Métricas
+    private long scanned = 0L;
+    private long counted = 0L;
+    private long alreadyCounted = 0L;
+    private long batches = 0L;
+    private long fallbacks = 0L;
+    private long failed = 0L;
+
+    HistogramBackfillJob(Firestore db, int pageSize) {
+        this.db = db;
+        this.pageSize = pageSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String project = System.getenv("GOOGLE_CLOUD_PROJECT");
+        int page = WeeklySettlementJob.DEFAULT_PAGE;
+        boolean restart = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--project": project = args[++i]; break;
+                case "--page": page = Integer.parseInt(args[++i]); break;
+                case "--restart": restart = true; break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (project == null || project.isEmpty()) {
+            throw new IllegalArgumentException("Falta --project o GOOGLE_CLOUD_PROJECT");
+        }
+
+        FirestoreOptions options = FirestoreOptions.getDefaultInstance().toBuilder()
+                .setProjectId(project)
+                .build();
+        try (Firestore db = options.getService()) {
+            HistogramBackfillJob job = new HistogramBackfillJob(db, page);
+            if (restart) job.clearCheckpoint();
+            job.run();
+            System.out.println(job.summary());
+        }
+    }
+
+    // ================== RECORRIDO ==================
+
+    void run() throws ExecutionException, InterruptedException {
+        String cursor = readCheckpoint();
+        List<Plan> chunk = new ArrayList<>();
+        // Cada batch suma el set del histograma y el checkpoint
+        int maxUsers = WeeklySettlementJob.MAX_BATCH_OPS - 2;
+        String lastId = cursor;
+
+        while (true) {
+            Query q = db.collection("users")
+                    .orderBy(FieldPath.documentId())
+                    .limit(pageSize);
+            if (cursor != null) q = q.startAfter(cursor);
+
+            List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+            for (QueryDocumentSnapshot d : docs) {
+                scanned++;
+                lastId = d.getId();
+                if (d.get("usu_stats.hist_bucket") instanceof Number) {
+                    alreadyCounted++;
+                    continue;
+                }
+                chunk.add(new Plan(d.getReference(), d.getUpdateTime(), histBucket(kmTotal(d))));
+                if (chunk.size() >= maxUsers) {
+                    commitChunk(chunk, lastId);
+                    chunk = new ArrayList<>();
+                }
+            }
+            if (docs.size() < pageSize) break;
+            cursor = docs.get(docs.size() - 1).getId();
+        }
+        if (!chunk.isEmpty()) commitChunk(chunk, lastId);
+
+        Map<String, Object> done = new HashMap<>();
+        done.put("job_done", true);
+        done.put("job_cursorId", FieldValue.delete());
+        done.put("job_updatedAt", System.currentTimeMillis());
+        db.document(CHECKPOINT_DOC).set(done, SetOptions.merge()).get();
+    }
+
+    private void commitChunk(List<Plan> chunk, String lastId) throws ExecutionException, InterruptedException {
+        WriteBatch batch = db.batch();
+        Map<String, Object> counts = new HashMap<>();
+        Map<Integer, Long> perBucket = new HashMap<>();
+        for (Plan p : chunk) {
+            Map<String, Object> up = new HashMap<>();
+            up.put("usu_stats.hist_bucket", p.bucket);
+            // Si el usuario cambió desde la lectura, el batch entero falla en vez de contarlo dos veces
+            batch.update(p.ref, up, Precondition.updatedAt(p.updateTime));
+            perBucket.merge(p.bucket, 1L, Long::sum);
+        }
+        for (Map.Entry<Integer, Long> e : perBucket.entrySet()) {
+            counts.put(String.valueOf(e.getKey()), FieldValue.increment(e.getValue()));
+        }
+        batch.set(histogramDoc(), histData(counts), SetOptions.merge());
+        batch.set(db.document(CHECKPOINT_DOC), checkpointData(lastId), SetOptions.merge());
+
+        try {
+            batch.commit().get();
+            batches++;
+            counted += chunk.size();
+        } catch (ExecutionException e) {
+            fallbacks++;
+            for (Plan p : chunk) countInTransaction(p.ref);
+            db.document(CHECKPOINT_DOC).set(checkpointData(lastId), SetOptions.merge()).get();
+        }
+    }
+
+    private void countInTransaction(DocumentReference ref) throws InterruptedException {
+        try {
+            boolean done = db.runTransaction(tx -> {
+                DocumentSnapshot cur = tx.get(ref).get();
+                if (!cur.exists() || cur.get("usu_stats.hist_bucket") instanceof Number) return false;
+                int bucket = histBucket(kmTotal(cur));
+                Map<String, Object> counts = new HashMap<>();
+                counts.put(String.valueOf(bucket), FieldValue.increment(1));
+                tx.set(histogramDoc(), histData(counts), SetOptions.merge());
+                Map<String, Object> up = new HashMap<>();
+                up.put("usu_stats.hist_bucket", bucket);
+                tx.update(ref, up);
+                return true;
+            }).get();
+            if (done) counted++;
+            else alreadyCounted++;
+        } catch (ExecutionException e) {
+            failed++;
+            System.err.println("No se pudo contar " + ref.getId() + ": " + e.getCause());
+        }
+    }
+
+    // ================== HISTOGRAMA ==================
+
+    private DocumentReference histogramDoc() {
+        return db.collection("leaderboards").document("histogram");
+    }
+
+    private static Map<String, Object> histData(Map<String, Object> counts) {
+        Map<String, Object> hist = new HashMap<>();
+        hist.put("hist_buckets", counts);
+        return hist;
+    }
+
+    // Misma cuenta que FirestoreRepo.histBucket
+    static int histBucket(double km) {
+        if (km <= 0.0) return 0;
+        return (int) Math.min(HIST_BUCKETS - 1, Math.floor(km / HIST_BUCKET_KM));
+    }
+
+    private static double kmTotal(DocumentSnapshot d) {
+        Object t = d.get("usu_stats.km_total");
+        return t instanceof Number ? ((Number) t).doubleValue() : 0.0;
+    }
+
+    // ================== CHECKPOINT ==================
+
+    private String readCheckpoint() throws ExecutionException, InterruptedException {
+        DocumentSnapshot cp = db.document(CHECKPOINT_DOC).get().get();
+        if (!cp.exists() || Boolean.TRUE.equals(cp.getBoolean("job_done"))) return null;
+        return cp.getString("job_cursorId");
+    }
+
+    private static Map<String, Object> checkpointData(String lastId) {
+        Map<String, Object> cp = new HashMap<>();
+        cp.put("job_cursorId", lastId);
+        cp.put("job_done", false);
+        cp.put("job_updatedAt", System.currentTimeMillis());
+        return cp;
+    }
+
+    void clearCheckpoint() throws ExecutionException, InterruptedException {
+        db.document(CHECKPOINT_DOC).delete().get();
+    }
+
+    String summary() {
+        return "leídos=" + scanned
+                + " contados=" + counted
+                + " ya contados=" + alreadyCounted
+                + " batches=" + batches
+                + " reintentos=" + fallbacks
+                + " fallidos=" + failed;
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.podovs.jobs;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cierra cada maratón abierta en el momento en que vence. Escucha los versus sin terminar,
+ * guarda el vencimiento (ver_createdAt + ver_days) de cada maratón en una DelayQueue y
+ * liquida con la misma regla que FirestoreRepo.settleVersus: gana el que más pasos tiene,
+ * 2x pasos al ganador y la mitad de sus pasos al perdedor.
+ *
+ * Con --once liquida las ya vencidas y termina (para cron o pruebas contra el emulador):
+ * FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:runMarathons --args="--project demo-podovs --once"
+ */
+public final class MarathonSettlementWorker {
+
+    static final long RETRY_MS = 60_000L;
+    static final long DAY_MS = 24L * 60L * 60L * 1000L;
+
+    private static final class Deadline implements Delayed {
+        final String versusId;
+        final long atMs;
+
+        Deadline(String versusId, long atMs) {
+            this.versusId = versusId;
+            this.atMs = atMs;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(atMs - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(atMs, ((Deadline) o).atMs);
+        }
+    }
+
+    private final Firestore db;
+    private final DelayQueue<Deadline> queue = new DelayQueue<>();
+    // Vencimiento vigente por versus; lo que sale de la cola con otro valor se descarta
+    private final Map<String, Long> current = new HashMap<>();
+
+    // Métricas
+    private long settled = 0L;
+    private long skipped = 0L;
+    private long failures = 0L;
+
+    MarathonSettlementWorker(Firestore db) {
+        this.db = db;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String project = System.getenv("GOOGLE_CLOUD_PROJECT");
+        boolean once = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--project": project = args[++i]; break;
+                case "--once": once = true; break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (project == null || project.isEmpty()) {
+            throw new IllegalArgumentException("Falta --project o GOOGLE_CLOUD_PROJECT");
+        }
+
+        FirestoreOptions options = FirestoreOptions.getDefaultInstance().toBuilder()
+                .setProjectId(project)
+                .build();
+        try (Firestore db = options.getService()) {
+            MarathonSettlementWorker worker = new MarathonSettlementWorker(db);
+            if (once) worker.runOnce();
+            else worker.runForever();
+            System.out.println(worker.summary());
+        }
+    }
+
+    private Query openMarathons() {
+        return db.collection("versus")
+                .whereEqualTo("ver_finished", false)
+                .whereEqualTo("ver_type", false);
+    }
+
+    // ================== MODOS ==================
+
+    void runOnce() throws ExecutionException, InterruptedException {
+        sync(openMarathons().get().get());
+        long now = System.currentTimeMillis();
+        Deadline d;
+        while ((d = queue.peek()) != null && d.atMs <= now) {
+            queue.poll();
+            if (isStale(d)) continue;
+            settleOrRetry(d.versusId);
+        }
+    }
+
+    void runForever() throws InterruptedException {
+        ListenerRegistration reg = openMarathons().addSnapshotListener((qs, e) -> {
+            if (e != null) {
+                System.err.println("Listener de versus: " + e.getMessage());
+                return;
+            }
+            if (qs != null) sync(qs);
+        });
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Deadline d = queue.take();
+                if (isStale(d)) continue;
+                settleOrRetry(d.versusId);
+            }
+        } finally {
+            reg.remove();
+        }
+    }
+
+    // ================== COLA ==================
+
+    private synchronized void sync(QuerySnapshot qs) {
+        Set<String> open = new HashSet<>();
+        for (DocumentSnapshot d : qs.getDocuments()) {
+            if (Boolean.TRUE.equals(d.getBoolean("ver_isEvent"))) continue;
+            long at = deadlineMs(d);
+            if (at <= 0L) continue;
+            open.add(d.getId());
+            Long prev = current.get(d.getId());
+            if (prev == null || prev != at) {
+                current.put(d.getId(), at);
+                queue.add(new Deadline(d.getId(), at));
+            }
+        }
+        current.keySet().retainAll(open);
+    }
+
+    private synchronized boolean isStale(Deadline d) {
+        Long at = current.get(d.versusId);
+        if (at == null || at != d.atMs) return true;
+        current.remove(d.versusId);
+        return false;
+    }
+
+    private void settleOrRetry(String versusId) throws InterruptedException {
+        try {
+            if (settle(versusId)) settled++;
+            else skipped++;
+        } catch (ExecutionException e) {
+            failures++;
+            System.err.println("No se pudo cerrar " + versusId + ": " + e.getCause());
+            synchronized (this) {
+                if (current.containsKey(versusId)) return;
+                long at = System.currentTimeMillis() + RETRY_MS;
+                current.put(versusId, at);
+                queue.add(new Deadline(versusId, at));
+            }
+        }
+    }
+
+    // ================== LIQUIDACIÓN ==================
+
+    /**
+     * Cierra la maratón si ya venció y sigue abierta. Devuelve false si no había nada que hacer.
+     */
+    boolean settle(String versusId) throws ExecutionException, InterruptedException {
+        DocumentReference vsRef = db.collection("versus").document(versusId);
+        return db.runTransaction(tx -> {
+            DocumentSnapshot snap = tx.get(vsRef).get();
+            if (!snap.exists()) return false;
+            if (Boolean.TRUE.equals(snap.getBoolean("ver_finished"))) return false;
+            if (Boolean.TRUE.equals(snap.getBoolean("ver_isEvent"))) return false;
+            if (Boolean.TRUE.equals(snap.getBoolean("ver_type"))) return false;
+
+            long now = System.currentTimeMillis();
+            long limitMs = deadlineMs(snap);
+            if (limitMs <= 0L || now < limitMs) return false;
+
+            List<String> players = WeeklySettlementJob.stringList(snap.get("ver_players"));
+            Map<String, Long> steps = new HashMap<>();
+            if ("docs".equals(snap.getString("ver_progressMode"))) {
+                for (String pid : players) {
+                    DocumentSnapshot p = tx.get(vsRef.collection("progress").document(pid)).get();
+                    steps.put(pid, Math.max(0L, longOf(p.get("steps"))));
+                }
+            } else {
+                for (String pid : players) {
+                    steps.put(pid, Math.max(0L, longOf(snap.get("ver_progress." + pid + ".steps"))));
+                }
+            }
+
+            String winnerUid = null;
+            long best = -1L;
+            for (String pid : players) {
+                long s = steps.get(pid);
+                if (s > best) {
+                    best = s;
+                    winnerUid = pid;
+                }
+            }
+            if (winnerUid == null) return false;
+
+            String loserUid = null;
+            for (String pid : players) {
+                if (!pid.equals(winnerUid)) {
+                    loserUid = pid;
+                    break;
+                }
+            }
+
+            Map<String, Object> winUp = new HashMap<>();
+            winUp.put("usu_saldo", FieldValue.increment(best * 2L));
+            winUp.put("usu_stats.carreras_ganadas", FieldValue.increment(1));
+            tx.update(db.collection("users").document(winnerUid), winUp);
+
+            if (loserUid != null) {
+                long loserCoins = steps.get(loserUid) / 2L;
+                if (loserCoins > 0L) {
+                    Map<String, Object> loseUp = new HashMap<>();
+                    loseUp.put("usu_saldo", FieldValue.increment(loserCoins));
+                    tx.update(db.collection("users").document(loserUid), loseUp);
+                }
+            }
+
+            Map<String, Object> up = new HashMap<>();
+            up.put("ver_finished", true);
+            up.put("ver_finishedAt", now);
+            up.put("ver_winner", winnerUid);
+            tx.update(vsRef, up);
+            return true;
+        }).get();
+    }
+
+    // Misma cuenta que FirestoreRepo.marathonDeadlineMs
+    static long deadlineMs(DocumentSnapshot vs) {
+        long days = longOf(vs.get("ver_days"));
+        long createdAtMs = 0L;
+        Object cObj = vs.get("ver_createdAt");
+        if (cObj instanceof Timestamp) {
+            createdAtMs = ((Timestamp) cObj).toDate().getTime();
+        } else if (cObj instanceof Number) {
+            createdAtMs = ((Number) cObj).longValue();
+        }
+        if (days <= 0L || createdAtMs <= 0L) return 0L;
+        return createdAtMs + days * DAY_MS;
+    }
+
+    private static long longOf(Object o) {
+        return (o instanceof Number) ? ((Number) o).longValue() : 0L;
+    }
+
+    synchronized String summary() {
+        return "cerradas=" + settled
+                + " sin cambios=" + skipped
+                + " fallidas=" + failures
+                + " pendientes=" + current.size();
+    }
+}
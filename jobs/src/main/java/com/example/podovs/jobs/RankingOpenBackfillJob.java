@@ -0,0 +1,280 @@
+package com.example.podovs.jobs;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Migra las tablas semanales creadas antes del pool de matchmaking: les pone ran_open (sin el
+ * campo la consulta de tablas abiertas nunca las ve y quedan a medio llenar) y da de alta en
+ * ranking_pool, ya asignados, a sus jugadores que no tengan entrada, para que la relectura de
+ * FirestoreRepo.commitRankingTable / joinOpenRanking los encuentre.
+ *
+ * Recorre solo la semana indicada (por defecto la actual); las cerradas las liquida
+ * WeeklySettlementJob. Batches de hasta 500 operaciones con checkpoint y precondición de
+ * updateTime por tabla; si una tabla cambió, se migra sola en transacción.
+ *
+ * Contra el emulador:
+ * FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:runRankingOpenBackfill --args="--project demo-podovs"
+ */
+public final class RankingOpenBackfillJob {
+
+    // Mismos valores que FirestoreRepo.RANKING_TABLE_SIZE / POOL_BUCKETS
+    static final int RANKING_TABLE_SIZE = 5;
+    static final int POOL_BUCKETS = 16;
+
+    private static final String CHECKPOINT_DOC = "jobs/ranking_open_backfill";
+
+    private static final class Plan {
+        final DocumentReference ref;
+        final Timestamp updateTime;
+        final boolean open;
+        final List<String> missingPool;   // jugadores sin entrada en ranking_pool
+
+        Plan(DocumentReference ref, Timestamp updateTime, boolean open, List<String> missingPool) {
+            this.ref = ref;
+            this.updateTime = updateTime;
+            this.open = open;
+            this.missingPool = missingPool;
+        }
+
+        int ops() {
+            return 1 + missingPool.size();
+        }
+    }
+
+    private final Firestore db;
+    private final long weekKey;
+    private final int pageSize;
+    private final Random rnd = new Random();
+
+    // Métricas
+    private long scanned = 0L;
+    private long migrated = 0L;
+    private long poolEntries = 0L;
+    private long batches = 0L;
+    private long fallbacks = 0L;
+    private long failed = 0L;
+
+    RankingOpenBackfillJob(Firestore db, long weekKey, int pageSize) {
+        this.db = db;
+        this.weekKey = weekKey;
+        this.pageSize = pageSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String project = System.getenv("GOOGLE_CLOUD_PROJECT");
+        long week = WeeklySettlementJob.currentWeekKey();
+        int page = WeeklySettlementJob.DEFAULT_PAGE;
+        boolean restart = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--project": project = args[++i]; break;
+                case "--week": week = Long.parseLong(args[++i]); break;
+                case "--page": page = Integer.parseInt(args[++i]); break;
+                case "--restart": restart = true; break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (project == null || project.isEmpty()) {
+            throw new IllegalArgumentException("Falta --project o GOOGLE_CLOUD_PROJECT");
+        }
+
+        FirestoreOptions options = FirestoreOptions.getDefaultInstance().toBuilder()
+                .setProjectId(project)
+                .build();
+        try (Firestore db = options.getService()) {
+            RankingOpenBackfillJob job = new RankingOpenBackfillJob(db, week, page);
+            if (restart) job.clearCheckpoint();
+            job.run();
+            System.out.println(job.summary());
+        }
+    }
+
+    // ================== RECORRIDO ==================
+
+    void run() throws ExecutionException, InterruptedException {
+        String cursor = readCheckpoint();
+        List<Plan> chunk = new ArrayList<>();
+        int chunkOps = 1; // el checkpoint
+        String lastId = cursor;
+
+        while (true) {
+            Query q = db.collection("rankings")
+                    .whereEqualTo("ran_weekKey", weekKey)
+                    .orderBy(FieldPath.documentId())
+                    .limit(pageSize);
+            if (cursor != null) q = q.startAfter(cursor);
+
+            List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+            for (QueryDocumentSnapshot d : docs) {
+                scanned++;
+                if (d.getBoolean("ran_open") != null) {
+                    lastId = d.getId();
+                    continue;
+                }
+                List<String> players = WeeklySettlementJob.stringList(d.get("ran_players"));
+                List<DocumentSnapshot> entries = players.isEmpty()
+                        ? new ArrayList<>() : db.getAll(poolRefs(players)).get();
+                Plan p = plan(d, players, entries);
+                if (chunkOps + p.ops() > WeeklySettlementJob.MAX_BATCH_OPS) {
+                    commitChunk(chunk, lastId);
+                    chunk = new ArrayList<>();
+                    chunkOps = 1;
+                }
+                chunk.add(p);
+                chunkOps += p.ops();
+                lastId = d.getId();
+            }
+            if (docs.size() < pageSize) break;
+            cursor = docs.get(docs.size() - 1).getId();
+        }
+        if (!chunk.isEmpty()) commitChunk(chunk, lastId);
+
+        Map<String, Object> done = new HashMap<>();
+        done.put("job_weekKey", weekKey);
+        done.put("job_done", true);
+        done.put("job_cursorId", FieldValue.delete());
+        done.put("job_updatedAt", System.currentTimeMillis());
+        db.document(CHECKPOINT_DOC).set(done, SetOptions.merge()).get();
+    }
+
+    private void commitChunk(List<Plan> chunk, String lastId) throws ExecutionException, InterruptedException {
+        if (chunk.isEmpty()) return;
+        WriteBatch batch = db.batch();
+        for (Plan p : chunk) write(batch, p);
+        batch.set(db.document(CHECKPOINT_DOC), checkpointData(lastId), SetOptions.merge());
+
+        try {
+            batch.commit().get();
+            batches++;
+            for (Plan p : chunk) count(p);
+        } catch (ExecutionException e) {
+            // Una tabla cambió o un jugador ya tenía entrada en el pool: tabla por tabla
+            fallbacks++;
+            for (Plan p : chunk) migrateInTransaction(p.ref);
+            db.document(CHECKPOINT_DOC).set(checkpointData(lastId), SetOptions.merge()).get();
+        }
+    }
+
+    private void migrateInTransaction(DocumentReference ref) throws InterruptedException {
+        try {
+            Plan done = db.runTransaction(tx -> {
+                DocumentSnapshot cur = tx.get(ref).get();
+                if (!cur.exists() || cur.getBoolean("ran_open") != null) return null;
+                List<String> players = WeeklySettlementJob.stringList(cur.get("ran_players"));
+                List<DocumentSnapshot> entries = players.isEmpty()
+                        ? new ArrayList<>() : tx.getAll(poolRefs(players)).get();
+                Plan p = plan(cur, players, entries);
+                write(tx, p);
+                return p;
+            }).get();
+            if (done != null) count(done);
+        } catch (ExecutionException e) {
+            failed++;
+            System.err.println("No se pudo migrar " + ref.getId() + ": " + e.getCause());
+        }
+    }
+
+    // ================== PLAN / ESCRITURA ==================
+
+    private Plan plan(DocumentSnapshot d, List<String> players, List<DocumentSnapshot> entries) {
+        List<String> missing = new ArrayList<>();
+        for (DocumentSnapshot e : entries) {
+            if (!e.exists()) missing.add(e.getId().substring(e.getId().indexOf('_') + 1));
+        }
+        return new Plan(d.getReference(), d.getUpdateTime(),
+                players.size() < RANKING_TABLE_SIZE, missing);
+    }
+
+    private void write(UpdateBuilder<?> w, Plan p) {
+        Map<String, Object> up = new HashMap<>();
+        up.put("ran_open", p.open);
+        w.update(p.ref, up, Precondition.updatedAt(p.updateTime));
+        for (String pid : p.missingPool) {
+            // create: si la app le dio entrada mientras tanto, el batch falla y se relee
+            w.create(poolRef(pid), poolEntry(pid, p.ref.getId()));
+        }
+    }
+
+    private void count(Plan p) {
+        migrated++;
+        poolEntries += p.missingPool.size();
+    }
+
+    // ================== POOL ==================
+
+    private DocumentReference poolRef(String uid) {
+        return db.collection("ranking_pool").document(weekKey + "_" + uid);
+    }
+
+    private DocumentReference[] poolRefs(List<String> players) {
+        DocumentReference[] refs = new DocumentReference[players.size()];
+        for (int i = 0; i < refs.length; i++) refs[i] = poolRef(players.get(i));
+        return refs;
+    }
+
+    // Mismos campos que FirestoreRepo.newPoolEntry
+    private Map<String, Object> poolEntry(String uid, String rankingId) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("rpo_weekKey", weekKey);
+        data.put("rpo_uid", uid);
+        data.put("rpo_bucket", rnd.nextInt(POOL_BUCKETS));
+        data.put("rpo_rand", rnd.nextDouble());
+        data.put("rpo_assigned", true);
+        data.put("rpo_rankingId", rankingId);
+        data.put("rpo_createdAt", System.currentTimeMillis());
+        return data;
+    }
+
+    // ================== CHECKPOINT ==================
+
+    private String readCheckpoint() throws ExecutionException, InterruptedException {
+        DocumentSnapshot cp = db.document(CHECKPOINT_DOC).get().get();
+        if (!cp.exists() || Boolean.TRUE.equals(cp.getBoolean("job_done"))) return null;
+        Long week = cp.getLong("job_weekKey");
+        if (week == null || week != weekKey) return null;
+        return cp.getString("job_cursorId");
+    }
+
+    private Map<String, Object> checkpointData(String lastId) {
+        Map<String, Object> cp = new HashMap<>();
+        cp.put("job_weekKey", weekKey);
+        cp.put("job_cursorId", lastId);
+        cp.put("job_done", false);
+        cp.put("job_updatedAt", System.currentTimeMillis());
+        return cp;
+    }
+
+    void clearCheckpoint() throws ExecutionException, InterruptedException {
+        db.document(CHECKPOINT_DOC).delete().get();
+    }
+
+    String summary() {
+        return "semana=" + weekKey
+                + " leídas=" + scanned
+                + " migradas=" + migrated
+                + " entradas pool=" + poolEntries
+                + " batches=" + batches
+                + " reintentos=" + fallbacks
+                + " fallidas=" + failed;
+    }
+}
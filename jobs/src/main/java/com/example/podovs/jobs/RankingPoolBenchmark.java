@@ -0,0 +1,369 @@
+package com.example.podovs.jobs;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark del matchmaking semanal contra el emulador. Siembra N usuarios y los asigna en
+ * paralelo con el mismo algoritmo que FirestoreRepo.assignUserToWeeklyRanking (tablas abiertas,
+ * pool por buckets, transacción que relee la entrada propia). Mide lecturas por asignación,
+ * latencia p50/p95/p99 y reintentos de transacción, y al final verifica que nadie quedó en dos
+ * tablas ni en una tabla de más de RANKING_TABLE_SIZE.
+ *
+ * Solo corre con FIRESTORE_EMULATOR_HOST definido:
+ * FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:runRankingBenchmark \
+ *     --args="--project demo-podovs --users 100000 --threads 32"
+ */
+public final class RankingPoolBenchmark {
+
+    static final int RANKING_TABLE_SIZE = RankingOpenBackfillJob.RANKING_TABLE_SIZE;
+    static final int POOL_BUCKETS = RankingOpenBackfillJob.POOL_BUCKETS;
+    // Mismos valores que FirestoreRepo
+    static final int OPEN_TABLES_SCAN = 10;
+    static final int POOL_PAGE = 8;
+    static final int POOL_BUCKET_PROBES = 3;
+
+    private final Firestore db;
+    private final long weekKey;
+    private final String prefix;
+
+    // Métricas
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong txAttempts = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong adopted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    RankingPoolBenchmark(Firestore db, long weekKey, String prefix) {
+        this.db = db;
+        this.weekKey = weekKey;
+        this.prefix = prefix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String project = System.getenv("GOOGLE_CLOUD_PROJECT");
+        int users = 100_000;
+        int threads = 32;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--project": project = args[++i]; break;
+                case "--users": users = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (project == null || project.isEmpty()) {
+            throw new IllegalArgumentException("Falta --project o GOOGLE_CLOUD_PROJECT");
+        }
+        String emulator = System.getenv("FIRESTORE_EMULATOR_HOST");
+        if (emulator == null || emulator.isEmpty()) {
+            throw new IllegalStateException("El benchmark escribe miles de documentos: solo contra el emulador");
+        }
+
+        FirestoreOptions options = FirestoreOptions.getDefaultInstance().toBuilder()
+                .setProjectId(project)
+                .build();
+        try (Firestore db = options.getService()) {
+            // Semana propia para no mezclarse con datos de otra corrida
+            long week = -System.currentTimeMillis();
+            RankingPoolBenchmark bench = new RankingPoolBenchmark(db, week, "bench" + (-week) + "_");
+            bench.seed(users);
+            long[] latencies = bench.assignAll(users, threads);
+            System.out.println(bench.summary(latencies));
+            System.out.println(bench.verify(users));
+        }
+    }
+
+    // ================== SIEMBRA ==================
+
+    void seed(int users) throws ExecutionException, InterruptedException {
+        Random rnd = new Random(42);
+        WriteBatch batch = db.batch();
+        int ops = 0;
+        for (int i = 0; i < users; i++) {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("km_semana", rnd.nextDouble() * 40.0);
+            Map<String, Object> user = new HashMap<>();
+            user.put("usu_stats", stats);
+            batch.set(userRef(uid(i)), user);
+            if (++ops == WeeklySettlementJob.MAX_BATCH_OPS) {
+                batch.commit().get();
+                batch = db.batch();
+                ops = 0;
+            }
+        }
+        if (ops > 0) batch.commit().get();
+    }
+
+    long[] assignAll(int users, int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long[] latencies = new long[users];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            final int idx = i;
+            futures.add(pool.submit(() -> {
+                long t0 = System.nanoTime();
+                try {
+                    assign(uid(idx));
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                latencies[idx] = System.nanoTime() - t0;
+            }));
+        }
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException ignored) {
+            }
+        }
+        pool.shutdown();
+        return latencies;
+    }
+
+    // ================== ALGORITMO (igual que la app) ==================
+
+    private void assign(String uid) throws ExecutionException, InterruptedException {
+        QuerySnapshot open = db.collection("rankings")
+                .whereEqualTo("ran_weekKey", weekKey)
+                .whereEqualTo("ran_open", true)
+                .limit(OPEN_TABLES_SCAN)
+                .get().get();
+        countQuery(open);
+        List<DocumentReference> candidates = new ArrayList<>();
+        for (QueryDocumentSnapshot d : open.getDocuments()) {
+            List<String> players = WeeklySettlementJob.stringList(d.get("ran_players"));
+            if (!players.contains(uid) && players.size() < RANKING_TABLE_SIZE) candidates.add(d.getReference());
+        }
+        if (!candidates.isEmpty()) {
+            DocumentReference ref = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+            String id = join(ref, uid);
+            if (id != null) {
+                if (id.equals(ref.getId())) joined.incrementAndGet();
+                else adopted.incrementAndGet();
+                return;
+            }
+        }
+
+        String already = db.runTransaction(tx -> {
+            txAttempts.incrementAndGet();
+            reads.incrementAndGet();
+            String assigned = assignedTable(tx.get(poolRef(uid)).get());
+            if (assigned == null) tx.set(poolRef(uid), poolEntry(uid, null));
+            return assigned;
+        }).get();
+        if (already != null) {
+            adopted.incrementAndGet();
+            return;
+        }
+        List<String> picked = new ArrayList<>();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int start = rnd.nextInt(POOL_BUCKETS);
+        double pivot = rnd.nextDouble();
+        int needed = RANKING_TABLE_SIZE - 1;
+        for (int probe = 0; probe < POOL_BUCKET_PROBES && picked.size() < needed; probe++) {
+            Query base = db.collection("ranking_pool")
+                    .whereEqualTo("rpo_weekKey", weekKey)
+                    .whereEqualTo("rpo_bucket", (start + probe) % POOL_BUCKETS)
+                    .whereEqualTo("rpo_assigned", false);
+            addPicks(base.whereGreaterThanOrEqualTo("rpo_rand", pivot).orderBy("rpo_rand")
+                    .limit(POOL_PAGE).get().get(), uid, picked, needed);
+            if (picked.size() < needed) {
+                addPicks(base.whereLessThan("rpo_rand", pivot).orderBy("rpo_rand")
+                        .limit(POOL_PAGE).get().get(), uid, picked, needed);
+            }
+        }
+        if (commitTable(uid, picked)) created.incrementAndGet();
+        else adopted.incrementAndGet();
+    }
+
+    private String join(DocumentReference ref, String uid) throws ExecutionException, InterruptedException {
+        return db.runTransaction(tx -> {
+            txAttempts.incrementAndGet();
+            String assigned = assignedTable(tx.get(poolRef(uid)).get());
+            reads.incrementAndGet();
+            if (assigned != null) return assigned;
+            DocumentSnapshot table = tx.get(ref).get();
+            DocumentSnapshot user = tx.get(userRef(uid)).get();
+            reads.addAndGet(2);
+            if (!table.exists()) return null;
+            List<String> players = WeeklySettlementJob.stringList(table.get("ran_players"));
+            if (players.contains(uid)) return ref.getId();
+            if (players.size() >= RANKING_TABLE_SIZE) return null;
+            players.add(uid);
+            Map<String, Object> up = new HashMap<>();
+            up.put("ran_players", players);
+            up.put("ran_open", players.size() < RANKING_TABLE_SIZE);
+            up.put("ran_scores." + uid, scoreEntry(user));
+            tx.update(ref, up);
+            tx.set(poolRef(uid), poolEntry(uid, ref.getId()));
+            return ref.getId();
+        }).get();
+    }
+
+    // true si creó la tabla, false si ya estaba asignado a otra
+    private boolean commitTable(String uid, List<String> picked) throws ExecutionException, InterruptedException {
+        DocumentReference tableRef = db.collection("rankings").document();
+        return db.runTransaction(tx -> {
+            txAttempts.incrementAndGet();
+            reads.incrementAndGet();
+            if (assignedTable(tx.get(poolRef(uid)).get()) != null) return false;
+
+            List<String> players = new ArrayList<>();
+            players.add(uid);
+            for (String pid : picked) {
+                DocumentSnapshot entry = tx.get(poolRef(pid)).get();
+                reads.incrementAndGet();
+                if (entry.exists() && !Boolean.TRUE.equals(entry.getBoolean("rpo_assigned"))) players.add(pid);
+            }
+            Map<String, Object> scores = new HashMap<>();
+            for (String pid : players) {
+                scores.put(pid, scoreEntry(tx.get(userRef(pid)).get()));
+                reads.incrementAndGet();
+            }
+            Map<String, Object> data = new HashMap<>();
+            data.put("ran_weekKey", weekKey);
+            data.put("ran_createdAt", System.currentTimeMillis());
+            data.put("ran_finished", false);
+            data.put("ran_rewardsApplied", false);
+            data.put("ran_players", players);
+            data.put("ran_open", players.size() < RANKING_TABLE_SIZE);
+            data.put("ran_scores", scores);
+            tx.set(tableRef, data);
+            for (String pid : players) tx.set(poolRef(pid), poolEntry(pid, tableRef.getId()));
+            return true;
+        }).get();
+    }
+
+    private void addPicks(QuerySnapshot qs, String uid, List<String> picked, int needed) {
+        countQuery(qs);
+        for (QueryDocumentSnapshot d : qs.getDocuments()) {
+            if (picked.size() >= needed) return;
+            String pid = d.getString("rpo_uid");
+            if (pid == null || pid.equals(uid) || picked.contains(pid)) continue;
+            picked.add(pid);
+        }
+    }
+
+    private static String assignedTable(DocumentSnapshot entry) {
+        if (!entry.exists() || !Boolean.TRUE.equals(entry.getBoolean("rpo_assigned"))) return null;
+        String id = entry.getString("rpo_rankingId");
+        return (id == null || id.isEmpty()) ? null : id;
+    }
+
+    private static Map<String, Object> scoreEntry(DocumentSnapshot user) {
+        Object v = user.get("usu_stats.km_semana");
+        Map<String, Object> e = new HashMap<>();
+        e.put("nombre", user.getId());
+        e.put("km", v instanceof Number ? ((Number) v).doubleValue() : 0.0);
+        return e;
+    }
+
+    private Map<String, Object> poolEntry(String uid, String rankingId) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        Map<String, Object> data = new HashMap<>();
+        data.put("rpo_weekKey", weekKey);
+        data.put("rpo_uid", uid);
+        data.put("rpo_bucket", rnd.nextInt(POOL_BUCKETS));
+        data.put("rpo_rand", rnd.nextDouble());
+        data.put("rpo_assigned", rankingId != null);
+        data.put("rpo_rankingId", rankingId);
+        data.put("rpo_createdAt", System.currentTimeMillis());
+        return data;
+    }
+
+    // Una consulta se cobra como una lectura por documento, con mínimo uno
+    private void countQuery(QuerySnapshot qs) {
+        reads.addAndGet(Math.max(1, qs.size()));
+    }
+
+    private String uid(int i) {
+        return prefix + i;
+    }
+
+    private DocumentReference userRef(String uid) {
+        return db.collection("users").document(uid);
+    }
+
+    private DocumentReference poolRef(String uid) {
+        return db.collection("ranking_pool").document(weekKey + "_" + uid);
+    }
+
+    // ================== VERIFICACIÓN / RESUMEN ==================
+
+    String verify(int users) throws ExecutionException, InterruptedException {
+        Map<String, Integer> seen = new HashMap<>();
+        int[] sizes = new int[RANKING_TABLE_SIZE + 2];
+        long tables = 0L;
+        long oversized = 0L;
+        Object cursor = null;
+        while (true) {
+            Query q = db.collection("rankings")
+                    .whereEqualTo("ran_weekKey", weekKey)
+                    .orderBy(FieldPath.documentId())
+                    .limit(WeeklySettlementJob.MAX_BATCH_OPS);
+            if (cursor != null) q = q.startAfter(cursor);
+            List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+            for (QueryDocumentSnapshot d : docs) {
+                tables++;
+                List<String> players = WeeklySettlementJob.stringList(d.get("ran_players"));
+                if (players.size() > RANKING_TABLE_SIZE) oversized++;
+                sizes[Math.min(players.size(), sizes.length - 1)]++;
+                for (String pid : players) seen.merge(pid, 1, Integer::sum);
+            }
+            if (docs.size() < WeeklySettlementJob.MAX_BATCH_OPS) break;
+            cursor = docs.get(docs.size() - 1).getId();
+        }
+        long duplicated = 0L;
+        for (int n : seen.values()) if (n > 1) duplicated++;
+        return "tablas=" + tables
+                + " tamaños=" + Arrays.toString(sizes)
+                + " sin tabla=" + (users - seen.size())
+                + " en dos o más tablas=" + duplicated
+                + " tablas sobrepasadas=" + oversized;
+    }
+
+    String summary(long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        return "usuarios=" + n
+                + " unidos=" + joined.get()
+                + " creadas=" + created.get()
+                + " adoptados=" + adopted.get()
+                + " errores=" + errors.get()
+                + " lecturas/asignación=" + String.format("%.2f", n == 0 ? 0.0 : reads.get() / (double) n)
+                + " intentos tx=" + txAttempts.get()
+                + " p50=" + percentileMs(sorted, 0.50) + "ms"
+                + " p95=" + percentileMs(sorted, 0.95) + "ms"
+                + " p99=" + percentileMs(sorted, 0.99) + "ms";
+    }
+
+    private static long percentileMs(long[] sorted, double q) {
+        if (sorted.length == 0) return 0L;
+        int i = (int) Math.min(sorted.length - 1, Math.floor(q * sorted.length));
+        return sorted[i] / 1_000_000L;
+    }
+}
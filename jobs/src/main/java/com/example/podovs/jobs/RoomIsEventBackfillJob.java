@@ -0,0 +1,208 @@
+package com.example.podovs.jobs;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Pone roo_isEvent a las salas abiertas creadas antes de que el lobby filtrara por ese campo:
+ * sin él FirestoreRepo.listenLobbyPage no las ve y quedan abiertas para siempre. Las salas de
+ * evento se reconocen por roo_eventId.
+ *
+ * Batches de hasta 500 salas con precondición de updateTime y checkpoint; si una sala cambió
+ * desde la lectura se pasa a una transacción por sala que relee el campo.
+ *
+ * Contra el emulador:
+ * FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:runRoomIsEventBackfill --args="--project demo-podovs"
+ */
+public final class RoomIsEventBackfillJob {
+
+    private static final String CHECKPOINT_DOC = "jobs/room_is_event_backfill";
+
+    private static final class Plan {
+        final DocumentReference ref;
+        final Timestamp updateTime;
+        final boolean isEvent;
+
+        Plan(DocumentReference ref, Timestamp updateTime, boolean isEvent) {
+            this.ref = ref;
+            this.updateTime = updateTime;
+            this.isEvent = isEvent;
+        }
+    }
+
+    private final Firestore db;
+    private final int pageSize;
+
+    // Métricas
+    private long scanned = 0L;
+    private long migrated = 0L;
+    private long alreadySet = 0L;
+    private long batches = 0L;
+    private long fallbacks = 0L;
+    private long failed = 0L;
+
+    RoomIsEventBackfillJob(Firestore db, int pageSize) {
+        this.db = db;
+        this.pageSize = pageSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String project = System.getenv("GOOGLE_CLOUD_PROJECT");
+        int page = WeeklySettlementJob.DEFAULT_PAGE;
+        boolean restart = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--project": project = args[++i]; break;
+                case "--page": page = Integer.parseInt(args[++i]); break;
+                case "--restart": restart = true; break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (project == null || project.isEmpty()) {
+            throw new IllegalArgumentException("Falta --project o GOOGLE_CLOUD_PROJECT");
+        }
+
+        FirestoreOptions options = FirestoreOptions.getDefaultInstance().toBuilder()
+                .setProjectId(project)
+                .build();
+        try (Firestore db = options.getService()) {
+            RoomIsEventBackfillJob job = new RoomIsEventBackfillJob(db, page);
+            if (restart) job.clearCheckpoint();
+            job.run();
+            System.out.println(job.summary());
+        }
+    }
+
+    // ================== RECORRIDO ==================
+
+    void run() throws ExecutionException, InterruptedException {
+        String cursor = readCheckpoint();
+        List<Plan> chunk = new ArrayList<>();
+        // Cada batch suma el checkpoint
+        int maxRooms = WeeklySettlementJob.MAX_BATCH_OPS - 1;
+        String lastId = cursor;
+
+        while (true) {
+            Query q = db.collection("rooms")
+                    .whereEqualTo("roo_finished", false)
+                    .orderBy(FieldPath.documentId())
+                    .limit(pageSize);
+            if (cursor != null) q = q.startAfter(cursor);
+
+            List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+            for (QueryDocumentSnapshot d : docs) {
+                scanned++;
+                lastId = d.getId();
+                if (d.getBoolean("roo_isEvent") != null) {
+                    alreadySet++;
+                    continue;
+                }
+                chunk.add(new Plan(d.getReference(), d.getUpdateTime(), isEvent(d)));
+                if (chunk.size() >= maxRooms) {
+                    commitChunk(chunk, lastId);
+                    chunk = new ArrayList<>();
+                }
+            }
+            if (docs.size() < pageSize) break;
+            cursor = docs.get(docs.size() - 1).getId();
+        }
+        if (!chunk.isEmpty()) commitChunk(chunk, lastId);
+
+        Map<String, Object> done = new HashMap<>();
+        done.put("job_done", true);
+        done.put("job_cursorId", FieldValue.delete());
+        done.put("job_updatedAt", System.currentTimeMillis());
+        db.document(CHECKPOINT_DOC).set(done, SetOptions.merge()).get();
+    }
+
+    private void commitChunk(List<Plan> chunk, String lastId) throws ExecutionException, InterruptedException {
+        WriteBatch batch = db.batch();
+        for (Plan p : chunk) {
+            Map<String, Object> up = new HashMap<>();
+            up.put("roo_isEvent", p.isEvent);
+            batch.update(p.ref, up, Precondition.updatedAt(p.updateTime));
+        }
+        batch.set(db.document(CHECKPOINT_DOC), checkpointData(lastId), SetOptions.merge());
+
+        try {
+            batch.commit().get();
+            batches++;
+            migrated += chunk.size();
+        } catch (ExecutionException e) {
+            // Una sala cambió (o se borró) desde la lectura: sala por sala
+            fallbacks++;
+            for (Plan p : chunk) migrateInTransaction(p.ref);
+            db.document(CHECKPOINT_DOC).set(checkpointData(lastId), SetOptions.merge()).get();
+        }
+    }
+
+    private void migrateInTransaction(DocumentReference ref) throws InterruptedException {
+        try {
+            boolean done = db.runTransaction(tx -> {
+                DocumentSnapshot cur = tx.get(ref).get();
+                if (!cur.exists() || cur.getBoolean("roo_isEvent") != null) return false;
+                Map<String, Object> up = new HashMap<>();
+                up.put("roo_isEvent", isEvent(cur));
+                tx.update(ref, up);
+                return true;
+            }).get();
+            if (done) migrated++;
+            else alreadySet++;
+        } catch (ExecutionException e) {
+            failed++;
+            System.err.println("No se pudo migrar " + ref.getId() + ": " + e.getCause());
+        }
+    }
+
+    // Mismo criterio que EventActivity: las salas de evento llevan roo_eventId
+    private static boolean isEvent(DocumentSnapshot d) {
+        String eventId = d.getString("roo_eventId");
+        return eventId != null && !eventId.isEmpty();
+    }
+
+    // ================== CHECKPOINT ==================
+
+    private String readCheckpoint() throws ExecutionException, InterruptedException {
+        DocumentSnapshot cp = db.document(CHECKPOINT_DOC).get().get();
+        if (!cp.exists() || Boolean.TRUE.equals(cp.getBoolean("job_done"))) return null;
+        return cp.getString("job_cursorId");
+    }
+
+    private static Map<String, Object> checkpointData(String lastId) {
+        Map<String, Object> cp = new HashMap<>();
+        cp.put("job_cursorId", lastId);
+        cp.put("job_done", false);
+        cp.put("job_updatedAt", System.currentTimeMillis());
+        return cp;
+    }
+
+    void clearCheckpoint() throws ExecutionException, InterruptedException {
+        db.document(CHECKPOINT_DOC).delete().get();
+    }
+
+    String summary() {
+        return "leídas=" + scanned
+                + " migradas=" + migrated
+                + " ya tenían=" + alreadySet
+                + " batches=" + batches
+                + " reintentos=" + fallbacks
+                + " fallidas=" + failed;
+    }
+}
@@ -0,0 +1,382 @@
+package com.example.podovs.jobs;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Liquidación masiva de rankings semanales. Recorre por páginas todas las tablas de semanas
+ * cerradas, paga el podio (3x / 2x / 1x pasos, mismas reglas que FirestoreRepo.rankRows) y
+ * marca ran_rewardsApplied. Escribe en batches de hasta 500 operaciones; cada batch lleva el
+ * checkpoint, así una corrida cortada retoma donde quedó.
+ *
+ * Una tabla ya marcada no se vuelve a pagar: en la siguiente pasada (o cuando la abre un
+ * jugador desde la app) solo se borra.
+ *
+ * Contra el emulador:
+ * FIRESTORE_EMULATOR_HOST=localhost:8080 ./gradlew :jobs:run --args="--project demo-podovs"
+ */
+public final class WeeklySettlementJob {
+
+    static final long WEEK_MS = 7L * 24L * 60L * 60L * 1000L;
+    static final int MAX_BATCH_OPS = 500;
+    static final int DEFAULT_PAGE = 200;
+
+    private static final String CHECKPOINT_DOC = "jobs/weekly_settlement";
+
+    static final class Row {
+        final String uid;
+        final double km;
+        final long stepsWeek;
+        int position;
+        long coins;
+
+        Row(String uid, double km) {
+            this.uid = uid;
+            this.km = km;
+            this.stepsWeek = Math.round(km * 1000.0);
+        }
+    }
+
+    // Lo que hay que escribir para una tabla
+    private static final class Plan {
+        final DocumentReference ref;
+        final Timestamp updateTime;
+        final long weekKey;
+        final List<Row> rows;   // null = ya pagada o vacía: solo se borra
+
+        Plan(DocumentReference ref, Timestamp updateTime, long weekKey, List<Row> rows) {
+            this.ref = ref;
+            this.updateTime = updateTime;
+            this.weekKey = weekKey;
+            this.rows = rows;
+        }
+
+        int ops() {
+            if (rows == null) return 1;
+            int n = 1;
+            for (Row r : rows) if (r.coins > 0L) n++;
+            return n;
+        }
+    }
+
+    private final Firestore db;
+    private final long targetWeekKey;
+    private final int pageSize;
+
+    // Métricas
+    private long scanned = 0L;
+    private long settled = 0L;
+    private long deleted = 0L;
+    private long coinsPaid = 0L;
+    private long batches = 0L;
+    private long fallbacks = 0L;
+    private long failed = 0L;
+
+    WeeklySettlementJob(Firestore db, long targetWeekKey, int pageSize) {
+        this.db = db;
+        this.targetWeekKey = targetWeekKey;
+        this.pageSize = pageSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String project = System.getenv("GOOGLE_CLOUD_PROJECT");
+        long week = currentWeekKey();
+        int page = DEFAULT_PAGE;
+        boolean restart = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--project": project = args[++i]; break;
+                case "--week": week = Long.parseLong(args[++i]); break;
+                case "--page": page = Integer.parseInt(args[++i]); break;
+                case "--restart": restart = true; break;
+                default: throw new IllegalArgumentException("Argumento desconocido: " + args[i]);
+            }
+        }
+        if (project == null || project.isEmpty()) {
+            throw new IllegalArgumentException("Falta --project o GOOGLE_CLOUD_PROJECT");
+        }
+
+        // Con FIRESTORE_EMULATOR_HOST definido el cliente va al emulador sin credenciales
+        FirestoreOptions options = FirestoreOptions.getDefaultInstance().toBuilder()
+                .setProjectId(project)
+                .build();
+        try (Firestore db = options.getService()) {
+            WeeklySettlementJob job = new WeeklySettlementJob(db, week, page);
+            if (restart) job.clearCheckpoint();
+            job.run();
+            System.out.println(job.summary());
+        }
+    }
+
+    // ================== RECORRIDO ==================
+
+    void run() throws ExecutionException, InterruptedException {
+        Object[] cursor = readCheckpoint();
+        List<Plan> chunk = new ArrayList<>();
+        int chunkOps = 1; // el checkpoint
+
+        while (true) {
+            Query q = db.collection("rankings")
+                    .whereLessThan("ran_weekKey", targetWeekKey)
+                    .orderBy("ran_weekKey")
+                    .orderBy(FieldPath.documentId())
+                    .limit(pageSize);
+            if (cursor != null) q = q.startAfter(cursor);
+
+            List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
+            for (QueryDocumentSnapshot d : docs) {
+                scanned++;
+                Plan p = plan(d, readUsersOutside(d));
+                if (chunkOps + p.ops() > MAX_BATCH_OPS) {
+                    commitChunk(chunk);
+                    chunk = new ArrayList<>();
+                    chunkOps = 1;
+                }
+                chunk.add(p);
+                chunkOps += p.ops();
+            }
+            if (docs.size() < pageSize) break;
+            QueryDocumentSnapshot last = docs.get(docs.size() - 1);
+            cursor = new Object[]{weekKeyOf(last), last.getId()};
+        }
+        if (!chunk.isEmpty()) commitChunk(chunk);
+
+        // Corrida completa: la próxima vuelve a empezar y borra las tablas ya pagadas
+        Map<String, Object> done = new HashMap<>();
+        done.put("job_targetWeekKey", targetWeekKey);
+        done.put("job_done", true);
+        done.put("job_cursorWeekKey", FieldValue.delete());
+        done.put("job_cursorId", FieldValue.delete());
+        done.put("job_updatedAt", System.currentTimeMillis());
+        db.document(CHECKPOINT_DOC).set(done, SetOptions.merge()).get();
+    }
+
+    private void commitChunk(List<Plan> chunk) throws ExecutionException, InterruptedException {
+        Plan last = chunk.get(chunk.size() - 1);
+        WriteBatch batch = db.batch();
+        for (Plan p : chunk) write(batch, p);
+        batch.set(db.document(CHECKPOINT_DOC), checkpointData(last), SetOptions.merge());
+
+        try {
+            batch.commit().get();
+            batches++;
+            for (Plan p : chunk) count(p);
+        } catch (ExecutionException e) {
+            // Alguna tabla cambió desde la lectura (la pagó un jugador, se borró, o se movió un
+            // score): se liquida tabla por tabla con transacción, releyendo el estado real
+            fallbacks++;
+            for (Plan p : chunk) settleInTransaction(p.ref);
+            db.document(CHECKPOINT_DOC).set(checkpointData(last), SetOptions.merge()).get();
+        }
+    }
+
+    private void settleInTransaction(DocumentReference ref) throws InterruptedException {
+        try {
+            Plan done = db.runTransaction(tx -> {
+                DocumentSnapshot cur = tx.get(ref).get();
+                if (!cur.exists()) return null;
+                List<DocumentSnapshot> users = null;
+                List<String> players = stringList(cur.get("ran_players"));
+                if (needsUsers(cur, players)) users = tx.getAll(userRefs(players)).get();
+                Plan p = plan(cur, users);
+                write(tx, p);
+                return p;
+            }).get();
+            if (done != null) count(done);
+        } catch (ExecutionException e) {
+            failed++;
+            System.err.println("No se pudo liquidar " + ref.getId() + ": " + e.getCause());
+        }
+    }
+
+    // ================== PLAN / ESCRITURA ==================
+
+    private Plan plan(DocumentSnapshot d, List<DocumentSnapshot> users) {
+        List<String> players = stringList(d.get("ran_players"));
+        if (players.isEmpty() || Boolean.TRUE.equals(d.getBoolean("ran_rewardsApplied"))) {
+            return new Plan(d.getReference(), d.getUpdateTime(), weekKeyOf(d), null);
+        }
+        List<Row> rows = rowsFromScores(d, players);
+        if (rows == null) rows = rowsFromUsers(users);
+        return new Plan(d.getReference(), d.getUpdateTime(), weekKeyOf(d), rankRows(rows));
+    }
+
+    private void write(UpdateBuilder<?> w, Plan p) {
+        if (p.rows == null) {
+            w.delete(p.ref);
+            return;
+        }
+        for (Row r : p.rows) {
+            if (r.coins > 0L) {
+                Map<String, Object> up = new HashMap<>();
+                up.put("usu_saldo", FieldValue.increment(r.coins));
+                w.update(db.collection("users").document(r.uid), up);
+            }
+        }
+        Map<String, Object> mark = new HashMap<>();
+        mark.put("ran_rewardsApplied", true);
+        mark.put("ran_finished", true);
+        mark.put("ran_settledAt", System.currentTimeMillis());
+        // Si la tabla cambió desde que se leyó, el batch entero falla en vez de pagar dos veces
+        w.update(p.ref, mark, Precondition.updatedAt(p.updateTime));
+    }
+
+    private void count(Plan p) {
+        if (p.rows == null) {
+            deleted++;
+            return;
+        }
+        settled++;
+        for (Row r : p.rows) coinsPaid += r.coins;
+    }
+
+    // ================== FILAS ==================
+
+    // Tablas viejas sin ran_scores: se leen los usuarios fuera del batch
+    private List<DocumentSnapshot> readUsersOutside(DocumentSnapshot d)
+            throws ExecutionException, InterruptedException {
+        List<String> players = stringList(d.get("ran_players"));
+        if (!needsUsers(d, players)) return null;
+        return db.getAll(userRefs(players)).get();
+    }
+
+    private static boolean needsUsers(DocumentSnapshot d, List<String> players) {
+        return !players.isEmpty()
+                && !Boolean.TRUE.equals(d.getBoolean("ran_rewardsApplied"))
+                && rowsFromScores(d, players) == null;
+    }
+
+    private DocumentReference[] userRefs(List<String> players) {
+        DocumentReference[] refs = new DocumentReference[players.size()];
+        for (int i = 0; i < refs.length; i++) refs[i] = db.collection("users").document(players.get(i));
+        return refs;
+    }
+
+    static List<Row> rowsFromScores(DocumentSnapshot d, List<String> players) {
+        Object raw = d.get("ran_scores");
+        if (!(raw instanceof Map)) return null;
+        Map<?, ?> scores = (Map<?, ?>) raw;
+
+        List<Row> rows = new ArrayList<>();
+        for (String pid : players) {
+            Object entry = scores.get(pid);
+            if (!(entry instanceof Map)) return null;
+            Object vKm = ((Map<?, ?>) entry).get("km");
+            double km = vKm instanceof Number ? Math.max(0.0, ((Number) vKm).doubleValue()) : 0.0;
+            rows.add(new Row(pid, km));
+        }
+        return rows;
+    }
+
+    static List<Row> rowsFromUsers(List<DocumentSnapshot> users) {
+        List<Row> rows = new ArrayList<>();
+        if (users == null) return rows;
+        for (DocumentSnapshot s : users) {
+            if (!s.exists()) continue;
+            Object vKm = s.get("usu_stats.km_semana");
+            double km = vKm instanceof Number ? ((Number) vKm).doubleValue() : 0.0;
+            rows.add(new Row(s.getId(), km));
+        }
+        return rows;
+    }
+
+    static List<Row> rankRows(List<Row> rows) {
+        Collections.sort(rows, (a, b) -> Double.compare(b.km, a.km));
+        for (int i = 0; i < rows.size(); i++) {
+            Row r = rows.get(i);
+            r.position = i + 1;
+            if (r.position == 1) r.coins = r.stepsWeek * 3L;
+            else if (r.position == 2) r.coins = r.stepsWeek * 2L;
+            else if (r.position == 3) r.coins = r.stepsWeek;
+            else r.coins = 0L;
+        }
+        return rows;
+    }
+
+    // ================== CHECKPOINT ==================
+
+    private Object[] readCheckpoint() throws ExecutionException, InterruptedException {
+        DocumentSnapshot cp = db.document(CHECKPOINT_DOC).get().get();
+        if (!cp.exists() || Boolean.TRUE.equals(cp.getBoolean("job_done"))) return null;
+        Long target = cp.getLong("job_targetWeekKey");
+        Long week = cp.getLong("job_cursorWeekKey");
+        String id = cp.getString("job_cursorId");
+        // Un checkpoint de otra semana objetivo no sirve: se empieza de cero
+        if (target == null || target != targetWeekKey || week == null || id == null) return null;
+        return new Object[]{week, id};
+    }
+
+    private Map<String, Object> checkpointData(Plan last) {
+        Map<String, Object> cp = new HashMap<>();
+        cp.put("job_targetWeekKey", targetWeekKey);
+        cp.put("job_cursorWeekKey", last.weekKey);
+        cp.put("job_cursorId", last.ref.getId());
+        cp.put("job_done", false);
+        cp.put("job_updatedAt", System.currentTimeMillis());
+        return cp;
+    }
+
+    void clearCheckpoint() throws ExecutionException, InterruptedException {
+        db.document(CHECKPOINT_DOC).delete().get();
+    }
+
+    // ================== UTIL ==================
+
+    // Misma cuenta que FirestoreRepo.currentWeekKey (lunes 00:00 en la zona de la JVM)
+    static long currentWeekKey() {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(System.currentTimeMillis());
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        while (cal.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY) {
+            cal.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        return cal.getTimeInMillis() / WEEK_MS;
+    }
+
+    private static long weekKeyOf(DocumentSnapshot d) {
+        Long w = d.getLong("ran_weekKey");
+        return w == null ? 0L : w;
+    }
+
+    static List<String> stringList(Object raw) {
+        List<String> out = new ArrayList<>();
+        if (raw instanceof List) {
+            for (Object o : (List<?>) raw) if (o instanceof String) out.add((String) o);
+        }
+        return out;
+    }
+
+    String summary() {
+        return "semana<" + targetWeekKey
+                + " leídas=" + scanned
+                + " pagadas=" + settled
+                + " borradas=" + deleted
+                + " monedas=" + coinsPaid
+                + " batches=" + batches
+                + " reintentos=" + fallbacks
+                + " fallidas=" + failed;
+    }
+}
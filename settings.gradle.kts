@@ -21,3 +21,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "PodoVS"
 include(":app")
+include(":jobs")